@@ -0,0 +1,77 @@
+/* TODO: license */
+package org.github.gentlewake.benchmarks;
+
+import org.github.gentlewake.util.AlarmUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the next alarm, which every sync trigger does before anything is sent to the bridge.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AlarmUtilsBenchmark {
+
+    /** The next alarm as formatted in the 24 hour format, built from the locale of the JVM. */
+    private String mNextAlarm24h;
+
+    /** The next alarm as formatted in the 12 hour format. */
+    private String mNextAlarm12h;
+
+    private int mAlarmTime;
+
+    private Calendar mCalendar;
+
+    private long mNow;
+
+    @Setup
+    public void setUp() {
+        Calendar tuesday;
+        String weekday;
+
+        tuesday = Calendar.getInstance();
+        tuesday.set(Calendar.DAY_OF_WEEK, Calendar.TUESDAY);
+        weekday = String.format("%ta", tuesday);
+        this.mNextAlarm24h = weekday + " 06:30";
+        this.mNextAlarm12h = weekday + " 6:30 " + String.format("%Tp", tuesday.getTime()).substring(0, 2);
+        this.mAlarmTime = AlarmUtils.parseAlarmTime(this.mNextAlarm24h);
+        if (this.mAlarmTime == AlarmUtils.NO_ALARM_TIME) {
+            throw new IllegalStateException("Could not parse '" + this.mNextAlarm24h + "'");
+        }
+        this.mCalendar = Calendar.getInstance();
+        this.mNow = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public int parseAlarmTime24h() {
+        return AlarmUtils.parseAlarmTime(this.mNextAlarm24h);
+    }
+
+    @Benchmark
+    public int parseAlarmTime12h() {
+        return AlarmUtils.parseAlarmTime(this.mNextAlarm12h);
+    }
+
+    @Benchmark
+    public long nextOccurrence() {
+        this.mCalendar.setTimeInMillis(this.mNow);
+        return AlarmUtils.nextOccurrence(this.mAlarmTime, this.mCalendar);
+    }
+}
@@ -0,0 +1,64 @@
+/* TODO: license */
+package org.github.gentlewake.benchmarks;
+
+import org.github.gentlewake.hue.CurveCompiler;
+import org.github.gentlewake.hue.WakeCurve;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning the wake curve into the steps that are scheduled on the bridge, which every sync with an alarm
+ * does. The values match what the app uses by default: a tolerance of 5% and at most 8 schedules.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class CurveCompilerBenchmark {
+
+    /** A warm, slow start that gets brighter and colder towards the end, spread over almost three hours. */
+    private static final String CURVE = "0:1:454 20:120:370 30:254:250 60:254:200 120:200:153 170:254:153";
+
+    private static final double TOLERANCE = 0.05;
+
+    private static final int MAX_SCHEDULES = 8;
+
+    private WakeCurve mLinear;
+
+    private WakeCurve mCustom;
+
+    @Setup
+    public void setUp() {
+        this.mLinear = WakeCurve.linear(30);
+        this.mCustom = WakeCurve.parse(CURVE);
+    }
+
+    @Benchmark
+    public WakeCurve parse() {
+        return WakeCurve.parse(CURVE);
+    }
+
+    @Benchmark
+    public CurveCompiler.Result compileLinear() {
+        return CurveCompiler.compile(this.mLinear, TOLERANCE, MAX_SCHEDULES);
+    }
+
+    @Benchmark
+    public CurveCompiler.Result compileCustom() {
+        return CurveCompiler.compile(this.mCustom, TOLERANCE, MAX_SCHEDULES);
+    }
+}
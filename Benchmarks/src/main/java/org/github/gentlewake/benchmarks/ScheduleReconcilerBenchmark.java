@@ -0,0 +1,92 @@
+/* TODO: license */
+package org.github.gentlewake.benchmarks;
+
+import com.philips.lighting.model.PHLightState;
+import com.philips.lighting.model.PHSchedule;
+
+import org.github.gentlewake.hue.LightStates;
+import org.github.gentlewake.hue.ScheduleReconciler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the desired schedules and comparing them with the schedules on the bridge, which every sync
+ * does once per schedule before it decides whether anything has to be sent.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ScheduleReconcilerBenchmark {
+
+    private PHSchedule mDesired;
+
+    /** The schedule as the bridge has it when nothing changed since the last sync. */
+    private PHSchedule mUnchanged;
+
+    /** The schedule as the bridge has it when the alarm moved and the light state changed. */
+    private PHSchedule mChanged;
+
+    @Setup
+    public void setUp() {
+        Date date;
+        PHLightState lightState;
+
+        date = new Date((System.currentTimeMillis() / 1000 + 8 * 3600) * 1000);
+        this.mDesired = createSchedule(date, LightStates.off());
+        this.mUnchanged = ScheduleReconciler.copy(this.mDesired);
+        lightState = new PHLightState();
+        lightState.setOn(true);
+        lightState.setBrightness(LightStates.BRIGHTNESS_MIN);
+        this.mChanged = createSchedule(new Date(date.getTime() + 15 * 60 * 1000), lightState);
+    }
+
+    @Benchmark
+    public PHSchedule createDesired() {
+        return createSchedule(this.mDesired.getDate(), LightStates.off());
+    }
+
+    @Benchmark
+    public Set<ScheduleReconciler.Field> diffUnchanged() {
+        return ScheduleReconciler.diff(this.mUnchanged, this.mDesired);
+    }
+
+    @Benchmark
+    public Set<ScheduleReconciler.Field> diffChanged() {
+        return ScheduleReconciler.diff(this.mChanged, this.mDesired);
+    }
+
+    @Benchmark
+    public PHSchedule copy() {
+        return ScheduleReconciler.copy(this.mChanged);
+    }
+
+    /** Builds a schedule the way the sync does. */
+    private static PHSchedule createSchedule(Date date, PHLightState lightState) {
+        PHSchedule result;
+
+        result = new PHSchedule("GentleWake Off");
+        result.setGroupIdentifier("GentleWake");
+        result.setLightState(lightState);
+        result.setDate(date);
+        result.setDescription("Schedule of: benchmark");
+
+        return result;
+    }
+}
@@ -0,0 +1,11 @@
+/* TODO: license */
+package android.app;
+
+/**
+ * The alarm manager of a device that predates the alarm clock API, so the app reads the next alarm from the
+ * settings (see {@link android.provider.Settings.System#NEXT_ALARM_FORMATTED}).
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class AlarmManager {
+}
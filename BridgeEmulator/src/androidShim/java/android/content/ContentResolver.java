@@ -0,0 +1,56 @@
+/* TODO: license */
+package android.content;
+
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the system settings (see {@link android.provider.Settings.System}) in memory and tells the observers of a
+ * setting when it changes.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class ContentResolver {
+
+    private final Map<String, String> mSettings;
+
+    private final Map<Uri, List<ContentObserver>> mObservers;
+
+    ContentResolver() {
+        this.mSettings = new HashMap<String, String>();
+        this.mObservers = new HashMap<Uri, List<ContentObserver>>();
+    }
+
+    public synchronized void registerContentObserver(Uri uri, boolean notifyForDescendents,
+                                                     ContentObserver observer) {
+        if (!this.mObservers.containsKey(uri)) {
+            this.mObservers.put(uri, new CopyOnWriteArrayList<ContentObserver>());
+        }
+        this.mObservers.get(uri).add(observer);
+    }
+
+    /** @see android.provider.Settings.System#getString(ContentResolver, String) */
+    public synchronized String getSetting(String name) {
+        return this.mSettings.get(name);
+    }
+
+    /** @see android.provider.Settings.System#putString(ContentResolver, String, String) */
+    public void putSetting(Uri uri, String name, String value) {
+        List<ContentObserver> observers;
+
+        synchronized (this) {
+            this.mSettings.put(name, value);
+            observers = this.mObservers.get(uri);
+        }
+        if (observers != null) {
+            for (ContentObserver observer : observers) {
+                observer.onChange(false);
+            }
+        }
+    }
+}
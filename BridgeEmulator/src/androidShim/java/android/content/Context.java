@@ -0,0 +1,90 @@
+/* TODO: license */
+package android.content;
+
+import android.app.AlarmManager;
+
+import org.github.gentlewake.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parts of the Android context the sync of the app uses, for the JVM. The string resources resolve to the names
+ * of their fields in {@link R.string}, the shared preferences are kept in memory and the files are written to a
+ * temporary directory.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class Context {
+
+    public static final String ALARM_SERVICE = "alarm";
+
+    public static final int MODE_PRIVATE = 0;
+
+    private final File mFilesDir;
+
+    private final ContentResolver mContentResolver;
+
+    private final AlarmManager mAlarmManager;
+
+    private final Map<String, SharedPreferences> mSharedPreferences;
+
+    /**
+     * @throws IOException if the directory for the files of the app could not be created.
+     */
+    public Context() throws IOException {
+        this.mFilesDir = File.createTempFile("gentlewake", "files");
+        if (!this.mFilesDir.delete() || !this.mFilesDir.mkdir()) {
+            throw new IOException("Could not create " + this.mFilesDir);
+        }
+        this.mFilesDir.deleteOnExit();
+        this.mContentResolver = new ContentResolver();
+        this.mAlarmManager = new AlarmManager();
+        this.mSharedPreferences = new HashMap<String, SharedPreferences>();
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    /** @return the name of the field of the resource in {@link R.string}. */
+    public String getString(int resId) {
+        for (Field field : R.string.class.getFields()) {
+            try {
+                if (field.getInt(null) == resId) {
+                    return field.getName();
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        throw new IllegalArgumentException("No string resource with id " + resId);
+    }
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences result;
+
+        result = this.mSharedPreferences.get(name);
+        if (result == null) {
+            result = new MemorySharedPreferences();
+            this.mSharedPreferences.put(name, result);
+        }
+
+        return result;
+    }
+
+    public File getFilesDir() {
+        return this.mFilesDir;
+    }
+
+    public ContentResolver getContentResolver() {
+        return this.mContentResolver;
+    }
+
+    public Object getSystemService(String name) {
+        return ALARM_SERVICE.equals(name) ? this.mAlarmManager : null;
+    }
+}
@@ -0,0 +1,115 @@
+/* TODO: license */
+package android.content;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shared preferences that are kept in memory. Changes are visible as soon as they have been committed or applied,
+ * and the listeners are called on the thread that made the change.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+final class MemorySharedPreferences implements SharedPreferences {
+
+    private final Map<String, Object> mValues;
+
+    private final List<OnSharedPreferenceChangeListener> mListeners;
+
+    MemorySharedPreferences() {
+        this.mValues = new HashMap<String, Object>();
+        this.mListeners = new CopyOnWriteArrayList<OnSharedPreferenceChangeListener>();
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(this.mValues);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        return this.mValues.containsKey(key) ? (String) this.mValues.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        return this.mValues.containsKey(key) ? (Integer) this.mValues.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        return this.mValues.containsKey(key) ? (Long) this.mValues.get(key) : defValue;
+    }
+
+    @Override
+    public Editor edit() {
+        return new MemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        this.mListeners.add(listener);
+    }
+
+    /** Collects the changes and writes all of them at once. A <code>null</code> value removes the key. */
+    private final class MemoryEditor implements Editor {
+
+        private final Map<String, Object> mChanges = new HashMap<String, Object>();
+
+        @Override
+        public Editor putString(String key, String value) {
+            this.mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            this.mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            this.mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            this.mChanges.put(key, null);
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            List<String> keys;
+
+            synchronized (MemorySharedPreferences.this) {
+                for (Map.Entry<String, Object> change : this.mChanges.entrySet()) {
+                    if (change.getValue() == null) {
+                        mValues.remove(change.getKey());
+                    } else {
+                        mValues.put(change.getKey(), change.getValue());
+                    }
+                }
+                keys = new ArrayList<String>(this.mChanges.keySet());
+                this.mChanges.clear();
+            }
+            for (String key : keys) {
+                for (OnSharedPreferenceChangeListener listener : mListeners) {
+                    listener.onSharedPreferenceChanged(MemorySharedPreferences.this, key);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
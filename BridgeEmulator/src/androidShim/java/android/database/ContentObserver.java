@@ -0,0 +1,21 @@
+/* TODO: license */
+package android.database;
+
+import android.os.Handler;
+
+/**
+ * Observes a setting, see {@link android.content.ContentResolver}. The observer is called on the thread that changed
+ * the setting.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public abstract class ContentObserver {
+
+    public ContentObserver(Handler handler) {
+        // the change is always delivered right away
+    }
+
+    public void onChange(boolean selfChange) {
+        // subclasses react to the change
+    }
+}
@@ -0,0 +1,24 @@
+/* TODO: license */
+package android.net;
+
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Hands out the SSL socket factory of the JVM. The http client of the app asks for it when it is built, the bridge
+ * itself is only ever reached over plain http.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public abstract class SSLCertificateSocketFactory extends SSLSocketFactory {
+
+    public static SocketFactory getDefault(int handshakeTimeoutMillis) {
+        return SSLSocketFactory.getDefault();
+    }
+
+    public void setHostname(Socket socket, String hostName) {
+        // the factory of the JVM is never an instance of this class
+    }
+}
@@ -0,0 +1,35 @@
+/* TODO: license */
+package android.net;
+
+/**
+ * An address of a content, e.g. of a setting. Two uris are equal if their strings are.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class Uri {
+
+    private final String mUri;
+
+    private Uri(String uri) {
+        this.mUri = uri;
+    }
+
+    public static Uri parse(String uriString) {
+        return new Uri(uriString);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Uri && this.mUri.equals(((Uri) o).mUri);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.mUri.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.mUri;
+    }
+}
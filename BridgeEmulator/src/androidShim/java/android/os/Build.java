@@ -0,0 +1,21 @@
+/* TODO: license */
+package android.os;
+
+/**
+ * A device running Android 4.4, the target of the app.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class Build {
+
+    public static final String MODEL = "JVM";
+
+    private Build() {}
+
+    public static final class VERSION {
+
+        public static final int SDK_INT = 19;
+
+        private VERSION() {}
+    }
+}
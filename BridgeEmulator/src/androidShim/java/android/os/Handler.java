@@ -0,0 +1,21 @@
+/* TODO: license */
+package android.os;
+
+/**
+ * Posts messages to the thread of a {@link Looper}.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class Handler {
+
+    private final Looper mLooper;
+
+    public Handler(Looper looper) {
+        this.mLooper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        this.mLooper.post(r);
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+/* TODO: license */
+package android.os;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The main thread of the app, a single thread that runs the messages posted to it one after the other.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class Looper {
+
+    private static final Looper MAIN = new Looper();
+
+    private final ExecutorService mThread;
+
+    private Looper() {
+        this.mThread = Executors.newSingleThreadExecutor();
+    }
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+
+    void post(Runnable r) {
+        this.mThread.execute(r);
+    }
+}
@@ -0,0 +1,28 @@
+/* TODO: license */
+package android.os;
+
+/**
+ * The clocks of the device, based on the monotonic clock of the JVM.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class SystemClock {
+
+    private SystemClock() {}
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long uptimeMillis() {
+        return elapsedRealtime();
+    }
+
+    public static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/* TODO: license */
+package android.preference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Hands out the default shared preferences of the context.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class PreferenceManager {
+
+    private PreferenceManager() {}
+
+    public static SharedPreferences getDefaultSharedPreferences(Context context) {
+        return context.getSharedPreferences(context.getClass().getName() + "_preferences", Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,35 @@
+/* TODO: license */
+package android.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+/**
+ * The system settings the app reads, kept by the {@link ContentResolver} of the context.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class Settings {
+
+    private Settings() {}
+
+    public static final class System {
+
+        public static final String NEXT_ALARM_FORMATTED = "next_alarm_formatted";
+
+        private System() {}
+
+        public static Uri getUriFor(String name) {
+            return Uri.parse("content://settings/system/" + name);
+        }
+
+        public static String getString(ContentResolver resolver, String name) {
+            return resolver.getSetting(name);
+        }
+
+        public static boolean putString(ContentResolver resolver, String name, String value) {
+            resolver.putSetting(getUriFor(name), name, value);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/* TODO: license */
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a JSON stream. The reader of Android has been derived from the one of Gson, so this one delegates to it.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class JsonReader implements Closeable {
+
+    private final com.google.gson.stream.JsonReader mReader;
+
+    public JsonReader(Reader in) {
+        this.mReader = new com.google.gson.stream.JsonReader(in);
+    }
+
+    public void beginArray() throws IOException {
+        this.mReader.beginArray();
+    }
+
+    public void endArray() throws IOException {
+        this.mReader.endArray();
+    }
+
+    public void beginObject() throws IOException {
+        this.mReader.beginObject();
+    }
+
+    public void endObject() throws IOException {
+        this.mReader.endObject();
+    }
+
+    public boolean hasNext() throws IOException {
+        return this.mReader.hasNext();
+    }
+
+    public JsonToken peek() throws IOException {
+        return JsonToken.valueOf(this.mReader.peek().name());
+    }
+
+    public String nextName() throws IOException {
+        return this.mReader.nextName();
+    }
+
+    public String nextString() throws IOException {
+        return this.mReader.nextString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        return this.mReader.nextBoolean();
+    }
+
+    public void nextNull() throws IOException {
+        this.mReader.nextNull();
+    }
+
+    public double nextDouble() throws IOException {
+        return this.mReader.nextDouble();
+    }
+
+    public long nextLong() throws IOException {
+        return this.mReader.nextLong();
+    }
+
+    public int nextInt() throws IOException {
+        return this.mReader.nextInt();
+    }
+
+    public void skipValue() throws IOException {
+        this.mReader.skipValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.mReader.close();
+    }
+}
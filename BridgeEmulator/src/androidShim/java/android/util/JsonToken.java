@@ -0,0 +1,20 @@
+/* TODO: license */
+package android.util;
+
+/**
+ * The kinds of tokens of a JSON stream, see {@link JsonReader#peek()}.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public enum JsonToken {
+    BEGIN_ARRAY,
+    END_ARRAY,
+    BEGIN_OBJECT,
+    END_OBJECT,
+    NAME,
+    STRING,
+    NUMBER,
+    BOOLEAN,
+    NULL,
+    END_DOCUMENT
+}
@@ -0,0 +1,84 @@
+/* TODO: license */
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a JSON stream. The writer of Android has been derived from the one of Gson, so this one delegates to it.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class JsonWriter implements Closeable {
+
+    private final com.google.gson.stream.JsonWriter mWriter;
+
+    public JsonWriter(Writer out) {
+        this.mWriter = new com.google.gson.stream.JsonWriter(out);
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        this.mWriter.beginArray();
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException {
+        this.mWriter.endArray();
+        return this;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        this.mWriter.beginObject();
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException {
+        this.mWriter.endObject();
+        return this;
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        this.mWriter.name(name);
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        this.mWriter.value(value);
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        this.mWriter.nullValue();
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        this.mWriter.value(value);
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException {
+        this.mWriter.value(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        this.mWriter.value(value);
+        return this;
+    }
+
+    public JsonWriter value(Number value) throws IOException {
+        this.mWriter.value(value);
+        return this;
+    }
+
+    public void flush() throws IOException {
+        this.mWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.mWriter.close();
+    }
+}
@@ -0,0 +1,91 @@
+/* TODO: license */
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Writes the log to the standard error stream. Only warnings and errors are logged, unless the system property
+ * <code>gentlewake.log.level</code> is set to a lower level, e.g. 3 for debug messages.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private static final String[] LEVELS = {"", "", "V", "D", "I", "W", "E", "A"};
+
+    private static final int LEVEL = Integer.getInteger("gentlewake.log.level", WARN);
+
+    private Log() {}
+
+    public static boolean isLoggable(String tag, int level) {
+        if (tag.length() > 23) {
+            throw new IllegalArgumentException("Log tag \"" + tag + "\" exceeds limit of 23 characters");
+        }
+        return level >= LEVEL;
+    }
+
+    public static int println(int priority, String tag, String msg) {
+        System.err.println(LEVELS[priority] + "/" + tag + ": " + msg);
+        return msg.length();
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg);
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return println(DEBUG, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg);
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        return println(INFO, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int w(String tag, Throwable tr) {
+        return println(WARN, tag, getStackTraceString(tr));
+    }
+
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        StringWriter result;
+
+        if (tr == null) {
+            return "";
+        }
+        result = new StringWriter();
+        tr.printStackTrace(new PrintWriter(result));
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,36 @@
+/* TODO: license */
+package org.github.gentlewake;
+
+/**
+ * The resources of the app that the sync uses. On Android this class is generated from the resources, see
+ * {@link android.content.Context#getString(int)} for how the strings resolve on the JVM.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class R {
+
+    private R() {}
+
+    public static final class string {
+
+        private string() {}
+
+        public static final int app_name = 0x7f0a0000;
+        public static final int pref_key_bridge_ip = 0x7f0a0001;
+        public static final int pref_key_curve_tolerance = 0x7f0a0002;
+        public static final int pref_key_device_name = 0x7f0a0003;
+        public static final int pref_key_light_group = 0x7f0a0004;
+        public static final int pref_key_schedule_id_brighten = 0x7f0a0005;
+        public static final int pref_key_schedule_id_curve = 0x7f0a0006;
+        public static final int pref_key_schedule_id_off = 0x7f0a0007;
+        public static final int pref_key_schedule_id_on = 0x7f0a0008;
+        public static final int pref_key_schedule_name_brighten = 0x7f0a0009;
+        public static final int pref_key_schedule_name_off = 0x7f0a000a;
+        public static final int pref_key_schedule_name_on = 0x7f0a000b;
+        public static final int pref_key_session_idle_seconds = 0x7f0a000c;
+        public static final int pref_key_sync_delay_seconds = 0x7f0a000d;
+        public static final int pref_key_transition_minutes = 0x7f0a000e;
+        public static final int pref_key_username = 0x7f0a000f;
+        public static final int pref_key_wake_curve = 0x7f0a0010;
+    }
+}
@@ -0,0 +1,618 @@
+/* TODO: license */
+package org.github.gentlewake.emulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Emulates the REST API of a Hue bridge on the loopback interface, so the sync path can be run (and timed) on a plain
+ * JVM, without a bridge. It keeps lights, groups, schedules and the whitelist in memory and answers the requests the
+ * way the bridge does: resources are read as JSON objects keyed by their identifier, modifications are answered with
+ * an array of "success" or "error" entries.
+ * <p/>
+ * A real bridge handles one request at a time, so the emulator does too: requests sent in parallel queue up and each
+ * of them takes at least the configured {@link #setLatencyMillis(long) latency}. On top of that, the emulator can
+ * <ul>
+ * <li>fail the next requests with an error of the Hue API ({@link #failNext(int, int, String)}),</li>
+ * <li>close the connection of the next requests without answering them, like a bridge that stopped responding
+ * after it applied the request ({@link #dropNext(int)}),</li>
+ * <li>reject requests above a rate like a busy bridge: with HTTP status 503 and error
+ * {@link #ERROR_INTERNAL} ({@link #setRateLimit(int)}).</li>
+ * </ul>
+ * It counts all requests and the writes it applied, so tests can check how many writes a sync sends.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class BridgeEmulator {
+
+    /** The username is not on the whitelist. */
+    public static final int ERROR_UNAUTHORIZED_USER = 1;
+
+    /** The body of the request is not valid JSON. */
+    public static final int ERROR_INVALID_JSON = 2;
+
+    /** The resource does not exist. */
+    public static final int ERROR_RESOURCE_NOT_AVAILABLE = 3;
+
+    /** The resource does not support the method. */
+    public static final int ERROR_METHOD_NOT_AVAILABLE = 4;
+
+    /** A parameter the request needs is missing. */
+    public static final int ERROR_MISSING_PARAMETERS = 5;
+
+    /** A new user can only be created within 30 seconds of pressing the link button. */
+    public static final int ERROR_LINK_BUTTON_NOT_PRESSED = 101;
+
+    /** The bridge failed internally, e.g. because it was too busy. */
+    public static final int ERROR_INTERNAL = 901;
+
+    /** The failure that answers a request by closing the connection. */
+    private static final Map<String, Object> DROP = Collections.emptyMap();
+
+    private final HttpServer mServer;
+
+    private final ExecutorService mExecutor;
+
+    private final Map<String, Map<String, Object>> mLights;
+
+    private final Map<String, Map<String, Object>> mGroups;
+
+    private final Map<String, Map<String, Object>> mSchedules;
+
+    /** The registered users, by username. */
+    private final Map<String, Map<String, Object>> mWhitelist;
+
+    /** The failures to answer the next requests with, or {@link #DROP}. */
+    private final Deque<Map<String, Object>> mFailures;
+
+    /** The times (in nanoseconds) of the requests of the last second, only kept while a rate limit is set. */
+    private final Deque<Long> mRecentRequests;
+
+    /** The method and path of all requests, in the order they arrived. */
+    private final List<String> mRequestLog;
+
+    private long mLatencyMillis;
+
+    /** The number of requests per second the bridge accepts, 0 for no limit. */
+    private int mRateLimit;
+
+    private boolean mLinkButtonPressed;
+
+    private int mNextId;
+
+    private int mRequestCount;
+
+    private int mWriteCount;
+
+    /**
+     * Creates an emulator listening on a free port of the loopback interface. It has to be {@link #start() started}
+     * before it answers requests.
+     *
+     * @throws IOException if no port could be bound.
+     */
+    public BridgeEmulator() throws IOException {
+        this.mLights = new LinkedHashMap<String, Map<String, Object>>();
+        this.mGroups = new LinkedHashMap<String, Map<String, Object>>();
+        this.mSchedules = new LinkedHashMap<String, Map<String, Object>>();
+        this.mWhitelist = new LinkedHashMap<String, Map<String, Object>>();
+        this.mFailures = new ArrayDeque<Map<String, Object>>();
+        this.mRecentRequests = new ArrayDeque<Long>();
+        this.mRequestLog = new ArrayList<String>();
+        this.mNextId = 1;
+
+        this.mExecutor = Executors.newCachedThreadPool();
+        this.mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.mServer.setExecutor(this.mExecutor);
+        this.mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                BridgeEmulator.this.handle(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        this.mServer.start();
+    }
+
+    public void stop() {
+        this.mServer.stop(0);
+        this.mExecutor.shutdownNow();
+    }
+
+    /** @return the address of the emulator including its port, e.g. "127.0.0.1:41234". */
+    public String getAddress() {
+        return "127.0.0.1:" + this.mServer.getAddress().getPort();
+    }
+
+    /** @param username the username to put on the whitelist. */
+    public synchronized void addUser(String username) {
+        Map<String, Object> user;
+
+        user = new LinkedHashMap<String, Object>();
+        user.put("name", username);
+        this.mWhitelist.put(username, user);
+    }
+
+    /**
+     * @param name the name of the light.
+     * @return the identifier of the new light.
+     */
+    public synchronized String addLight(String name) {
+        Map<String, Object> light;
+        Map<String, Object> state;
+        String id;
+
+        state = new LinkedHashMap<String, Object>();
+        state.put("on", false);
+        state.put("bri", 0L);
+        state.put("ct", 366L);
+        state.put("reachable", true);
+        light = new LinkedHashMap<String, Object>();
+        light.put("state", state);
+        light.put("type", "Color temperature light");
+        light.put("name", name);
+        id = String.valueOf(this.mLights.size() + 1);
+        this.mLights.put(id, light);
+
+        return id;
+    }
+
+    /**
+     * @param name     the name of the group.
+     * @param lightIds the identifiers of the lights of the group.
+     * @return the identifier of the new group.
+     */
+    public synchronized String addGroup(String name, String... lightIds) {
+        Map<String, Object> group;
+        String id;
+
+        group = new LinkedHashMap<String, Object>();
+        group.put("name", name);
+        group.put("lights", new ArrayList<Object>(Arrays.asList(lightIds)));
+        group.put("action", new LinkedHashMap<String, Object>());
+        id = nextId();
+        this.mGroups.put(id, group);
+
+        return id;
+    }
+
+    /** @return a copy of the schedules on the bridge, by identifier. */
+    public synchronized Map<String, Map<String, Object>> getSchedules() {
+        return copy(this.mSchedules);
+    }
+
+    /** @return a copy of the groups on the bridge, by identifier. */
+    public synchronized Map<String, Map<String, Object>> getGroups() {
+        return copy(this.mGroups);
+    }
+
+    /** @param latencyMillis the time the emulator takes to answer each request. */
+    public synchronized void setLatencyMillis(long latencyMillis) {
+        this.mLatencyMillis = latencyMillis;
+    }
+
+    /** @param requestsPerSecond the number of requests per second to accept, 0 to accept all. */
+    public synchronized void setRateLimit(int requestsPerSecond) {
+        this.mRateLimit = requestsPerSecond;
+        this.mRecentRequests.clear();
+    }
+
+    /**
+     * Answers the next requests with an error of the Hue API, without changing anything.
+     *
+     * @param count       the number of requests to fail.
+     * @param type        the type of the error, e.g. {@link #ERROR_INTERNAL}.
+     * @param description the description of the error.
+     */
+    public synchronized void failNext(int count, int type, String description) {
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> failure;
+
+            failure = new LinkedHashMap<String, Object>();
+            failure.put("type", (long) type);
+            failure.put("description", description);
+            this.mFailures.add(failure);
+        }
+    }
+
+    /**
+     * Applies the next requests, but closes their connections without answering them. Clients can't tell whether
+     * such a request has been applied or not, so they must not simply send it again if it creates a resource.
+     *
+     * @param count the number of requests to drop.
+     */
+    public synchronized void dropNext(int count) {
+        for (int i = 0; i < count; i++) {
+            this.mFailures.add(DROP);
+        }
+    }
+
+    /** Lets the next request that creates a user succeed. */
+    public synchronized void pressLinkButton() {
+        this.mLinkButtonPressed = true;
+    }
+
+    /** @return the number of requests received, including the failed ones. */
+    public synchronized int getRequestCount() {
+        return this.mRequestCount;
+    }
+
+    /** @return the number of requests that changed the state of the bridge. */
+    public synchronized int getWriteCount() {
+        return this.mWriteCount;
+    }
+
+    /** @return the method and path of all requests received, e.g. "PUT /api/user/schedules/3". */
+    public synchronized List<String> getRequestLog() {
+        return new ArrayList<String>(this.mRequestLog);
+    }
+
+    /** Resets the counters and the request log, but keeps the state of the bridge. */
+    public synchronized void resetCounters() {
+        this.mRequestCount = 0;
+        this.mWriteCount = 0;
+        this.mRequestLog.clear();
+    }
+
+    /** Handles one request. The emulator answers one request at a time, as the bridge does. */
+    private void handle(HttpExchange exchange) throws IOException {
+        String method;
+        String path;
+        String body;
+        Object response;
+        int status;
+
+        method = exchange.getRequestMethod();
+        path = exchange.getRequestURI().getPath();
+        body = readBody(exchange.getRequestBody());
+
+        synchronized (this) {
+            Map<String, Object> failure;
+
+            this.mRequestCount++;
+            this.mRequestLog.add(method + " " + path);
+            sleep(this.mLatencyMillis);
+
+            status = 200;
+            if (isRateLimited()) {
+                status = 503;
+                response = error(ERROR_INTERNAL, path, "Internal error, 503");
+            } else if (!this.mFailures.isEmpty()) {
+                failure = this.mFailures.poll();
+                if (failure == DROP) {
+                    route(method, path, body);
+                    exchange.close(); // the bridge is not responding
+                    return;
+                }
+                response = error(((Number) failure.get("type")).intValue(), path, (String) failure.get("description"));
+            } else {
+                response = route(method, path, body);
+            }
+        }
+
+        send(exchange, status, Json.write(response));
+    }
+
+    /** @return true if the current request exceeds the rate limit. */
+    private boolean isRateLimited() {
+        long now;
+
+        if (this.mRateLimit <= 0) {
+            return false;
+        }
+
+        now = System.nanoTime();
+        while (!this.mRecentRequests.isEmpty() && now - this.mRecentRequests.peek() > 1000000000L) {
+            this.mRecentRequests.poll();
+        }
+        if (this.mRecentRequests.size() >= this.mRateLimit) {
+            return true;
+        }
+        this.mRecentRequests.add(now);
+
+        return false;
+    }
+
+    /**
+     * Dispatches the request to the resource it addresses.
+     *
+     * @return the response to send.
+     */
+    private Object route(String method, String path, String body) {
+        String[] segments;
+        String username;
+        Map<String, Object> values;
+
+        // "/api/<username>/<resource>/<id>/<attribute>" splits into "", "api", "<username>", ...
+        segments = path.split("/");
+        if (segments.length < 2 || !"api".equals(segments[1])) {
+            return error(ERROR_RESOURCE_NOT_AVAILABLE, path, "resource, " + path + ", not available");
+        }
+
+        values = null;
+        if ("POST".equals(method) || "PUT".equals(method)) {
+            Object parsed;
+
+            try {
+                parsed = Json.parse(body);
+            } catch (IllegalArgumentException e) {
+                return error(ERROR_INVALID_JSON, path, "body contains invalid json");
+            }
+            if (!(parsed instanceof Map)) {
+                return error(ERROR_INVALID_JSON, path, "body contains invalid json");
+            }
+            values = castMap(parsed);
+        }
+
+        if (segments.length == 2) {
+            return "POST".equals(method) ? createUser(values) : methodNotAvailable(method, path);
+        }
+
+        username = segments[2];
+        if (!this.mWhitelist.containsKey(username)) {
+            return error(ERROR_UNAUTHORIZED_USER, "/", "unauthorized user");
+        }
+        if (segments.length == 3) {
+            return "GET".equals(method) ? getDatastore() : methodNotAvailable(method, path);
+        }
+
+        path = path.substring(path.indexOf('/', 5)); // the address without "/api/<username>"
+        if ("lights".equals(segments[3])) {
+            return routeResource(this.mLights, method, path, segments, values, false);
+        } else if ("groups".equals(segments[3])) {
+            return routeResource(this.mGroups, method, path, segments, values, true);
+        } else if ("schedules".equals(segments[3])) {
+            return routeResource(this.mSchedules, method, path, segments, values, true);
+        } else if ("config".equals(segments[3])) {
+            return routeConfig(method, path, segments);
+        }
+
+        return error(ERROR_RESOURCE_NOT_AVAILABLE, path, "resource, " + path + ", not available");
+    }
+
+    /**
+     * Handles the requests to lights, groups and schedules.
+     *
+     * @param resources the resources addressed by the request.
+     * @param path      the address of the request without "/api/&lt;username&gt;".
+     * @param segments  the segments of the full path.
+     * @param values    the parsed body of the request.
+     * @param creatable true if the resources can be created and deleted.
+     * @return the response to send.
+     */
+    private Object routeResource(Map<String, Map<String, Object>> resources, String method, String path,
+                                 String[] segments, Map<String, Object> values, boolean creatable) {
+        Map<String, Object> resource;
+
+        if (segments.length == 4) {
+            if ("GET".equals(method)) {
+                return copy(resources);
+            } else if ("POST".equals(method) && creatable) {
+                return create(resources, path, values);
+            }
+            return methodNotAvailable(method, path);
+        }
+
+        resource = resources.get(segments[4]);
+        if (resource == null) {
+            return error(ERROR_RESOURCE_NOT_AVAILABLE, path, "resource, " + path + ", not available");
+        }
+
+        if (segments.length == 5) {
+            if ("GET".equals(method)) {
+                return copy(resource);
+            } else if ("PUT".equals(method)) {
+                return update(resource, path, values);
+            } else if ("DELETE".equals(method) && creatable) {
+                resources.remove(segments[4]);
+                this.mWriteCount++;
+                return success(path + " deleted");
+            }
+            return methodNotAvailable(method, path);
+        }
+
+        // the state of a light or the action of a group
+        if (segments.length == 6 && "PUT".equals(method)
+                && ("state".equals(segments[5]) && resources == this.mLights
+                || "action".equals(segments[5]) && resources == this.mGroups)) {
+            return update(castMap(resource.get(segments[5])), path, values);
+        }
+
+        return error(ERROR_RESOURCE_NOT_AVAILABLE, path, "resource, " + path + ", not available");
+    }
+
+    private Object routeConfig(String method, String path, String[] segments) {
+        if (segments.length == 4 && "GET".equals(method)) {
+            Map<String, Object> result;
+
+            result = new LinkedHashMap<String, Object>();
+            result.put("name", "Emulated bridge");
+            result.put("apiversion", "1.2.1");
+            result.put("swversion", "01012917");
+            result.put("linkbutton", this.mLinkButtonPressed);
+            result.put("whitelist", copy(this.mWhitelist));
+            return result;
+        } else if (segments.length == 6 && "whitelist".equals(segments[4]) && "DELETE".equals(method)) {
+            if (this.mWhitelist.remove(segments[5]) == null) {
+                return error(ERROR_RESOURCE_NOT_AVAILABLE, path, "resource, " + path + ", not available");
+            }
+            this.mWriteCount++;
+            return success(path + " deleted");
+        }
+
+        return methodNotAvailable(method, path);
+    }
+
+    private Object createUser(Map<String, Object> values) {
+        Object username;
+        Map<String, Object> result;
+
+        if (values.get("devicetype") == null) {
+            return error(ERROR_MISSING_PARAMETERS, "", "invalid/missing parameters in body");
+        }
+        if (!this.mLinkButtonPressed) {
+            return error(ERROR_LINK_BUTTON_NOT_PRESSED, "", "link button not pressed");
+        }
+
+        username = values.get("username");
+        if (username == null) {
+            username = "user" + nextId();
+        }
+        addUser(username.toString());
+        this.mLinkButtonPressed = false;
+        this.mWriteCount++;
+
+        result = new LinkedHashMap<String, Object>();
+        result.put("username", username);
+
+        return success(result);
+    }
+
+    private Object getDatastore() {
+        Map<String, Object> result;
+
+        result = new LinkedHashMap<String, Object>();
+        result.put("lights", copy(this.mLights));
+        result.put("groups", copy(this.mGroups));
+        result.put("schedules", copy(this.mSchedules));
+        result.put("config", routeConfig("GET", "/config", new String[]{"", "api", "", "config"}));
+
+        return result;
+    }
+
+    private Object create(Map<String, Map<String, Object>> resources, String path, Map<String, Object> values) {
+        Map<String, Object> result;
+        String id;
+
+        if (resources == this.mSchedules) {
+            if (values.get("command") == null || values.get("time") == null && values.get("localtime") == null) {
+                return error(ERROR_MISSING_PARAMETERS, path, "invalid/missing parameters in body");
+            }
+            values.put("status", "enabled");
+        } else if (values.get("name") == null || values.get("lights") == null) {
+            return error(ERROR_MISSING_PARAMETERS, path, "invalid/missing parameters in body");
+        } else {
+            values.put("action", new LinkedHashMap<String, Object>());
+        }
+
+        id = nextId();
+        resources.put(id, values);
+        this.mWriteCount++;
+
+        result = new LinkedHashMap<String, Object>();
+        result.put("id", id);
+
+        return success(result);
+    }
+
+    /** Changes the fields of the resource and answers with one "success" entry per field. */
+    private Object update(Map<String, Object> resource, String path, Map<String, Object> values) {
+        List<Object> result;
+
+        result = new ArrayList<Object>();
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            Map<String, Object> field;
+
+            resource.put(value.getKey(), value.getValue());
+            field = new LinkedHashMap<String, Object>();
+            field.put(path + "/" + value.getKey(), value.getValue());
+            result.add(Collections.singletonMap("success", field));
+        }
+        this.mWriteCount++;
+
+        return result;
+    }
+
+    private String nextId() {
+        return String.valueOf(this.mNextId++);
+    }
+
+    private static Object methodNotAvailable(String method, String path) {
+        return error(ERROR_METHOD_NOT_AVAILABLE, path, "method, " + method + ", not available for resource, " + path);
+    }
+
+    private static List<Object> error(int type, String address, String description) {
+        Map<String, Object> error;
+
+        error = new LinkedHashMap<String, Object>();
+        error.put("type", (long) type);
+        error.put("address", address);
+        error.put("description", description);
+
+        return Collections.<Object>singletonList(Collections.singletonMap("error", error));
+    }
+
+    private static List<Object> success(Object value) {
+        return Collections.<Object>singletonList(Collections.singletonMap("success", value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> castMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    /** @return a deep copy, so the callers can't change the state of the bridge. */
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T value) {
+        return (T) Json.parse(Json.write(value));
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream result;
+        byte[] buffer;
+        int read;
+
+        result = new ByteArrayOutputStream();
+        buffer = new byte[4096];
+        while ((read = in.read(buffer)) >= 0) {
+            result.write(buffer, 0, read);
+        }
+
+        return result.toString("UTF-8");
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes;
+        OutputStream out;
+
+        bytes = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/* TODO: license */
+package org.github.gentlewake.emulator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the requests and responses of the Hue API, so the emulator runs without any dependencies.
+ * Objects are read into {@link LinkedHashMap}s (keeping the order of their fields), arrays into {@link List}s,
+ * numbers into {@link Long}s or {@link Double}s.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class Json {
+
+    /** The text being parsed. */
+    private final String mText;
+
+    /** The position of the next character to parse. */
+    private int mPos;
+
+    /** Utility classes should never be instantiated (from the outside). */
+    private Json(String text) {
+        this.mText = text;
+    }
+
+    /**
+     * @param text the JSON text.
+     * @return the value the text describes.
+     * @throws IllegalArgumentException if the text is not valid JSON.
+     */
+    public static Object parse(String text) {
+        Json parser;
+        Object result;
+
+        parser = new Json(text);
+        result = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.mPos < text.length()) {
+            throw parser.error("Unexpected trailing characters");
+        }
+
+        return result;
+    }
+
+    /**
+     * @param value a map, list, string, number, boolean or <code>null</code>.
+     * @return the value as JSON text.
+     */
+    public static String write(Object value) {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        write(value, result);
+
+        return result.toString();
+    }
+
+    private static void write(Object value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Map) {
+            boolean first;
+
+            first = true;
+            out.append('{');
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(String.valueOf(entry.getKey()), out);
+                out.append(':');
+                write(entry.getValue(), out);
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            boolean first;
+
+            first = true;
+            out.append('[');
+            for (Object element : (List<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                write(element, out);
+            }
+            out.append(']');
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else {
+            writeString(value.toString(), out);
+        }
+    }
+
+    private static void writeString(String value, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c;
+
+            c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private Object readValue() {
+        char c;
+
+        skipWhitespace();
+        if (this.mPos >= this.mText.length()) {
+            throw error("Unexpected end of input");
+        }
+
+        c = this.mText.charAt(this.mPos);
+        if (c == '{') {
+            return readObject();
+        } else if (c == '[') {
+            return readArray();
+        } else if (c == '"') {
+            return readString();
+        } else if (this.mText.startsWith("true", this.mPos)) {
+            this.mPos += 4;
+            return Boolean.TRUE;
+        } else if (this.mText.startsWith("false", this.mPos)) {
+            this.mPos += 5;
+            return Boolean.FALSE;
+        } else if (this.mText.startsWith("null", this.mPos)) {
+            this.mPos += 4;
+            return null;
+        } else {
+            return readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> result;
+
+        result = new LinkedHashMap<String, Object>();
+        this.mPos++; // {
+        skipWhitespace();
+        if (peek() == '}') {
+            this.mPos++;
+            return result;
+        }
+        while (true) {
+            String name;
+
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("Expected the name of a field");
+            }
+            name = readString();
+            skipWhitespace();
+            expect(':');
+            result.put(name, readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                this.mPos++;
+            } else {
+                expect('}');
+                return result;
+            }
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> result;
+
+        result = new ArrayList<Object>();
+        this.mPos++; // [
+        skipWhitespace();
+        if (peek() == ']') {
+            this.mPos++;
+            return result;
+        }
+        while (true) {
+            result.add(readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                this.mPos++;
+            } else {
+                expect(']');
+                return result;
+            }
+        }
+    }
+
+    private String readString() {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        this.mPos++; // "
+        while (true) {
+            char c;
+
+            if (this.mPos >= this.mText.length()) {
+                throw error("Unterminated string");
+            }
+            c = this.mText.charAt(this.mPos++);
+            if (c == '"') {
+                return result.toString();
+            } else if (c == '\\') {
+                c = this.mText.charAt(this.mPos++);
+                switch (c) {
+                    case 'b':
+                        result.append('\b');
+                        break;
+                    case 'f':
+                        result.append('\f');
+                        break;
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 'r':
+                        result.append('\r');
+                        break;
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'u':
+                        result.append((char) Integer.parseInt(this.mText.substring(this.mPos, this.mPos + 4), 16));
+                        this.mPos += 4;
+                        break;
+                    default:
+                        result.append(c); // ", \ and /
+                }
+            } else {
+                result.append(c);
+            }
+        }
+    }
+
+    private Number readNumber() {
+        int start;
+        String number;
+
+        start = this.mPos;
+        while (this.mPos < this.mText.length() && "+-0123456789.eE".indexOf(this.mText.charAt(this.mPos)) >= 0) {
+            this.mPos++;
+        }
+        number = this.mText.substring(start, this.mPos);
+        if (number.isEmpty()) {
+            throw error("Unexpected character");
+        }
+
+        try {
+            if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0) {
+                return Double.valueOf(number);
+            }
+            return Long.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + number);
+        }
+    }
+
+    private void skipWhitespace() {
+        while (this.mPos < this.mText.length() && Character.isWhitespace(this.mText.charAt(this.mPos))) {
+            this.mPos++;
+        }
+    }
+
+    private char peek() {
+        if (this.mPos >= this.mText.length()) {
+            throw error("Unexpected end of input");
+        }
+        return this.mText.charAt(this.mPos);
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        this.mPos++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + this.mPos);
+    }
+}
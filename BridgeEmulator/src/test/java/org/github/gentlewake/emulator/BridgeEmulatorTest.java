@@ -0,0 +1,170 @@
+/* TODO: license */
+package org.github.gentlewake.emulator;
+
+import com.philips.lighting.model.PHLightState;
+import com.philips.lighting.model.PHSchedule;
+
+import org.github.gentlewake.hue.HueApiException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the {@link BridgeEmulator} answers like a bridge, so the budgets of {@link SyncSloTest} mean something.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class BridgeEmulatorTest {
+
+    private static final String USERNAME = "gentlewake-test";
+
+    private BridgeEmulator mBridge;
+
+    private EmulatorClient mClient;
+
+    private String mGroupId;
+
+    @Before
+    public void setUp() throws IOException {
+        this.mBridge = new BridgeEmulator();
+        this.mBridge.addUser(USERNAME);
+        this.mGroupId = this.mBridge.addGroup("GentleWake", this.mBridge.addLight("Bedroom"));
+        this.mBridge.start();
+        this.mClient = new EmulatorClient(this.mBridge.getAddress(), USERNAME);
+    }
+
+    @After
+    public void tearDown() {
+        this.mBridge.stop();
+    }
+
+    @Test
+    public void schedulesAreStoredAsSent() throws IOException {
+        PHSchedule schedule;
+        List<PHSchedule> schedules;
+        String id;
+
+        schedule = createSchedule("GentleWake on");
+        id = this.mClient.createSchedule(schedule);
+        schedules = this.mClient.getSchedules();
+
+        assertEquals(1, schedules.size());
+        assertEquals(id, schedules.get(0).getIdentifier());
+        assertEquals(schedule.getName(), schedules.get(0).getName());
+        assertEquals(schedule.getDate(), schedules.get(0).getDate());
+        assertEquals(this.mGroupId, schedules.get(0).getGroupIdentifier());
+        assertEquals(120, schedules.get(0).getLightState().getBrightness());
+        assertEquals(1, this.mBridge.getWriteCount());
+    }
+
+    @Test
+    public void removedScheduleIsNotAvailable() throws IOException {
+        String id;
+
+        id = this.mClient.createSchedule(createSchedule("GentleWake on"));
+        this.mClient.removeSchedule(id);
+
+        assertEquals(0, this.mClient.getSchedules().size());
+        assertError(BridgeEmulator.ERROR_RESOURCE_NOT_AVAILABLE, new Request() {
+            @Override
+            public void send() throws IOException {
+                PHSchedule schedule;
+
+                schedule = createSchedule("GentleWake on");
+                schedule.setIdentifier("99");
+                mClient.updateSchedule(schedule);
+            }
+        });
+    }
+
+    @Test
+    public void unknownUserIsRejected() throws IOException {
+        this.mClient = new EmulatorClient(this.mBridge.getAddress(), "stranger");
+
+        assertError(BridgeEmulator.ERROR_UNAUTHORIZED_USER, new Request() {
+            @Override
+            public void send() throws IOException {
+                mClient.getSchedules();
+            }
+        });
+    }
+
+    @Test
+    public void injectedErrorsChangeNothing() throws IOException {
+        this.mBridge.failNext(1, BridgeEmulator.ERROR_INTERNAL, "Internal error, 503");
+
+        assertError(BridgeEmulator.ERROR_INTERNAL, new Request() {
+            @Override
+            public void send() throws IOException {
+                mClient.createSchedule(createSchedule("GentleWake on"));
+            }
+        });
+        assertEquals(0, this.mBridge.getWriteCount());
+        assertEquals(0, this.mClient.getSchedules().size());
+    }
+
+    @Test
+    public void requestsAboveTheRateLimitAreRejected() throws IOException {
+        this.mBridge.setRateLimit(2);
+        this.mClient.getSchedules();
+        this.mClient.getSchedules();
+
+        assertError(BridgeEmulator.ERROR_INTERNAL, new Request() {
+            @Override
+            public void send() throws IOException {
+                mClient.getSchedules();
+            }
+        });
+    }
+
+    @Test
+    public void latencyIsAddedToEachRequest() throws IOException {
+        long start;
+        long elapsed;
+
+        this.mBridge.setLatencyMillis(100);
+        start = System.nanoTime();
+        this.mClient.getSchedules();
+        this.mClient.getSchedules();
+        elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("requests took " + elapsed + "ms", elapsed >= 200);
+    }
+
+    private PHSchedule createSchedule(String name) {
+        PHSchedule result;
+        PHLightState lightState;
+
+        lightState = new PHLightState();
+        lightState.setOn(true);
+        lightState.setBrightness(120);
+        result = new PHSchedule(name);
+        result.setGroupIdentifier(this.mGroupId);
+        result.setLightState(lightState);
+        result.setDate(new Date((System.currentTimeMillis() / 1000 + 3600) * 1000));
+
+        return result;
+    }
+
+    private static void assertError(int type, Request request) throws IOException {
+        try {
+            request.send();
+            fail("Expected error " + type);
+        } catch (HueApiException e) {
+            assertEquals(type, e.getType());
+        }
+    }
+
+    /** A request that is expected to fail. */
+    private interface Request {
+        void send() throws IOException;
+    }
+}
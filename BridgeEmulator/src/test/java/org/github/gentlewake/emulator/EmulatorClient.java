@@ -0,0 +1,242 @@
+/* TODO: license */
+package org.github.gentlewake.emulator;
+
+import com.philips.lighting.model.PHLightState;
+import com.philips.lighting.model.PHSchedule;
+
+import org.github.gentlewake.hue.HueApiException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Talks to the {@link BridgeEmulator} the way the <code>HueRestClient</code> of the app talks to the bridge: the same
+ * endpoints, the same serialization of schedules and the same errors. The client of the app is built on the JSON
+ * classes of Android, which don't run on a plain JVM.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+class EmulatorClient {
+
+    /** The format of the (UTC) time of a schedule, as used by the bridge. */
+    private static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
+    static {
+        // the JVM resends a POST whose answer got lost by itself, the tests want to see every single request
+        System.setProperty("sun.net.http.retryPost", "false");
+    }
+
+    private final String mUsername;
+
+    private final String mBaseUrl;
+
+    EmulatorClient(String address, String username) {
+        this.mUsername = username;
+        this.mBaseUrl = "http://" + address + "/api/" + username;
+    }
+
+    /** @return all schedules of the bridge. */
+    List<PHSchedule> getSchedules() throws IOException {
+        List<PHSchedule> result;
+        Map<String, Object> schedules;
+
+        result = new ArrayList<PHSchedule>();
+        schedules = castMap(execute("GET", "/schedules", null));
+        for (Map.Entry<String, Object> entry : schedules.entrySet()) {
+            result.add(readSchedule(entry.getKey(), castMap(entry.getValue())));
+        }
+
+        return result;
+    }
+
+    /** @return the identifier the bridge assigned to the new schedule. */
+    String createSchedule(PHSchedule schedule) throws IOException {
+        List<?> response;
+
+        response = (List<?>) execute("POST", "/schedules", writeSchedule(schedule));
+        return (String) castMap(castMap(response.get(0)).get("success")).get("id");
+    }
+
+    void updateSchedule(PHSchedule schedule) throws IOException {
+        execute("PUT", "/schedules/" + schedule.getIdentifier(), writeSchedule(schedule));
+    }
+
+    void removeSchedule(String scheduleId) throws IOException {
+        execute("DELETE", "/schedules/" + scheduleId, null);
+    }
+
+    /**
+     * Sends the request and returns the parsed response. Error responses are turned into a {@link HueApiException}.
+     */
+    private Object execute(String method, String path, Map<String, Object> body) throws IOException {
+        HttpURLConnection connection;
+        InputStream in;
+        Object result;
+
+        connection = (HttpURLConnection) new URL(this.mBaseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(3 * 1000);
+        connection.setReadTimeout(5 * 1000);
+        if (body != null) {
+            OutputStream out;
+
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            out = connection.getOutputStream();
+            try {
+                out.write(Json.write(body).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+
+        in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        try {
+            result = Json.parse(read(in));
+        } finally {
+            in.close();
+        }
+
+        if (result instanceof List && !((List<?>) result).isEmpty()
+                && castMap(((List<?>) result).get(0)).containsKey("error")) {
+            Map<String, Object> error;
+
+            error = castMap(castMap(((List<?>) result).get(0)).get("error"));
+            throw new HueApiException(((Number) error.get("type")).intValue(), (String) error.get("address"),
+                    (String) error.get("description"));
+        }
+
+        return result;
+    }
+
+    private Map<String, Object> writeSchedule(PHSchedule schedule) {
+        Map<String, Object> result;
+        Map<String, Object> command;
+        Map<String, Object> body;
+        PHLightState lightState;
+
+        result = new LinkedHashMap<String, Object>();
+        if (schedule.getName() != null) {
+            result.put("name", schedule.getName());
+        }
+        if (schedule.getDescription() != null && schedule.getDescription().length() > 0) {
+            result.put("description", schedule.getDescription());
+        }
+        if (schedule.getDate() != null) {
+            result.put("time", createTimeFormat().format(schedule.getDate()));
+        }
+
+        body = new LinkedHashMap<String, Object>();
+        lightState = schedule.getLightState();
+        if (lightState != null) {
+            if (lightState.isOn() != null) {
+                body.put("on", lightState.isOn());
+            }
+            if (lightState.getBrightness() != PHLightState.VALUE_NOT_SET) {
+                body.put("bri", lightState.getBrightness());
+            }
+            if (lightState.getTransitionTime() != PHLightState.VALUE_NOT_SET) {
+                body.put("transitiontime", lightState.getTransitionTime());
+            }
+            if (lightState.getCt() != PHLightState.VALUE_NOT_SET) {
+                body.put("ct", lightState.getCt());
+            }
+        }
+        command = new LinkedHashMap<String, Object>();
+        command.put("address", "/api/" + this.mUsername + "/groups/" + schedule.getGroupIdentifier() + "/action");
+        command.put("method", "PUT");
+        command.put("body", body);
+        result.put("command", command);
+
+        return result;
+    }
+
+    private static PHSchedule readSchedule(String scheduleId, Map<String, Object> values) {
+        PHSchedule result;
+        Map<String, Object> command;
+
+        result = new PHSchedule((String) values.get("name"));
+        result.setIdentifier(scheduleId);
+        result.setDescription((String) values.get("description"));
+        if (values.get("time") != null) {
+            try {
+                result.setDate(createTimeFormat().parse((String) values.get("time")));
+            } catch (ParseException e) {
+                result.setDate(null);
+            }
+        }
+
+        command = castMap(values.get("command"));
+        if (command != null) {
+            String[] segments;
+            Map<String, Object> body;
+            PHLightState lightState;
+
+            segments = ((String) command.get("address")).split("/");
+            for (int i = 0; i < segments.length - 1; i++) {
+                if ("groups".equals(segments[i])) {
+                    result.setGroupIdentifier(segments[i + 1]);
+                }
+            }
+
+            body = castMap(command.get("body"));
+            lightState = new PHLightState();
+            if (body.get("on") != null) {
+                lightState.setOn((Boolean) body.get("on"));
+            }
+            if (body.get("bri") != null) {
+                lightState.setBrightness(((Number) body.get("bri")).intValue());
+            }
+            if (body.get("transitiontime") != null) {
+                lightState.setTransitionTime(((Number) body.get("transitiontime")).intValue());
+            }
+            if (body.get("ct") != null) {
+                lightState.setCt(((Number) body.get("ct")).intValue());
+            }
+            result.setLightState(lightState);
+        }
+
+        return result;
+    }
+
+    private static DateFormat createTimeFormat() {
+        DateFormat result;
+
+        result = new SimpleDateFormat(TIME_FORMAT, Locale.US);
+        result.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return result;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream result;
+        byte[] buffer;
+        int read;
+
+        result = new ByteArrayOutputStream();
+        buffer = new byte[4096];
+        while ((read = in.read(buffer)) >= 0) {
+            result.write(buffer, 0, read);
+        }
+
+        return result.toString("UTF-8");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> castMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+}
@@ -0,0 +1,294 @@
+/* TODO: license */
+package org.github.gentlewake.emulator;
+
+import android.content.Context;
+import android.provider.Settings;
+
+import org.github.gentlewake.data.ApplicationPreferences;
+import org.github.gentlewake.hue.CurveCompiler;
+import org.github.gentlewake.hue.RestBridge;
+import org.github.gentlewake.hue.SyncManager;
+import org.github.gentlewake.hue.SyncResult;
+import org.github.gentlewake.hue.WakeCurve;
+import org.github.gentlewake.util.ValueCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the sync of an alarm against the {@link BridgeEmulator} and checks the budgets the sync has to stay within:
+ * how many writes it sends and how long "alarm changed, schedules updated" takes. The sync is the one of the app:
+ * the {@link SyncManager} talks to the emulator through the {@link RestBridge}, like the background sync does. The
+ * few Android classes it needs are replaced by the shims of this module, e.g. the next alarm is read from the
+ * settings of the shim {@link Context}.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class SyncSloTest {
+
+    private static final String USERNAME = "gentlewake-test";
+
+    private static final String DEVICE_NAME = "emulator";
+
+    private static final String LIGHT_GROUP = "GentleWake";
+
+    /** A curve that needs several schedules, so the cost of each of them shows. */
+    private static final String CURVE = "0:1:454 10:40:420 20:150:370 30:254:250";
+
+    private static final int CURVE_TOLERANCE_PERCENT = 5;
+
+    /** The time the bridge takes to answer each request. */
+    private static final long LATENCY_MILLIS = 20;
+
+    /** The time the sync may spend per request on top of the latency of the bridge. */
+    private static final long OVERHEAD_BUDGET_MILLIS = 50;
+
+    /** The time the sync may spend planning and reconciling the schedules. */
+    private static final long PLANNING_BUDGET_MILLIS = 200;
+
+    /**
+     * The time a sync may take if the bridge rejects or drops some of its requests, including the backoff and the
+     * socket timeout of the REST client.
+     */
+    private static final long RETRY_BUDGET_MILLIS = 10 * 1000;
+
+    /** The number of requests {@link RestBridge#load()} sends: the groups and the schedules. */
+    private static final int LOAD_REQUESTS = 2;
+
+    /** The app keeps its state in singletons, so all tests share one context, like the runs of the app do. */
+    private static Context sContext;
+
+    private BridgeEmulator mBridge;
+
+    private ApplicationPreferences mPrefs;
+
+    /** The next alarm, as the alarm clock formats it into the settings. */
+    private Calendar mAlarm;
+
+    @Before
+    public void setUp() throws IOException {
+        // tomorrow at 06:30, the format only has minutes and the alarm must not be today
+        this.mAlarm = Calendar.getInstance();
+        this.mAlarm.add(Calendar.DATE, 1);
+        this.mAlarm.set(Calendar.HOUR_OF_DAY, 6);
+        this.mAlarm.set(Calendar.MINUTE, 30);
+
+        if (sContext == null) {
+            // the first sync loads the classes of the app and the http stack, which the app has loaded long before
+            // it syncs
+            sContext = new Context();
+            this.mBridge = startBridge();
+            connect(this.mBridge);
+            sync();
+            this.mBridge.stop();
+        }
+
+        this.mBridge = startBridge();
+        connect(this.mBridge);
+        this.mBridge.resetCounters();
+    }
+
+    @After
+    public void tearDown() {
+        this.mBridge.stop();
+    }
+
+    @Test
+    public void firstSyncCreatesEachScheduleOnce() throws IOException {
+        long elapsed;
+
+        elapsed = sync();
+
+        assertEquals(getScheduleCount(), this.mBridge.getWriteCount());
+        assertEquals(getScheduleCount(), this.mBridge.getSchedules().size());
+        assertWithinBudget(elapsed);
+    }
+
+    @Test
+    public void unchangedAlarmSendsNoWrites() throws IOException {
+        long elapsed;
+
+        sync();
+        this.mBridge.resetCounters();
+
+        elapsed = sync();
+
+        assertEquals(0, this.mBridge.getWriteCount());
+        assertEquals(LOAD_REQUESTS, this.mBridge.getRequestCount());
+        assertWithinBudget(elapsed);
+    }
+
+    @Test
+    public void movedAlarmUpdatesEachScheduleOnce() throws IOException {
+        Set<String> scheduleIds;
+        long elapsed;
+
+        sync();
+        scheduleIds = new HashSet<String>(this.mBridge.getSchedules().keySet());
+        this.mBridge.resetCounters();
+        this.mAlarm.add(Calendar.MINUTE, 15);
+        setNextAlarm(this.mAlarm);
+
+        elapsed = sync();
+
+        assertEquals(getScheduleCount(), this.mBridge.getWriteCount());
+        assertEquals(scheduleIds, this.mBridge.getSchedules().keySet());
+        for (String request : this.mBridge.getRequestLog()) {
+            assertFalse(request, request.startsWith("POST"));
+        }
+        assertWithinBudget(elapsed);
+    }
+
+    @Test
+    public void slowBridgeStaysWithinBudget() throws IOException {
+        long elapsed;
+
+        this.mBridge.setLatencyMillis(10 * LATENCY_MILLIS);
+
+        elapsed = sync();
+
+        assertEquals(getScheduleCount(), this.mBridge.getWriteCount());
+        assertTrue("sync took " + elapsed + "ms", elapsed <= PLANNING_BUDGET_MILLIS
+                + this.mBridge.getRequestCount() * (10 * LATENCY_MILLIS + OVERHEAD_BUDGET_MILLIS));
+    }
+
+    @Test
+    public void rateLimitedBridgeGetsEveryScheduleOnce() throws IOException {
+        long elapsed;
+
+        this.mBridge.setRateLimit(3);
+
+        elapsed = sync();
+
+        assertEquals(getScheduleCount(), this.mBridge.getWriteCount());
+        assertEquals(getScheduleCount(), this.mBridge.getSchedules().size());
+        assertTrue("sync took " + elapsed + "ms", elapsed <= RETRY_BUDGET_MILLIS);
+    }
+
+    @Test
+    public void failedWritesAreRetried() throws IOException {
+        long elapsed;
+
+        sync();
+        this.mBridge.resetCounters();
+        this.mAlarm.add(Calendar.MINUTE, 15);
+        setNextAlarm(this.mAlarm);
+
+        elapsed = sync(BridgeEmulator.ERROR_INTERNAL);
+
+        assertEquals(getScheduleCount(), this.mBridge.getWriteCount());
+        assertEquals(LOAD_REQUESTS + 1 + getScheduleCount(), this.mBridge.getRequestCount()); // one write failed
+        assertTrue("sync took " + elapsed + "ms", elapsed <= RETRY_BUDGET_MILLIS);
+    }
+
+    @Test
+    public void droppedCreateIsNotSentTwice() throws IOException {
+        long elapsed;
+
+        elapsed = sync(-1);
+
+        assertEquals(getScheduleCount(), this.mBridge.getWriteCount());
+        assertEquals(getScheduleCount(), this.mBridge.getSchedules().size());
+        assertTrue("sync took " + elapsed + "ms", elapsed <= RETRY_BUDGET_MILLIS);
+    }
+
+    private static BridgeEmulator startBridge() throws IOException {
+        BridgeEmulator result;
+
+        result = new BridgeEmulator();
+        result.addUser(USERNAME);
+        result.addGroup(LIGHT_GROUP, result.addLight("Bedroom 1"), result.addLight("Bedroom 2"));
+        result.setLatencyMillis(LATENCY_MILLIS);
+        result.start();
+
+        return result;
+    }
+
+    /**
+     * Sets the bridge up as the one the app is connected to, and the alarm of the test as its next alarm. Every test
+     * gets a bridge of its own, so the schedule ids the previous tests stored don't apply to it.
+     */
+    private void connect(BridgeEmulator bridge) {
+        this.mPrefs = ApplicationPreferences.getInstance(sContext);
+        this.mPrefs.setLastConnectedIPAddress(bridge.getAddress());
+        this.mPrefs.setUsername(USERNAME);
+        this.mPrefs.setBridgeDeviceName(DEVICE_NAME);
+        this.mPrefs.setLightGroupName(LIGHT_GROUP);
+        this.mPrefs.setWakeCurve(CURVE);
+        this.mPrefs.setCurveTolerancePercent(CURVE_TOLERANCE_PERCENT);
+        setNextAlarm(this.mAlarm);
+    }
+
+    /**
+     * @return the number of schedules an alarm needs: the steps of the curve and the one turning the lights off. The
+     * curve is compiled like the sync manager compiles it.
+     */
+    private int getScheduleCount() {
+        CurveCompiler.Result curve;
+
+        curve = CurveCompiler.compile(WakeCurve.parse(CURVE), CURVE_TOLERANCE_PERCENT / 100.0,
+                ApplicationPreferences.MAX_CURVE_SCHEDULES);
+        return curve.getSteps().size() + 1;
+    }
+
+    private void assertWithinBudget(long elapsed) {
+        long budget;
+
+        budget = PLANNING_BUDGET_MILLIS + this.mBridge.getRequestCount() * (LATENCY_MILLIS + OVERHEAD_BUDGET_MILLIS);
+        assertTrue("sync took " + elapsed + "ms, the budget is " + budget + "ms", elapsed <= budget);
+    }
+
+    private long sync() throws IOException {
+        return sync(0);
+    }
+
+    /**
+     * Syncs the next alarm, the way the background sync does: the schedules are loaded from the bridge, then the
+     * sync manager sends its changes and the test waits until all of them have been answered.
+     *
+     * @param failFirstWrite the error type to fail the first write with, -1 to drop it after the bridge applied it
+     *                       and 0 to not fail it.
+     * @return the time the sync took in milliseconds.
+     */
+    private long sync(int failFirstWrite) throws IOException {
+        long start;
+        RestBridge bridge;
+        SyncResult result;
+
+        start = System.nanoTime();
+        bridge = new RestBridge(this.mBridge.getAddress(), USERNAME);
+        bridge.load();
+        if (failFirstWrite > 0) {
+            this.mBridge.failNext(1, failFirstWrite, "Internal error, 503");
+        } else if (failFirstWrite < 0) {
+            this.mBridge.dropNext(1);
+        }
+        result = new SyncManager(sContext, bridge).syncAlarm(new ValueCallback<String>() {
+            @Override
+            public void go(String message) {
+                // the messages are for the user
+            }
+        });
+
+        assertTrue("sync did not finish: " + result, result.await(RETRY_BUDGET_MILLIS));
+        assertTrue("sync failed: " + result.getErrors(), result.isSuccess());
+
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /** Sets the next alarm the way the alarm clock of Android 4.4 does, e.g. "Tue 06:30". */
+    private static void setNextAlarm(Calendar alarm) {
+        Settings.System.putString(sContext.getContentResolver(), Settings.System.NEXT_ALARM_FORMATTED,
+                String.format(Locale.getDefault(), "%ta %<tH:%<tM", alarm));
+    }
+}
@@ -0,0 +1,29 @@
+/* TODO: license */
+package org.github.gentlewake.broadcastreceivers;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.WakefulBroadcastReceiver;
+
+import org.github.gentlewake.services.AlarmSynchronizationService;
+import org.github.gentlewake.services.SyncScheduler;
+import org.github.gentlewake.util.EventLog;
+
+/**
+ * Receives the wake-up alarm of the {@link SyncScheduler} and starts the {@link AlarmSynchronizationService}. The
+ * alarm manager only keeps the device awake until this receiver returns, so the service is started with a wake lock
+ * that it releases once the synchronization has finished. Otherwise the device could go back to sleep before the
+ * service got to run.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class SyncAlarmReceiver extends WakefulBroadcastReceiver {
+
+    public static final String TAG = "GentleWake.SyncAlarm";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        EventLog.d(TAG, "Sync alarm went off, starting sync service.");
+        startWakefulService(context, new Intent(context, AlarmSynchronizationService.class));
+    }
+}
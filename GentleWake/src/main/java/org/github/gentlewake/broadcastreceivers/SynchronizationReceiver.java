@@ -7,14 +7,16 @@ import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
-import android.util.Log;
 
-import org.github.gentlewake.services.AlarmSynchronizationService;
+import org.github.gentlewake.hue.BridgeProbe;
+import org.github.gentlewake.services.SyncScheduler;
+import org.github.gentlewake.util.EventLog;
 
 /**
  * This BroadcastReceiver listens for events that should trigger the synchronization of the Hue schedule with the
  * alarm clock. Currently this is when either the WiFi is freshly connected (when returning bridgelist) or when the
- * alarm clock gets set to a new value.
+ * alarm clock gets set to a new value. The receiver does not start the synchronization itself, but hands it off to
+ * the {@link SyncScheduler}, so it returns right away.
  *
  * @author lorenz.fischer@gmail.com
  */
@@ -29,47 +31,35 @@ public class SynchronizationReceiver extends BroadcastReceiver {
 
         if (WifiManager.SUPPLICANT_CONNECTION_CHANGE_ACTION.equals(intent.getAction())) {
             if (intent.getBooleanExtra(WifiManager.EXTRA_SUPPLICANT_CONNECTED, false) == true) {
-                if (Log.isLoggable(TAG, Log.INFO)) {
-                    Log.i(TAG, "WiFi connection detected");
-                }
+                EventLog.i(TAG, "WiFi connection detected");
+                // the sync scheduler delays the sync, which gives the wifi connection time to initialize
                 doSync = true;
 
-                // introduce artificial 5 second lag, to give the wifi connection a bit more time to initialize
-                try {
-                    Thread.sleep(5 * 1000);
-                } catch (InterruptedException e) {
-                    // it doesn't matter if we were interrupted while waiting, so we don't do anything here
-                }
+                // we may be at home now, so the bridge has to be probed again
+                BridgeProbe.getInstance().invalidate();
             }
         } else {
             ConnectivityManager connManager;
             NetworkInfo mWifi;
 
-            if (Log.isLoggable(TAG, Log.INFO)) {
-                Log.i(TAG, "Sync intent received");
-            }
+            EventLog.i(TAG, "Sync intent received");
 
             connManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
             mWifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
 
             if (mWifi.isConnected()) {
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "WiFi is connected.");
-                }
+                EventLog.d(TAG, "WiFi is connected.");
                 doSync = true;
             } else {
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "WiFi not connected.");
-                }
+                EventLog.d(TAG, "WiFi not connected.");
             }
         }
 
         if (doSync) {
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "initiating alarm sync service.");
-            }
+            EventLog.d(TAG, "scheduling alarm sync service.");
 
-            context.startService(new Intent(context, AlarmSynchronizationService.class));
+            // bursts of triggers are collapsed into a single run of the service
+            SyncScheduler.requestSync(context);
         }
 
     }
@@ -0,0 +1,198 @@
+/* TODO: license */
+package org.github.gentlewake.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.util.Log;
+
+import java.util.Calendar;
+
+/**
+ * Remembers the alarms we have seen, so we can tell which of them repeat every week. For every day of the week, the
+ * history stores the time of the last alarm that went off on that day and the number of weeks in a row it was seen
+ * at the same time (the "streak"). An alarm that has been seen at the same time in at least {@link #MIN_STREAK}
+ * weeks is considered a recurring alarm, which lets the {@link org.github.gentlewake.hue.SyncManager} store it on
+ * the bridge as a recurring schedule instead of a schedule that only goes off once.
+ * <p/>
+ * The history is kept in its own shared preferences file, so recording an alarm doesn't notify the listeners of the
+ * application preferences.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class AlarmHistory {
+
+    private static final String TAG = "GentleWake.AlarmHistory";
+
+    /** The number of weeks in a row an alarm must have been seen at the same time to be considered recurring. */
+    public static final int MIN_STREAK = 2;
+
+    /** The name of the shared preferences file. */
+    private static final String PREFERENCES_NAME = "alarm_history";
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final String KEY_MINUTE = "minute_";
+
+    private static final String KEY_DAY = "day_";
+
+    private static final String KEY_STREAK = "streak_";
+
+    /** The singleton. */
+    private static AlarmHistory sInstance;
+
+    private final SharedPreferences mSharedPreferences;
+
+    /* The history, indexed by Calendar.DAY_OF_WEEK. Index 0 is unused. */
+
+    /** The minute of the day of the last alarm seen on a day of the week. */
+    private final int[] mMinutes;
+
+    /** The local day (days since the epoch) of the last alarm seen on a day of the week. */
+    private final long[] mDays;
+
+    /** The number of weeks in a row the alarm was seen at the same time, 0 if there is no alarm on that day. */
+    private final int[] mStreaks;
+
+    /** Reused for all computations, always accessed while holding the lock on this object. */
+    private final Calendar mCalendar;
+
+    public static synchronized AlarmHistory getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new AlarmHistory(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AlarmHistory(Context appContext) {
+        this.mSharedPreferences = appContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.mMinutes = new int[Calendar.SATURDAY + 1];
+        this.mDays = new long[Calendar.SATURDAY + 1];
+        this.mStreaks = new int[Calendar.SATURDAY + 1];
+        this.mCalendar = Calendar.getInstance();
+
+        for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY; day++) {
+            this.mMinutes[day] = this.mSharedPreferences.getInt(KEY_MINUTE + day, 0);
+            this.mDays[day] = this.mSharedPreferences.getLong(KEY_DAY + day, 0);
+            this.mStreaks[day] = this.mSharedPreferences.getInt(KEY_STREAK + day, 0);
+        }
+    }
+
+    /**
+     * Adds the next alarm of the phone to the history. Recording the same alarm more than once is harmless.
+     * <p/>
+     * As the alarm is the <em>next</em> alarm, there is no alarm between now and then. Recurring alarms that should
+     * have gone off in between have been turned off, so their streak is broken.
+     *
+     * @param nextAlarm the time of the next alarm in milliseconds since the epoch.
+     * @param now       the current time in milliseconds since the epoch.
+     */
+    public synchronized void record(long nextAlarm, long now) {
+        int dayOfWeek;
+        int minute;
+        long day;
+        long daysSinceLast;
+        Editor editor;
+
+        editor = this.mSharedPreferences.edit();
+
+        for (int d = Calendar.SUNDAY; d <= Calendar.SATURDAY; d++) {
+            if (this.mStreaks[d] > 0 && nextOccurrence(d, this.mMinutes[d], now) < nextAlarm) {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "The alarm on day " + d + " has been skipped, it is not recurring anymore");
+                }
+                this.mStreaks[d] = 0;
+                editor.putInt(KEY_STREAK + d, 0);
+            }
+        }
+
+        this.mCalendar.setTimeInMillis(nextAlarm);
+        dayOfWeek = this.mCalendar.get(Calendar.DAY_OF_WEEK);
+        minute = this.mCalendar.get(Calendar.HOUR_OF_DAY) * 60 + this.mCalendar.get(Calendar.MINUTE);
+        day = toLocalDay(nextAlarm);
+
+        daysSinceLast = day - this.mDays[dayOfWeek];
+        if (this.mStreaks[dayOfWeek] > 0 && minute == this.mMinutes[dayOfWeek] && daysSinceLast == 0) {
+            return; // we have seen this alarm already
+        }
+
+        if (this.mStreaks[dayOfWeek] > 0 && minute == this.mMinutes[dayOfWeek] && daysSinceLast > 0
+                && daysSinceLast % 7 == 0) {
+            // the same time one (or more, if we didn't sync in between) weeks later
+            this.mStreaks[dayOfWeek]++;
+        } else {
+            this.mStreaks[dayOfWeek] = 1;
+        }
+        this.mMinutes[dayOfWeek] = minute;
+        this.mDays[dayOfWeek] = day;
+
+        editor.putInt(KEY_MINUTE + dayOfWeek, minute);
+        editor.putLong(KEY_DAY + dayOfWeek, day);
+        editor.putInt(KEY_STREAK + dayOfWeek, this.mStreaks[dayOfWeek]);
+        editor.apply();
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Alarm on day " + dayOfWeek + " at minute " + minute + " seen "
+                    + this.mStreaks[dayOfWeek] + " weeks in a row");
+        }
+    }
+
+    /**
+     * Finds the days of the week on which the alarm goes off at the same time as the given alarm, every week.
+     *
+     * @param nextAlarm the time of the next alarm in milliseconds since the epoch. It should have been passed to
+     *                  {@link #record(long, long)} before.
+     * @return the days of the week as a bit mask, with bit <code>1 &lt;&lt; Calendar.DAY_OF_WEEK</code> set for every
+     * day with a recurring alarm at the same time. 0 if the given alarm itself is not a recurring alarm.
+     */
+    public synchronized int getRecurringDays(long nextAlarm) {
+        int dayOfWeek;
+        int minute;
+        int result;
+
+        this.mCalendar.setTimeInMillis(nextAlarm);
+        dayOfWeek = this.mCalendar.get(Calendar.DAY_OF_WEEK);
+        minute = this.mCalendar.get(Calendar.HOUR_OF_DAY) * 60 + this.mCalendar.get(Calendar.MINUTE);
+
+        result = 0;
+        if (isRecurring(dayOfWeek, minute)) {
+            for (int d = Calendar.SUNDAY; d <= Calendar.SATURDAY; d++) {
+                if (isRecurring(d, minute)) {
+                    result |= 1 << d;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private boolean isRecurring(int dayOfWeek, int minute) {
+        return this.mStreaks[dayOfWeek] >= MIN_STREAK && this.mMinutes[dayOfWeek] == minute;
+    }
+
+    /** @return the first time after <code>now</code> that falls on the given day of the week and minute of the day. */
+    private long nextOccurrence(int dayOfWeek, int minute, long now) {
+        int daysDiff;
+
+        this.mCalendar.setTimeInMillis(now);
+        daysDiff = dayOfWeek - this.mCalendar.get(Calendar.DAY_OF_WEEK);
+        if (daysDiff < 0) {
+            daysDiff += 7;
+        }
+        this.mCalendar.add(Calendar.DATE, daysDiff);
+        this.mCalendar.set(Calendar.HOUR_OF_DAY, minute / 60);
+        this.mCalendar.set(Calendar.MINUTE, minute % 60);
+        this.mCalendar.set(Calendar.SECOND, 0);
+        this.mCalendar.set(Calendar.MILLISECOND, 0);
+        if (this.mCalendar.getTimeInMillis() <= now) {
+            this.mCalendar.add(Calendar.DATE, 7);
+        }
+
+        return this.mCalendar.getTimeInMillis();
+    }
+
+    /** @return the number of days between the epoch and the given time, in the local time zone. */
+    private long toLocalDay(long millis) {
+        return (millis + this.mCalendar.getTimeZone().getOffset(millis)) / MILLIS_PER_DAY;
+    }
+}
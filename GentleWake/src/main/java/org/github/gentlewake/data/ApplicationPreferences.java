@@ -3,20 +3,35 @@ package org.github.gentlewake.data;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Build;
 import android.preference.PreferenceManager;
 
 import com.philips.lighting.hue.sdk.connection.impl.PHBridgeInternal;
 
 import org.github.gentlewake.R;
+import org.github.gentlewake.hue.CurveCompiler;
+import org.github.gentlewake.hue.WakeCurve;
 import org.github.gentlewake.util.Utils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * This class manages all settings of the application. It stores and retrieves all values from a shared datastore_preferences
- * object.
+ * object. The getters read from an immutable {@link PreferenceSnapshot}, which is refreshed whenever a value changes,
+ * so reading a setting neither touches the shared preferences nor parses numbers.
  */
 public class ApplicationPreferences {
 
+    /**
+     * The largest number of schedules the wake curve may use, including the one that turns the lights on. The
+     * schedule table of the bridge holds 100 schedules, which are shared by all apps and all phones.
+     */
+    public static final int MAX_CURVE_SCHEDULES = 8;
+
     /** Ths singleton */
     private static ApplicationPreferences instance = null;
 
@@ -25,7 +40,38 @@ public class ApplicationPreferences {
 
     private SharedPreferences mSharedPreferences = null;
 
-    private Editor mSharedPreferencesEditor = null;
+    /**
+     * All values as they are currently stored. The getters read from this snapshot, which is replaced whenever a
+     * value changes.
+     */
+    private volatile PreferenceSnapshot mSnapshot;
+
+    /**
+     * Refreshes the snapshot if the settings are changed elsewhere (e.g. in the settings screen). We have to keep a
+     * reference, as the shared preferences only keep a weak one.
+     */
+    private final OnSharedPreferenceChangeListener mChangeListener;
+
+    /*
+     * The keys of the preferences. They are resolved once, as the getters are called on every synchronization and
+     * resolving a string resource is not free.
+     */
+    private final String mKeyUsername;
+    private final String mKeyDeviceName;
+    private final String mKeyBridgeIp;
+    private final String mKeyLightGroup;
+    private final String mKeyScheduleIdOn;
+    private final String mKeyScheduleIdBrighten;
+    private final String mKeyScheduleIdOff;
+    private final String mKeyScheduleNameOn;
+    private final String mKeyScheduleNameBrighten;
+    private final String mKeyScheduleNameOff;
+    private final String mKeyTransitionMinutes;
+    private final String mKeySyncDelaySeconds;
+    private final String mKeySessionIdleSeconds;
+    private final String mKeyWakeCurve;
+    private final String mKeyCurveTolerance;
+    private final String mKeyScheduleIdCurve;
 
 
     public void create() {
@@ -41,9 +87,32 @@ public class ApplicationPreferences {
 
     private ApplicationPreferences(Context appContext) {
         mCtx = appContext;
+        mKeyUsername = appContext.getString(R.string.pref_key_username);
+        mKeyDeviceName = appContext.getString(R.string.pref_key_device_name);
+        mKeyBridgeIp = appContext.getString(R.string.pref_key_bridge_ip);
+        mKeyLightGroup = appContext.getString(R.string.pref_key_light_group);
+        mKeyScheduleIdOn = appContext.getString(R.string.pref_key_schedule_id_on);
+        mKeyScheduleIdBrighten = appContext.getString(R.string.pref_key_schedule_id_brighten);
+        mKeyScheduleIdOff = appContext.getString(R.string.pref_key_schedule_id_off);
+        mKeyScheduleNameOn = appContext.getString(R.string.pref_key_schedule_name_on);
+        mKeyScheduleNameBrighten = appContext.getString(R.string.pref_key_schedule_name_brighten);
+        mKeyScheduleNameOff = appContext.getString(R.string.pref_key_schedule_name_off);
+        mKeyTransitionMinutes = appContext.getString(R.string.pref_key_transition_minutes);
+        mKeySyncDelaySeconds = appContext.getString(R.string.pref_key_sync_delay_seconds);
+        mKeySessionIdleSeconds = appContext.getString(R.string.pref_key_session_idle_seconds);
+        mKeyWakeCurve = appContext.getString(R.string.pref_key_wake_curve);
+        mKeyCurveTolerance = appContext.getString(R.string.pref_key_curve_tolerance);
+        mKeyScheduleIdCurve = appContext.getString(R.string.pref_key_schedule_id_curve);
 
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
-        mSharedPreferencesEditor = mSharedPreferences.edit();
+        mChangeListener = new OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                refresh();
+            }
+        };
+        mSharedPreferences.registerOnSharedPreferenceChangeListener(mChangeListener);
+        refresh();
 
         // I used to have this.
         //appContext.getSharedPreferences(SHARED_PREFERENCES_STORE, Context.MODE_PRIVATE);
@@ -51,7 +120,7 @@ public class ApplicationPreferences {
 
 
     public String getUsername() {
-        String username = mSharedPreferences.getString(mCtx.getString(R.string.pref_key_username), null);
+        String username = mSnapshot.getUsername();
         if (username == null || username.equals("")) {
             username = PHBridgeInternal.generateUniqueKey();
             setUsername(username);  // Persist the username in the shared prefs
@@ -60,8 +129,7 @@ public class ApplicationPreferences {
     }
 
     public boolean setUsername(String username) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_username), username);
-        return (mSharedPreferencesEditor.commit());
+        return putString(mKeyUsername, username, true);
     }
 
     /**
@@ -75,7 +143,7 @@ public class ApplicationPreferences {
     public String getBridgeDeviceName() {
         String result;
 
-        result = mSharedPreferences.getString(mCtx.getString(R.string.pref_key_device_name), null);
+        result = mSnapshot.getDeviceName();
         if (result == null) {
             // don't put a space or an underscore.. I don't know why, but this causes trouble when connecting.
             result = mCtx.getString(R.string.app_name) + "-" + PHBridgeInternal.generateDeviceId();
@@ -90,8 +158,7 @@ public class ApplicationPreferences {
      * @see #getBridgeDeviceName()
      */
     public void setBridgeDeviceName(String bridgeDeviceName) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_device_name), bridgeDeviceName);
-        mSharedPreferencesEditor.apply();
+        putString(mKeyDeviceName, bridgeDeviceName, false);
     }
 
 
@@ -100,12 +167,37 @@ public class ApplicationPreferences {
      * has never been connected to a bridge.
      */
     public String getLastConnectedIPAddress() {
-        return mSharedPreferences.getString(mCtx.getString(R.string.pref_key_bridge_ip), null);
+        return mSnapshot.getBridgeIp();
     }
 
+    /**
+     * Changes the last connected bridge. The schedule ids of the previous bridge are kept under its address and the
+     * ids stored for the new bridge (if any) become the current ones, see {@link #getScheduleIdOn(String)}.
+     *
+     * @param ipAddress the address of the bridge the app is connected to now.
+     * @return true if the change has been written to disk.
+     */
     public boolean setLastConnectedIPAddress(String ipAddress) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_bridge_ip), ipAddress);
-        return (mSharedPreferencesEditor.commit());
+        String previous;
+        Editor editor;
+        boolean result;
+
+        previous = getLastConnectedIPAddress();
+        if (previous == null || ipAddress == null || previous.equals(ipAddress)) {
+            return putString(mKeyBridgeIp, ipAddress, true);
+        }
+
+        editor = mSharedPreferences.edit();
+        for (String key : getScheduleIdKeys()) {
+            editor.putString(bridgeKey(key, previous), mSharedPreferences.getString(key, null));
+            editor.putString(key, mSharedPreferences.getString(bridgeKey(key, ipAddress), null));
+            editor.remove(bridgeKey(key, ipAddress));
+        }
+        editor.putString(mKeyBridgeIp, ipAddress);
+        result = editor.commit();
+        refresh();
+
+        return result;
     }
 
     /**
@@ -115,7 +207,7 @@ public class ApplicationPreferences {
     public String getLightGroupName() {
         String result;
 
-        result = mSharedPreferences.getString(mCtx.getString(R.string.pref_key_light_group), null);
+        result = mSnapshot.getLightGroup();
         if (result == null) {
             result = mCtx.getString(R.string.app_name);
             setLightGroupName(result);
@@ -132,29 +224,28 @@ public class ApplicationPreferences {
     public void setLightGroupName(String groupName) {
         // todo: check if the old value exists on the bridge and implement some handling code to delete it (after
         // the user has been consulted.
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_light_group), groupName);
-        mSharedPreferencesEditor.apply();
+        putString(mKeyLightGroup, groupName, false);
     }
 
     /**
      * @return the id that should be used for the schedule turning the Hue lights on.
      */
     public String getScheduleIdOn() {
-        return mSharedPreferences.getString(mCtx.getString(R.string.pref_key_schedule_id_on), null);
+        return mSnapshot.getScheduleIdOn();
     }
 
     /**
      * @return the id that should be used for the schedule that increases the brightness of the hue lights.
      */
     public String getScheduleIdBrighten() {
-        return mSharedPreferences.getString(mCtx.getString(R.string.pref_key_schedule_id_brighten), null);
+        return mSnapshot.getScheduleIdBrighten();
     }
 
     /**
      * @return the id that should be used for the schedule turning the Hue lights off.
      */
     public String getScheduleIdOff() {
-        return mSharedPreferences.getString(mCtx.getString(R.string.pref_key_schedule_id_off), null);
+        return mSnapshot.getScheduleIdOff();
     }
 
     /**
@@ -163,8 +254,7 @@ public class ApplicationPreferences {
      * @param scheduleId the new schedule id to use by the app.
      */
     public void setScheduleIdOn(String scheduleId) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_schedule_id_on), scheduleId);
-        mSharedPreferencesEditor.apply();
+        putString(mKeyScheduleIdOn, scheduleId, false);
     }
 
     /**
@@ -173,8 +263,7 @@ public class ApplicationPreferences {
      * @param scheduleId the new schedule id to use by the app.
      */
     public void setScheduleIdBrighten(String scheduleId) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_schedule_id_brighten), scheduleId);
-        mSharedPreferencesEditor.apply();
+        putString(mKeyScheduleIdBrighten, scheduleId, false);
     }
 
     /**
@@ -183,8 +272,78 @@ public class ApplicationPreferences {
      * @param scheduleId the new schedule id to use by the app.
      */
     public void setScheduleIdOff(String scheduleId) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_schedule_id_off), scheduleId);
-        mSharedPreferencesEditor.apply();
+        putString(mKeyScheduleIdOff, scheduleId, false);
+    }
+
+    /**
+     * The wake curve is played by the "on" schedule, the "brighten" schedule and, if the curve needs more than one
+     * transition, one additional schedule for each further transition. Their ids are stored by the number of the
+     * transition.
+     *
+     * @param transition    the number of the transition, from 2 to {@link #MAX_CURVE_SCHEDULES} - 1.
+     * @param bridgeAddress the address of a bridge, <code>null</code> for the last connected bridge.
+     * @return the id of the schedule starting the given transition of the wake curve, on the given bridge.
+     * @see #getScheduleIdOn(String)
+     */
+    public String getScheduleIdCurve(int transition, String bridgeAddress) {
+        return mSnapshot.getScheduleId(bridgeKey(mKeyScheduleIdCurve + transition,
+                isLastConnected(bridgeAddress) ? null : bridgeAddress));
+    }
+
+    /**
+     * @param bridgeAddress the address of a bridge, <code>null</code> for the last connected bridge.
+     * @return the ids of all schedules this app uses on the given bridge.
+     */
+    public List<String> getScheduleIds(String bridgeAddress) {
+        List<String> result;
+
+        result = new ArrayList<String>();
+        addIfSet(result, getScheduleIdOn(bridgeAddress));
+        addIfSet(result, getScheduleIdBrighten(bridgeAddress));
+        addIfSet(result, getScheduleIdOff(bridgeAddress));
+        for (int transition = 2; transition < MAX_CURVE_SCHEDULES; transition++) {
+            addIfSet(result, getScheduleIdCurve(transition, bridgeAddress));
+        }
+
+        return result;
+    }
+
+    private static void addIfSet(List<String> list, String value) {
+        if (value != null) {
+            list.add(value);
+        }
+    }
+
+    /**
+     * The schedule identifiers of the bridge at {@link #getLastConnectedIPAddress()} are stored under the keys above.
+     * For all other bridges (see {@link BridgeRegistry}), the address of the bridge is appended to the key.
+     *
+     * @param bridgeAddress the address of a bridge, <code>null</code> for the last connected bridge.
+     * @return the id of the schedule turning the Hue lights on, on the given bridge.
+     */
+    public String getScheduleIdOn(String bridgeAddress) {
+        return isLastConnected(bridgeAddress) ? getScheduleIdOn()
+                : mSnapshot.getScheduleId(bridgeKey(mKeyScheduleIdOn, bridgeAddress));
+    }
+
+    /**
+     * @param bridgeAddress the address of a bridge, <code>null</code> for the last connected bridge.
+     * @return the id of the schedule increasing the brightness of the Hue lights, on the given bridge.
+     * @see #getScheduleIdOn(String)
+     */
+    public String getScheduleIdBrighten(String bridgeAddress) {
+        return isLastConnected(bridgeAddress) ? getScheduleIdBrighten()
+                : mSnapshot.getScheduleId(bridgeKey(mKeyScheduleIdBrighten, bridgeAddress));
+    }
+
+    /**
+     * @param bridgeAddress the address of a bridge, <code>null</code> for the last connected bridge.
+     * @return the id of the schedule turning the Hue lights off, on the given bridge.
+     * @see #getScheduleIdOn(String)
+     */
+    public String getScheduleIdOff(String bridgeAddress) {
+        return isLastConnected(bridgeAddress) ? getScheduleIdOff()
+                : mSnapshot.getScheduleId(bridgeKey(mKeyScheduleIdOff, bridgeAddress));
     }
 
     /**
@@ -200,7 +359,7 @@ public class ApplicationPreferences {
     public String getScheduleNameOn() {
         String result;
 
-        result = mSharedPreferences.getString(mCtx.getString(R.string.pref_key_schedule_name_on), null);
+        result = mSnapshot.getScheduleNameOn();
         if (result == null) {
             result = getBaseScheduleName() + " On";
             setScheduleNameOn(result);
@@ -210,8 +369,7 @@ public class ApplicationPreferences {
     }
 
     public void setScheduleNameOn(String scheduleNameOn) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_schedule_name_on), scheduleNameOn);
-        mSharedPreferencesEditor.apply();
+        putString(mKeyScheduleNameOn, scheduleNameOn, false);
     }
 
     /**
@@ -220,7 +378,7 @@ public class ApplicationPreferences {
     public String getScheduleNameBrighten() {
         String result;
 
-        result = mSharedPreferences.getString(mCtx.getString(R.string.pref_key_schedule_name_brighten), null);
+        result = mSnapshot.getScheduleNameBrighten();
         if (result == null) {
             result = getBaseScheduleName() + " Brighten";
             setScheduleNameBrighten(result);
@@ -230,8 +388,7 @@ public class ApplicationPreferences {
     }
 
     public void setScheduleNameBrighten(String scheduleNameBrighten) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_schedule_name_brighten), scheduleNameBrighten);
-        mSharedPreferencesEditor.apply();
+        putString(mKeyScheduleNameBrighten, scheduleNameBrighten, false);
     }
 
     /**
@@ -240,7 +397,7 @@ public class ApplicationPreferences {
     public String getScheduleNameOff() {
         String result;
 
-        result = mSharedPreferences.getString(mCtx.getString(R.string.pref_key_schedule_name_off), null);
+        result = mSnapshot.getScheduleNameOff();
         if (result == null) {
             result = getBaseScheduleName() + " Off";
             setScheduleNameOff(result);
@@ -250,25 +407,22 @@ public class ApplicationPreferences {
     }
 
     public void setScheduleNameOff(String scheduleNameOff) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_schedule_name_off), scheduleNameOff);
-        mSharedPreferencesEditor.apply();
+        putString(mKeyScheduleNameOff, scheduleNameOff, false);
     }
 
     /**
      * @return the number of minutes, the Hue lights should use to transition into the "on" state.
      */
     public int getTransitionMinutes() {
-        String result;
-
-        result = mSharedPreferences.getString(mCtx.getString(R.string.pref_key_transition_minutes), null);
+        int result;
 
-        if (result == null) {
-            result = "10";
-            setTransitionMinutes(10);
+        result = mSnapshot.getTransitionMinutes();
+        if (result == PreferenceSnapshot.NOT_SET) {
+            result = 10;
+            setTransitionMinutes(result);
         }
 
-
-        return Integer.parseInt(result);
+        return result;
     }
 
 
@@ -278,9 +432,345 @@ public class ApplicationPreferences {
      * @param minutes
      */
     public void setTransitionMinutes(int minutes) {
-        mSharedPreferencesEditor.putString(mCtx.getString(R.string.pref_key_transition_minutes),
-                                           Integer.toString(minutes));
-        mSharedPreferencesEditor.apply();
+        putString(mKeyTransitionMinutes, Integer.toString(minutes), false);
+    }
+
+    /**
+     * @return the keyframes of the wake curve as described in {@link WakeCurve} or <code>null</code> if the lights
+     * should simply get brighter at a constant rate during {@link #getTransitionMinutes()}.
+     */
+    public String getWakeCurve() {
+        String result;
+
+        result = mSnapshot.getWakeCurve();
+        if (result != null && result.trim().length() == 0) {
+            result = null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets the keyframes of the wake curve.
+     *
+     * @param keyframes the keyframes as described in {@link WakeCurve}, <code>null</code> for the default curve.
+     */
+    public void setWakeCurve(String keyframes) {
+        putString(mKeyWakeCurve, keyframes, false);
+    }
+
+    /**
+     * @return the largest deviation from the wake curve that is acceptable, in percent of the full range of the
+     * brightness and the colour temperature. See {@link CurveCompiler}.
+     */
+    public int getCurveTolerancePercent() {
+        int result;
+
+        result = mSnapshot.getCurveTolerancePercent();
+        if (result == PreferenceSnapshot.NOT_SET) {
+            result = 5;
+            setCurveTolerancePercent(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets the largest acceptable deviation from the wake curve.
+     *
+     * @param percent the deviation in percent of the full range of the values.
+     */
+    public void setCurveTolerancePercent(int percent) {
+        putString(mKeyCurveTolerance, Integer.toString(percent), false);
+    }
+
+    /**
+     * @return the number of seconds a synchronization is delayed after it has been triggered. All triggers that
+     * arrive within this time are collapsed into a single synchronization.
+     */
+    public int getSyncDelaySeconds() {
+        int result;
+
+        result = mSnapshot.getSyncDelaySeconds();
+        if (result == PreferenceSnapshot.NOT_SET) {
+            result = 5;
+            setSyncDelaySeconds(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets the number of seconds a synchronization is delayed after it has been triggered.
+     *
+     * @param seconds the new delay in seconds.
+     */
+    public void setSyncDelaySeconds(int seconds) {
+        putString(mKeySyncDelaySeconds, Integer.toString(seconds), false);
+    }
+
+    /**
+     * @return the number of seconds the connection to the bridge is kept open after it has last been used.
+     */
+    public int getSessionIdleSeconds() {
+        int result;
+
+        result = mSnapshot.getSessionIdleSeconds();
+        if (result == PreferenceSnapshot.NOT_SET) {
+            result = 120;
+            setSessionIdleSeconds(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets the number of seconds the connection to the bridge is kept open after it has last been used.
+     *
+     * @param seconds the new idle time in seconds.
+     */
+    public void setSessionIdleSeconds(int seconds) {
+        putString(mKeySessionIdleSeconds, Integer.toString(seconds), false);
+    }
+
+    /** @return all settings as they are currently stored. */
+    public PreferenceSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Starts a transaction that stores several values at once. Use this if values belong together, e.g. the
+     * identifiers of the schedules of one synchronization.
+     *
+     * @return a new transaction. Nothing is stored before {@link Transaction#commit()} is called.
+     */
+    public Transaction beginTransaction() {
+        return new Transaction(null);
+    }
+
+    /**
+     * Same as {@link #beginTransaction()}, but the schedule identifiers are stored for the given bridge.
+     *
+     * @param bridgeAddress the address of a bridge, <code>null</code> for the last connected bridge.
+     * @return a new transaction. Nothing is stored before {@link Transaction#commit()} is called.
+     * @see #getScheduleIdOn(String)
+     */
+    public Transaction beginTransaction(String bridgeAddress) {
+        return new Transaction(isLastConnected(bridgeAddress) ? null : bridgeAddress);
+    }
+
+    /**
+     * Stores a schedule id that was set by a synchronization that got interrupted, see {@link SyncJournal#recover()}.
+     *
+     * @param key        the preference key of the schedule id, including the address of the bridge (see
+     *                   {@link Transaction}). The address is dropped if it is the last connected bridge by now.
+     * @param scheduleId the id, <code>null</code> if it has been removed.
+     * @return true if the id was not stored yet.
+     */
+    boolean restoreScheduleId(String key, String scheduleId) {
+        String stored;
+        int separator;
+
+        separator = key.indexOf('@');
+        if (separator >= 0 && isLastConnected(key.substring(separator + 1))) {
+            key = key.substring(0, separator);
+        }
+        stored = mSnapshot.getScheduleId(key);
+        if (scheduleId == null ? stored == null : scheduleId.equals(stored)) {
+            return false;
+        }
+
+        return putString(key, scheduleId, true);
+    }
+
+    /** @return the keys of all schedule ids of the last connected bridge. */
+    private List<String> getScheduleIdKeys() {
+        List<String> result;
+
+        result = new ArrayList<String>();
+        result.add(mKeyScheduleIdOn);
+        result.add(mKeyScheduleIdBrighten);
+        result.add(mKeyScheduleIdOff);
+        for (int transition = 2; transition < MAX_CURVE_SCHEDULES; transition++) {
+            result.add(mKeyScheduleIdCurve + transition);
+        }
+
+        return result;
+    }
+
+    /** @return true if the given address is <code>null</code> or the address of the last connected bridge. */
+    private boolean isLastConnected(String bridgeAddress) {
+        return bridgeAddress == null || bridgeAddress.equals(getLastConnectedIPAddress());
+    }
+
+    /** @return the key under which the value for the given bridge is stored. */
+    private static String bridgeKey(String key, String bridgeAddress) {
+        return bridgeAddress == null ? key : key + "@" + bridgeAddress;
+    }
+
+    /**
+     * Stores a single value. Every write uses its own editor, so writes from different threads don't interfere.
+     *
+     * @param key   the key of the preference.
+     * @param value the new value.
+     * @param sync  true if the value should be written to disk before this method returns.
+     * @return true if the value was stored, which is always the case for asynchronous writes.
+     */
+    private boolean putString(String key, String value, boolean sync) {
+        Editor editor;
+        boolean result;
+
+        editor = mSharedPreferences.edit();
+        editor.putString(key, value);
+        if (sync) {
+            result = editor.commit();
+        } else {
+            editor.apply();
+            result = true;
+        }
+        refresh(); // the change listener would only be called later on the main thread
+
+        return result;
+    }
+
+    /** Takes a new snapshot of the stored values. */
+    private void refresh() {
+        Map<String, ?> values;
+        Map<String, String> scheduleIds;
+        List<String> scheduleIdKeys;
+
+        // the schedule ids of all bridges, which are stored under the keys of the last connected one plus an address
+        values = mSharedPreferences.getAll();
+        scheduleIds = new HashMap<String, String>();
+        scheduleIdKeys = getScheduleIdKeys();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (entry.getValue() instanceof String && isScheduleIdKey(entry.getKey(), scheduleIdKeys)) {
+                scheduleIds.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+
+        mSnapshot = new PreferenceSnapshot(
+                mSharedPreferences.getString(mKeyUsername, null),
+                mSharedPreferences.getString(mKeyDeviceName, null),
+                mSharedPreferences.getString(mKeyBridgeIp, null),
+                mSharedPreferences.getString(mKeyLightGroup, null),
+                mSharedPreferences.getString(mKeyScheduleIdOn, null),
+                mSharedPreferences.getString(mKeyScheduleIdBrighten, null),
+                mSharedPreferences.getString(mKeyScheduleIdOff, null),
+                mSharedPreferences.getString(mKeyScheduleNameOn, null),
+                mSharedPreferences.getString(mKeyScheduleNameBrighten, null),
+                mSharedPreferences.getString(mKeyScheduleNameOff, null),
+                mSharedPreferences.getString(mKeyTransitionMinutes, null),
+                mSharedPreferences.getString(mKeySyncDelaySeconds, null),
+                mSharedPreferences.getString(mKeySessionIdleSeconds, null),
+                mSharedPreferences.getString(mKeyWakeCurve, null),
+                mSharedPreferences.getString(mKeyCurveTolerance, null),
+                scheduleIds);
+    }
+
+    /** @return true if the key is one of the given keys, with or without the address of a bridge appended. */
+    private static boolean isScheduleIdKey(String key, List<String> scheduleIdKeys) {
+        for (String scheduleIdKey : scheduleIdKeys) {
+            if (key.equals(scheduleIdKey) || key.startsWith(bridgeKey(scheduleIdKey, ""))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects changes to several values and stores all of them with a single write. The methods of a transaction
+     * can be called from any thread, e.g. from the callbacks of the Hue SDK.
+     */
+    public class Transaction {
+
+        /** The editor collecting the changes of this transaction. */
+        private final Editor mEditor;
+
+        /** The address of the bridge the schedule identifiers belong to, <code>null</code> for the last connected. */
+        private final String mBridgeAddress;
+
+        /** Set as soon as a value has been changed. */
+        private boolean mChanged;
+
+        /** Set once the transaction has been committed. */
+        private boolean mCommitted;
+
+        /**
+         * The address of the bridge the schedule identifiers belong to, also for the last connected one. The journal
+         * records the keys with this address, as the last connected bridge may have changed by the time it is read.
+         */
+        private final String mJournalAddress;
+
+        /** Every id is recorded here before it is stored, so it survives the death of the process. */
+        private final SyncJournal mJournal;
+
+        private Transaction(String bridgeAddress) {
+            mEditor = mSharedPreferences.edit();
+            mBridgeAddress = bridgeAddress;
+            mJournalAddress = bridgeAddress != null ? bridgeAddress : getLastConnectedIPAddress();
+            mJournal = SyncJournal.getInstance(mCtx);
+        }
+
+        /** @see ApplicationPreferences#setScheduleIdOn(String) */
+        public synchronized Transaction setScheduleIdOn(String scheduleId) {
+            return put(mKeyScheduleIdOn, scheduleId);
+        }
+
+        /** @see ApplicationPreferences#setScheduleIdBrighten(String) */
+        public synchronized Transaction setScheduleIdBrighten(String scheduleId) {
+            return put(mKeyScheduleIdBrighten, scheduleId);
+        }
+
+        /**
+         * @param transition the number of the transition of the wake curve.
+         * @param scheduleId the id of the schedule starting the transition, <code>null</code> to remove it.
+         * @see ApplicationPreferences#getScheduleIdCurve(int, String)
+         */
+        public synchronized Transaction setScheduleIdCurve(int transition, String scheduleId) {
+            return put(mKeyScheduleIdCurve + transition, scheduleId);
+        }
+
+        /** @see ApplicationPreferences#setScheduleIdOff(String) */
+        public synchronized Transaction setScheduleIdOff(String scheduleId) {
+            return put(mKeyScheduleIdOff, scheduleId);
+        }
+
+        /**
+         * Stores all changes of this transaction at once. Calling this more than once has no effect. Changes made
+         * after the transaction has been committed are stored right away.
+         * <p/>
+         * The changes are on disk when this method returns, so the {@link SyncJournal} can forget about them. As
+         * identifiers only change when schedules have been created, this hardly ever blocks.
+         */
+        public synchronized void commit() {
+            if (!mCommitted) {
+                mCommitted = true;
+                if (mChanged) {
+                    mEditor.commit();
+                    refresh();
+                }
+            }
+        }
+
+        /**
+         * @param scheduleIdKey the key of the schedule id for the last connected bridge.
+         * @param value         the new value.
+         */
+        private Transaction put(String scheduleIdKey, String value) {
+            String key;
+
+            key = bridgeKey(scheduleIdKey, mBridgeAddress);
+            mJournal.complete(bridgeKey(scheduleIdKey, mJournalAddress), value);
+            if (mCommitted) {
+                // a callback that arrived late, e.g. after the synchronization timed out: store it on its own
+                putString(key, value, false);
+            } else {
+                mEditor.putString(key, value);
+                mChanged = true;
+            }
+            return this;
+        }
     }
 
 }
@@ -0,0 +1,109 @@
+/* TODO: license */
+package org.github.gentlewake.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The addresses of all bridges the alarm is synchronized with. Homes with more than one bridge (e.g. one per floor)
+ * connect the app to each of them once; every bridge the app has been connected to is added to this registry. The
+ * last connected bridge (see {@link ApplicationPreferences#getLastConnectedIPAddress()}) is the one shown in the
+ * setup screen, the others are synchronized in the background alongside it.
+ * <p/>
+ * The schedule identifiers of each bridge are stored in the {@link ApplicationPreferences}, see
+ * {@link ApplicationPreferences#getScheduleIdOn(String)}.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class BridgeRegistry {
+
+    private static final String TAG = "GentleWake.Registry";
+
+    /** The name of the shared preferences file. */
+    private static final String PREFERENCES_NAME = "bridge_registry";
+
+    private static final String KEY_ADDRESSES = "addresses";
+
+    /** The singleton. */
+    private static BridgeRegistry sInstance;
+
+    private final SharedPreferences mSharedPreferences;
+
+    private final ApplicationPreferences mPrefs;
+
+    /** The addresses of all registered bridges. */
+    private final Set<String> mAddresses;
+
+    public static synchronized BridgeRegistry getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new BridgeRegistry(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BridgeRegistry(Context appContext) {
+        this.mSharedPreferences = appContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.mPrefs = ApplicationPreferences.getInstance(appContext);
+        // the returned set must not be modified, so we copy it
+        this.mAddresses = new HashSet<String>(this.mSharedPreferences.getStringSet(KEY_ADDRESSES,
+                Collections.<String>emptySet()));
+    }
+
+    /**
+     * Adds a bridge to the registry. Adding a bridge that is registered already has no effect.
+     *
+     * @param address the ip address of the bridge.
+     */
+    public synchronized void add(String address) {
+        if (this.mAddresses.add(address)) {
+            store();
+            if (Log.isLoggable(TAG, Log.INFO)) {
+                Log.i(TAG, "Registered bridge " + address + ", " + this.mAddresses.size() + " bridges in total");
+            }
+        }
+    }
+
+    /**
+     * Removes a bridge from the registry. Its schedules stay on the bridge.
+     *
+     * @param address the ip address of the bridge.
+     */
+    public synchronized void remove(String address) {
+        if (this.mAddresses.remove(address)) {
+            store();
+        }
+    }
+
+    /**
+     * @return the addresses of all bridges, the last connected bridge first. Installations from before the registry
+     * existed only know the last connected bridge, so it is always part of the list.
+     */
+    public synchronized List<String> getAddresses() {
+        List<String> result;
+        String lastConnected;
+
+        result = new ArrayList<String>(this.mAddresses.size() + 1);
+        lastConnected = this.mPrefs.getLastConnectedIPAddress();
+        if (lastConnected != null) {
+            result.add(lastConnected);
+        }
+        for (String address : this.mAddresses) {
+            if (!address.equals(lastConnected)) {
+                result.add(address);
+            }
+        }
+
+        return result;
+    }
+
+    private void store() {
+        this.mSharedPreferences.edit().putStringSet(KEY_ADDRESSES, new HashSet<String>(this.mAddresses)).apply();
+    }
+}
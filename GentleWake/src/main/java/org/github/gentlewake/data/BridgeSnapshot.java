@@ -0,0 +1,387 @@
+/* TODO: license */
+package org.github.gentlewake.data;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.philips.lighting.model.PHBridgeResourcesCache;
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHSchedule;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact copy of the parts of the resource cache of the bridge that this app uses: our schedules, the light groups
+ * and the identifiers of the lights. The snapshot is written to disk whenever we receive fresh data from the bridge,
+ * so the setup screen can show the last known state right away, instead of waiting for the SDK to connect.
+ * <p/>
+ * The snapshot is stored as JSON in the private files of the app. It is written through an {@link AtomicFile}, so a
+ * crash while writing leaves the previous snapshot intact. Snapshots written by a different {@link #VERSION} of
+ * this class are ignored.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class BridgeSnapshot {
+
+    private static final String TAG = "GentleWake.Snapshot";
+
+    /** The version of the file format. Increase this whenever the format changes. */
+    public static final int VERSION = 1;
+
+    /** The name of the file in the private files directory of the app. */
+    private static final String FILE_NAME = "bridge_snapshot.json";
+
+    /** The time at which the data was read from the bridge, in milliseconds since the epoch. */
+    private final long mTimestamp;
+
+    /** Our schedules, by identifier. Only the identifier, the name and the date of the schedules are stored. */
+    private final Hashtable<String, PHSchedule> mSchedules;
+
+    /** The light groups, by identifier. */
+    private final Hashtable<String, PHGroup> mGroups;
+
+    /** The identifiers of all lights connected to the bridge. */
+    private final List<String> mLightIds;
+
+    private BridgeSnapshot(long timestamp, Hashtable<String, PHSchedule> schedules, Hashtable<String, PHGroup> groups,
+                           List<String> lightIds) {
+        this.mTimestamp = timestamp;
+        this.mSchedules = schedules;
+        this.mGroups = groups;
+        this.mLightIds = lightIds;
+    }
+
+    /**
+     * Creates a snapshot of the given resource cache and writes it to disk. Some bridges (e.g. the REST bridge) do not
+     * download the lights. In this case, the light identifiers of the previous snapshot are kept.
+     *
+     * @param ctx         the context used to find the files directory of the app.
+     * @param cache       the resource cache of the bridge.
+     * @param scheduleIds the identifiers of our schedules. <code>null</code> entries are ignored.
+     */
+    public static synchronized void save(Context ctx, PHBridgeResourcesCache cache, String... scheduleIds) {
+        Hashtable<String, PHSchedule> schedules;
+        Hashtable<String, PHGroup> groups;
+        List<String> lightIds;
+
+        schedules = new Hashtable<String, PHSchedule>();
+        for (String scheduleId : scheduleIds) {
+            PHSchedule schedule;
+
+            schedule = scheduleId == null ? null : cache.getSchedules().get(scheduleId);
+            if (schedule != null) {
+                schedules.put(scheduleId, copySchedule(schedule));
+            }
+        }
+
+        groups = new Hashtable<String, PHGroup>();
+        for (PHGroup group : cache.getAllGroups()) {
+            groups.put(group.getIdentifier(), new PHGroup(group));
+        }
+
+        lightIds = new ArrayList<String>(cache.getLights().keySet());
+        if (lightIds.isEmpty()) {
+            BridgeSnapshot previous;
+
+            previous = load(ctx);
+            if (previous != null) {
+                lightIds = previous.mLightIds;
+            }
+        }
+
+        new BridgeSnapshot(System.currentTimeMillis(), schedules, groups, lightIds).write(ctx);
+    }
+
+    /**
+     * Reads the last snapshot from disk. The file is small, so this can be called on the UI thread.
+     *
+     * @param ctx the context used to find the files directory of the app.
+     * @return the last snapshot or <code>null</code> if there is none or it could not be read.
+     */
+    public static synchronized BridgeSnapshot load(Context ctx) {
+        AtomicFile file;
+        FileInputStream in;
+        JsonReader reader;
+        BridgeSnapshot result;
+
+        file = getFile(ctx);
+        if (!file.getBaseFile().exists()) {
+            return null;
+        }
+
+        result = null;
+        reader = null;
+        try {
+            in = file.openRead();
+            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            result = read(reader);
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Could not read the snapshot: " + e.getMessage());
+            }
+        } catch (RuntimeException e) { // e.g. a number in the wrong format
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "The snapshot is corrupt: " + e);
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+
+        return result;
+    }
+
+    /** @return the time at which the data was read from the bridge, in milliseconds since the epoch. */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /** @return our schedules, by identifier. The schedules only carry their identifier, name and date. */
+    public Map<String, PHSchedule> getSchedules() {
+        return Collections.unmodifiableMap(mSchedules);
+    }
+
+    /** @return the light groups, by identifier. */
+    public Map<String, PHGroup> getGroups() {
+        return Collections.unmodifiableMap(mGroups);
+    }
+
+    /** @return the identifiers of all lights connected to the bridge. */
+    public List<String> getLightIds() {
+        return Collections.unmodifiableList(mLightIds);
+    }
+
+    private void write(Context ctx) {
+        AtomicFile file;
+        FileOutputStream out;
+        JsonWriter writer;
+
+        file = getFile(ctx);
+        out = null;
+        try {
+            out = file.startWrite();
+            writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+            writer.beginObject();
+            writer.name("version").value(VERSION);
+            writer.name("timestamp").value(mTimestamp);
+
+            writer.name("schedules").beginArray();
+            for (PHSchedule schedule : mSchedules.values()) {
+                writer.beginObject();
+                writer.name("id").value(schedule.getIdentifier());
+                writer.name("name").value(schedule.getName());
+                if (schedule.getDate() != null) {
+                    writer.name("date").value(schedule.getDate().getTime());
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+
+            writer.name("groups").beginArray();
+            for (PHGroup group : mGroups.values()) {
+                writer.beginObject();
+                writer.name("id").value(group.getIdentifier());
+                writer.name("name").value(group.getName());
+                writer.name("lights").beginArray();
+                if (group.getLightIdentifiers() != null) {
+                    for (String lightId : group.getLightIdentifiers()) {
+                        writer.value(lightId);
+                    }
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+
+            writer.name("lights").beginArray();
+            for (String lightId : mLightIds) {
+                writer.value(lightId);
+            }
+            writer.endArray();
+
+            writer.endObject();
+            writer.flush();
+            file.finishWrite(out);
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Snapshot written with " + mSchedules.size() + " schedules and " + mGroups.size()
+                        + " groups");
+            }
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Could not write the snapshot: " + e.getMessage());
+            }
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    private static BridgeSnapshot read(JsonReader reader) throws IOException {
+        int version;
+        long timestamp;
+        Hashtable<String, PHSchedule> schedules;
+        Hashtable<String, PHGroup> groups;
+        List<String> lightIds;
+
+        version = -1;
+        timestamp = 0;
+        schedules = new Hashtable<String, PHSchedule>();
+        groups = new Hashtable<String, PHGroup>();
+        lightIds = new ArrayList<String>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name;
+
+            name = reader.nextName();
+            if (name.equals("version")) {
+                version = reader.nextInt();
+            } else if (name.equals("timestamp")) {
+                timestamp = reader.nextLong();
+            } else if (name.equals("schedules")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    PHSchedule schedule;
+
+                    schedule = readSchedule(reader);
+                    schedules.put(schedule.getIdentifier(), schedule);
+                }
+                reader.endArray();
+            } else if (name.equals("groups")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    PHGroup group;
+
+                    group = readGroup(reader);
+                    groups.put(group.getIdentifier(), group);
+                }
+                reader.endArray();
+            } else if (name.equals("lights")) {
+                lightIds = readStrings(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (version != VERSION) {
+            if (Log.isLoggable(TAG, Log.INFO)) {
+                Log.i(TAG, "Ignoring snapshot of version " + version);
+            }
+            return null;
+        }
+
+        return new BridgeSnapshot(timestamp, schedules, groups, lightIds);
+    }
+
+    private static PHSchedule readSchedule(JsonReader reader) throws IOException {
+        PHSchedule result;
+
+        result = new PHSchedule("");
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name;
+
+            name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (name.equals("id")) {
+                result.setIdentifier(reader.nextString());
+            } else if (name.equals("name")) {
+                result.setName(reader.nextString());
+            } else if (name.equals("date")) {
+                result.setDate(new Date(reader.nextLong()));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return result;
+    }
+
+    private static PHGroup readGroup(JsonReader reader) throws IOException {
+        String id;
+        String groupName;
+        List<String> lightIds;
+        PHGroup result;
+
+        id = null;
+        groupName = null;
+        lightIds = new ArrayList<String>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name;
+
+            name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (name.equals("id")) {
+                id = reader.nextString();
+            } else if (name.equals("name")) {
+                groupName = reader.nextString();
+            } else if (name.equals("lights")) {
+                lightIds = readStrings(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        result = new PHGroup(groupName, id);
+        result.setLightIdentifiers(lightIds.toArray(new String[lightIds.size()]));
+        return result;
+    }
+
+    private static List<String> readStrings(JsonReader reader) throws IOException {
+        List<String> result;
+
+        result = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            result.add(reader.nextString());
+        }
+        reader.endArray();
+
+        return result;
+    }
+
+    /** @return a copy of the schedule, containing only the fields we store in the snapshot. */
+    private static PHSchedule copySchedule(PHSchedule schedule) {
+        PHSchedule result;
+
+        result = new PHSchedule(schedule.getName());
+        result.setIdentifier(schedule.getIdentifier());
+        result.setDate(schedule.getDate());
+        return result;
+    }
+
+    private static AtomicFile getFile(Context ctx) {
+        return new AtomicFile(new File(ctx.getFilesDir(), FILE_NAME));
+    }
+
+    private static void closeQuietly(JsonReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing we can do about it
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/* TODO: license */
+package org.github.gentlewake.data;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import org.github.gentlewake.R;
+
+/**
+ * Provides the lines of the activity log to a list view. The lines are kept in a circular buffer of a fixed
+ * capacity: appending a line is constant time and overwrites the oldest line once the buffer is full. The list view
+ * only creates views for the lines on screen and recycles them while scrolling, so the number of lines kept does not
+ * matter for the cost of rendering.
+ * <p/>
+ * Appended lines are shown with the next frame: all lines appended before the frame is drawn cause a single update
+ * of the list view. Until then, the list view keeps seeing the lines of the last update, as it does not allow the
+ * data to change without being notified. This class must only be used on the UI thread.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class LogLineAdapter extends BaseAdapter implements Choreographer.FrameCallback {
+
+    private final LayoutInflater mInflater;
+
+    /** The lines, the oldest line is at {@link #mHead}. */
+    private final String[] mLines;
+
+    /** The position of the oldest line in {@link #mLines}. */
+    private int mHead;
+
+    /** The number of lines in the buffer. */
+    private int mSize;
+
+    /** The number of lines that have been appended overall, used as the ids of the lines. */
+    private long mAppended;
+
+    /** The position of the oldest line in {@link #mLines}, as of the last update of the list view. */
+    private int mShownHead;
+
+    /** The number of lines of the last update of the list view. */
+    private int mShownSize;
+
+    /** The number of lines that had been appended overall at the last update of the list view. */
+    private long mShownAppended;
+
+    /** True if an update of the list view has been requested for the next frame. */
+    private boolean mUpdatePending;
+
+    /**
+     * @param context  the context used to create the views of the lines.
+     * @param capacity the number of lines to keep.
+     */
+    public LogLineAdapter(Context context, int capacity) {
+        this.mInflater = LayoutInflater.from(context);
+        this.mLines = new String[capacity];
+    }
+
+    /**
+     * Appends a line, removing the oldest line if the buffer is full. The list view is updated with the next frame.
+     *
+     * @param line the line to append.
+     */
+    public void append(String line) {
+        if (this.mSize < this.mLines.length) {
+            this.mLines[(this.mHead + this.mSize) % this.mLines.length] = line;
+            this.mSize++;
+        } else {
+            this.mLines[this.mHead] = line;
+            this.mHead = (this.mHead + 1) % this.mLines.length;
+        }
+        this.mAppended++;
+
+        if (!this.mUpdatePending) {
+            this.mUpdatePending = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /** Updates the list view with all lines appended since the last frame. */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        this.mUpdatePending = false;
+        this.mShownHead = this.mHead;
+        this.mShownSize = this.mSize;
+        this.mShownAppended = this.mAppended;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return this.mShownSize;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        // lines appended since the last update may have overwritten this line already, the next frame fixes that
+        return this.mLines[(this.mShownHead + position) % this.mLines.length];
+    }
+
+    /** @return the number of lines that had been appended before this line, which identifies the line. */
+    @Override
+    public long getItemId(int position) {
+        return this.mShownAppended - this.mShownSize + position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView result;
+
+        if (convertView == null) {
+            result = (TextView) this.mInflater.inflate(R.layout.log_line, parent, false);
+        } else {
+            result = (TextView) convertView;
+        }
+        result.setText((String) getItem(position));
+
+        return result;
+    }
+}
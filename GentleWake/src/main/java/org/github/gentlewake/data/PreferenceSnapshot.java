@@ -0,0 +1,147 @@
+/* TODO: license */
+package org.github.gentlewake.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable copy of all settings of the application, as they were stored at one point in time. Numbers are parsed
+ * once when the snapshot is taken, not on every read. Values that have never been set are <code>null</code> (or
+ * {@link #NOT_SET} for numbers); {@link ApplicationPreferences} replaces them with their defaults.
+ * <p/>
+ * Besides the schedule ids of the last connected bridge, the snapshot holds the schedule ids of all bridges and of
+ * all transitions of the wake curve, by their preference key (see {@link #getScheduleId(String)}).
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class PreferenceSnapshot {
+
+    /** The value of a number that has not been set (or could not be parsed). */
+    public static final int NOT_SET = -1;
+
+    private final String mUsername;
+    private final String mDeviceName;
+    private final String mBridgeIp;
+    private final String mLightGroup;
+    private final String mScheduleIdOn;
+    private final String mScheduleIdBrighten;
+    private final String mScheduleIdOff;
+    private final String mScheduleNameOn;
+    private final String mScheduleNameBrighten;
+    private final String mScheduleNameOff;
+    private final int mTransitionMinutes;
+    private final int mSyncDelaySeconds;
+    private final int mSessionIdleSeconds;
+    private final String mWakeCurve;
+    private final int mCurveTolerancePercent;
+    private final Map<String, String> mScheduleIds;
+
+    PreferenceSnapshot(String username, String deviceName, String bridgeIp, String lightGroup,
+                       String scheduleIdOn, String scheduleIdBrighten, String scheduleIdOff,
+                       String scheduleNameOn, String scheduleNameBrighten, String scheduleNameOff,
+                       String transitionMinutes, String syncDelaySeconds, String sessionIdleSeconds,
+                       String wakeCurve, String curveTolerancePercent, Map<String, String> scheduleIds) {
+        this.mUsername = username;
+        this.mDeviceName = deviceName;
+        this.mBridgeIp = bridgeIp;
+        this.mLightGroup = lightGroup;
+        this.mScheduleIdOn = scheduleIdOn;
+        this.mScheduleIdBrighten = scheduleIdBrighten;
+        this.mScheduleIdOff = scheduleIdOff;
+        this.mScheduleNameOn = scheduleNameOn;
+        this.mScheduleNameBrighten = scheduleNameBrighten;
+        this.mScheduleNameOff = scheduleNameOff;
+        this.mTransitionMinutes = parse(transitionMinutes);
+        this.mSyncDelaySeconds = parse(syncDelaySeconds);
+        this.mSessionIdleSeconds = parse(sessionIdleSeconds);
+        this.mWakeCurve = wakeCurve;
+        this.mCurveTolerancePercent = parse(curveTolerancePercent);
+        this.mScheduleIds = Collections.unmodifiableMap(new HashMap<String, String>(scheduleIds));
+    }
+
+    public String getUsername() {
+        return mUsername;
+    }
+
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    public String getBridgeIp() {
+        return mBridgeIp;
+    }
+
+    public String getLightGroup() {
+        return mLightGroup;
+    }
+
+    public String getScheduleIdOn() {
+        return mScheduleIdOn;
+    }
+
+    public String getScheduleIdBrighten() {
+        return mScheduleIdBrighten;
+    }
+
+    public String getScheduleIdOff() {
+        return mScheduleIdOff;
+    }
+
+    public String getScheduleNameOn() {
+        return mScheduleNameOn;
+    }
+
+    public String getScheduleNameBrighten() {
+        return mScheduleNameBrighten;
+    }
+
+    public String getScheduleNameOff() {
+        return mScheduleNameOff;
+    }
+
+    public int getTransitionMinutes() {
+        return mTransitionMinutes;
+    }
+
+    public int getSyncDelaySeconds() {
+        return mSyncDelaySeconds;
+    }
+
+    public int getSessionIdleSeconds() {
+        return mSessionIdleSeconds;
+    }
+
+    public String getWakeCurve() {
+        return mWakeCurve;
+    }
+
+    public int getCurveTolerancePercent() {
+        return mCurveTolerancePercent;
+    }
+
+    /**
+     * @param key the preference key of a schedule id, including the address of the bridge for all bridges but the
+     *            last connected one.
+     * @return the schedule id stored under the key or <code>null</code> if there is none.
+     */
+    public String getScheduleId(String key) {
+        return mScheduleIds.get(key);
+    }
+
+    /**
+     * The numbers are edited as text in the settings screen, so they are stored as strings.
+     *
+     * @return the parsed number or {@link #NOT_SET} if the value is missing or not a number.
+     */
+    private static int parse(String value) {
+        if (value == null) {
+            return NOT_SET;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return NOT_SET;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/* TODO: license */
+package org.github.gentlewake.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.github.gentlewake.hue.SyncTimeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The timelines of the last {@link #CAPACITY} synchronizations (see {@link SyncTimeline}), so the user can see where
+ * the time went when a wake-up failed, even if the synchronization ran in the background while the app was not
+ * running. The timelines are stored in a ring buffer: each slot of the buffer is an entry of its own shared
+ * preferences file, and the oldest timeline is overwritten by the newest.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class SyncHistory {
+
+    /** The number of timelines kept. */
+    public static final int CAPACITY = 10;
+
+    /** The name of the shared preferences file. */
+    private static final String PREFERENCES_NAME = "sync_history";
+
+    private static final String KEY_SLOT = "slot_";
+
+    /** The key of the slot the next timeline is written to. */
+    private static final String KEY_NEXT = "next";
+
+    /** The singleton. */
+    private static SyncHistory sInstance;
+
+    private final SharedPreferences mSharedPreferences;
+
+    /** The slot the next timeline is written to. */
+    private int mNext;
+
+    public static synchronized SyncHistory getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new SyncHistory(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SyncHistory(Context appContext) {
+        this.mSharedPreferences = appContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.mNext = this.mSharedPreferences.getInt(KEY_NEXT, 0) % CAPACITY;
+    }
+
+    /**
+     * Adds a finished timeline, replacing the oldest one if the buffer is full.
+     *
+     * @param timeline the timeline to add.
+     */
+    public synchronized void add(SyncTimeline timeline) {
+        this.mSharedPreferences.edit()
+                .putString(KEY_SLOT + this.mNext, timeline.encode())
+                .putInt(KEY_NEXT, (this.mNext + 1) % CAPACITY)
+                .apply();
+        this.mNext = (this.mNext + 1) % CAPACITY;
+    }
+
+    /**
+     * @param count the largest number of timelines to return.
+     * @return the most recent timelines, the newest first.
+     */
+    public synchronized List<SyncTimeline> getRecent(int count) {
+        List<SyncTimeline> result;
+
+        result = new ArrayList<SyncTimeline>(Math.min(count, CAPACITY));
+        for (int i = 1; i <= CAPACITY && result.size() < count; i++) {
+            String encoded;
+
+            encoded = this.mSharedPreferences.getString(KEY_SLOT + ((this.mNext - i + CAPACITY) % CAPACITY), null);
+            if (encoded != null) {
+                SyncTimeline timeline;
+
+                timeline = SyncTimeline.decode(encoded);
+                if (timeline != null) {
+                    result.add(timeline);
+                }
+            }
+        }
+
+        return result;
+    }
+}
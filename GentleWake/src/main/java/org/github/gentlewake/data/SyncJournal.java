@@ -0,0 +1,318 @@
+/* TODO: license */
+package org.github.gentlewake.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only journal of the synchronizations that are running. The synchronization service asks to be restarted
+ * with the same intent if it gets killed, but the schedule ids of a synchronization are only stored once all its
+ * operations have finished (see {@link ApplicationPreferences.Transaction}). If the process dies after a schedule has
+ * been created, but before its id has been stored, the restarted synchronization would not know about the schedule
+ * and create it once more.
+ * <p/>
+ * The journal records every step that matters for this, one line per step, and each line is on disk before the
+ * step continues:
+ * <ul>
+ * <li><code>B bridge</code>: a synchronization of the bridge started.</li>
+ * <li><code>I bridge operation</code>: a schedule is about to be created.</li>
+ * <li><code>D bridge operation id</code>: the bridge confirmed the creation of the schedule.</li>
+ * <li><code>C key id</code>: the schedule id with the given preference key (the idempotency key of the step) has
+ * been set. The key always contains the address of the bridge, so it stays valid if the last connected bridge
+ * changes. An empty id means the id has been removed.</li>
+ * <li><code>E bridge</code>: the synchronization of the bridge finished and its ids have been stored.</li>
+ * </ul>
+ * Once no synchronization is running anymore, the journal is emptied. A synchronization that hangs or fails is ended
+ * by the {@link org.github.gentlewake.hue.SyncManager} after a while, so it cannot keep the journal open forever.
+ * <p/>
+ * When the service starts, {@link #recover()} reads the journal left behind by a process that died: ids that have
+ * been set but were never stored are stored now, so the next synchronization updates the schedules instead of
+ * creating them again. A schedule whose creation was started but never confirmed may exist on the bridge without us
+ * knowing its id; the next synchronization of the bridge gets the names of these schedules from
+ * {@link #getUnconfirmed(String)} and its {@link org.github.gentlewake.hue.ScheduleCollector} adopts them.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class SyncJournal {
+
+    private static final String TAG = "GentleWake.SyncJournal";
+
+    /** The name of the journal file in the private files directory of the app. */
+    private static final String FILE_NAME = "sync_journal";
+
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private static final String TYPE_BEGIN = "B";
+
+    private static final String TYPE_INTEND = "I";
+
+    private static final String TYPE_CREATED = "D";
+
+    private static final String TYPE_COMPLETE = "C";
+
+    private static final String TYPE_END = "E";
+
+    /** The singleton. */
+    private static SyncJournal sInstance;
+
+    private final File mFile;
+
+    private final ApplicationPreferences mPrefs;
+
+    /** The number of synchronizations that have begun but not ended in this process. */
+    private int mOpen;
+
+    /** The creations of this process that have been intended, but not confirmed yet, as "bridge operation". */
+    private final Set<String> mPendingCreates;
+
+    /** The names of the schedules whose creation a dead process never saw confirmed, by the address of the bridge. */
+    private final Map<String, Set<String>> mUnconfirmed;
+
+    /** Whether {@link #recover()} has run in this process. Only a journal left behind by another process needs it. */
+    private boolean mRecovered;
+
+    public static synchronized SyncJournal getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new SyncJournal(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SyncJournal(Context appContext) {
+        this.mFile = new File(appContext.getFilesDir(), FILE_NAME);
+        this.mPrefs = ApplicationPreferences.getInstance(appContext);
+        this.mPendingCreates = new HashSet<String>();
+        this.mUnconfirmed = new HashMap<String, Set<String>>();
+    }
+
+    /**
+     * Records the start of a synchronization.
+     *
+     * @param bridge the address of the bridge being synchronized.
+     */
+    public synchronized void begin(String bridge) {
+        this.mOpen++;
+        append(TYPE_BEGIN, bridge);
+    }
+
+    /**
+     * Records that a schedule is about to be created.
+     *
+     * @param bridge    the address of the bridge.
+     * @param operation the name of the operation creating the schedule.
+     */
+    public synchronized void intend(String bridge, String operation) {
+        this.mPendingCreates.add(bridge + FIELD_SEPARATOR + operation);
+        append(TYPE_INTEND, bridge, operation);
+    }
+
+    /**
+     * Records that the bridge confirmed the creation of a schedule.
+     *
+     * @param bridge     the address of the bridge.
+     * @param operation  the name of the operation that created the schedule.
+     * @param scheduleId the id of the new schedule.
+     */
+    public synchronized void created(String bridge, String operation, String scheduleId) {
+        Set<String> unconfirmed;
+
+        this.mPendingCreates.remove(bridge + FIELD_SEPARATOR + operation);
+        unconfirmed = this.mUnconfirmed.get(bridge);
+        if (unconfirmed != null) {
+            unconfirmed.remove(operation);
+        }
+        append(TYPE_CREATED, bridge, operation, scheduleId);
+    }
+
+    /**
+     * @param bridge    the address of the bridge.
+     * @param operation the name of the operation creating a schedule.
+     * @return true if the creation has been intended, but the bridge never confirmed it. The schedule may or may
+     * not exist on the bridge.
+     */
+    public synchronized boolean isCreatePending(String bridge, String operation) {
+        return this.mPendingCreates.contains(bridge + FIELD_SEPARATOR + operation);
+    }
+
+    /**
+     * @param bridge the address of the bridge.
+     * @return the names of the schedules of the bridge whose creation was sent by a synchronization that died before
+     * the bridge confirmed it, see {@link #recover()}. They are forgotten once a synchronization of the bridge ends.
+     */
+    public synchronized Set<String> getUnconfirmed(String bridge) {
+        Set<String> unconfirmed;
+
+        unconfirmed = this.mUnconfirmed.get(bridge);
+        return unconfirmed != null ? new HashSet<String>(unconfirmed) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Records that a schedule id has been set, before it is stored in the preferences.
+     *
+     * @param key        the preference key of the schedule id, including the address of the bridge.
+     * @param scheduleId the id, <code>null</code> if it has been removed.
+     */
+    public synchronized void complete(String key, String scheduleId) {
+        append(TYPE_COMPLETE, key, scheduleId != null ? scheduleId : "");
+    }
+
+    /**
+     * Records the end of a synchronization. Call this only after the ids it set have been written to disk. If no
+     * other synchronization is running, the journal is emptied.
+     *
+     * @param bridge the address of the bridge that has been synchronized.
+     */
+    public synchronized void end(String bridge) {
+        this.mOpen = Math.max(0, this.mOpen - 1);
+        this.mUnconfirmed.remove(bridge); // the synchronization adopted or removed these schedules
+        if (this.mOpen == 0) {
+            delete();
+        } else {
+            append(TYPE_END, bridge);
+        }
+    }
+
+    /**
+     * Stores the schedule ids of the synchronizations that did not end, because the process died, and remembers the
+     * schedules whose creation was never confirmed (see {@link #getUnconfirmed(String)}). Call this before the first
+     * synchronization of the process begins. Only the first call of the process reads the journal, all further calls
+     * return right away.
+     *
+     * @return the number of ids that had been set, but not stored.
+     */
+    public synchronized int recover() {
+        Map<String, String> ids;
+        Reader reader;
+        StringBuilder content;
+        String[] lines;
+        int result;
+
+        if (this.mRecovered || this.mOpen > 0) {
+            return 0;
+        }
+        this.mRecovered = true;
+        if (!this.mFile.exists()) {
+            return 0;
+        }
+
+        content = new StringBuilder();
+        reader = null;
+        try {
+            char[] buffer;
+            int read;
+
+            buffer = new char[1024];
+            reader = new InputStreamReader(new FileInputStream(this.mFile), "UTF-8");
+            while ((read = reader.read(buffer)) >= 0) {
+                content.append(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Could not read the journal", e);
+            }
+        } finally {
+            close(reader);
+        }
+
+        ids = new LinkedHashMap<String, String>();
+        lines = content.toString().split("\n", -1);
+        // the last element follows the last line break: it is empty, or a line that was cut short by the crash
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] fields;
+
+            fields = lines[i].split(FIELD_SEPARATOR, -1);
+            if (TYPE_COMPLETE.equals(fields[0]) && fields.length == 3) {
+                ids.put(fields[1], fields[2].isEmpty() ? null : fields[2]); // the last value counts
+            } else if (TYPE_INTEND.equals(fields[0]) && fields.length == 3) {
+                if (!this.mUnconfirmed.containsKey(fields[1])) {
+                    this.mUnconfirmed.put(fields[1], new LinkedHashSet<String>());
+                }
+                this.mUnconfirmed.get(fields[1]).add(fields[2]);
+            } else if (TYPE_CREATED.equals(fields[0]) && fields.length == 4
+                    && this.mUnconfirmed.containsKey(fields[1])) {
+                this.mUnconfirmed.get(fields[1]).remove(fields[2]);
+            }
+        }
+
+        result = 0;
+        for (Map.Entry<String, String> entry : ids.entrySet()) {
+            if (this.mPrefs.restoreScheduleId(entry.getKey(), entry.getValue())) {
+                result++;
+            }
+        }
+
+        if (Log.isLoggable(TAG, Log.INFO)) {
+            Log.i(TAG, "Recovered " + result + " schedule ids of an interrupted synchronization, unconfirmed "
+                    + "schedules: " + this.mUnconfirmed);
+        }
+        delete();
+        // keep the unconfirmed creations until a synchronization of their bridge has dealt with them
+        for (Map.Entry<String, Set<String>> entry : this.mUnconfirmed.entrySet()) {
+            for (String operation : entry.getValue()) {
+                append(TYPE_INTEND, entry.getKey(), operation);
+            }
+        }
+
+        return result;
+    }
+
+    /** Appends a line and waits until it has been written to the disk. */
+    private void append(String... fields) {
+        StringBuilder line;
+        FileOutputStream out;
+
+        line = new StringBuilder();
+        for (String field : fields) {
+            if (line.length() > 0) {
+                line.append(FIELD_SEPARATOR);
+            }
+            line.append(field);
+        }
+        line.append('\n');
+
+        out = null;
+        try {
+            out = new FileOutputStream(this.mFile, true);
+            out.write(line.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } catch (IOException e) {
+            // without the journal we are as safe as before, so the synchronization goes on
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Could not write to the journal", e);
+            }
+        } finally {
+            close(out);
+        }
+    }
+
+    private void delete() {
+        if (this.mFile.exists() && !this.mFile.delete() && Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, "Could not delete the journal");
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing we can do
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.github.gentlewake.data.ApplicationPreferences;
+import org.github.gentlewake.data.SyncHistory;
+import org.github.gentlewake.util.ValueCallback;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Synchronizes the alarm with several bridges at once. Every bridge is handled on its own thread and talks to the
+ * bridge through a {@link RestBridge}, so the bridges don't have to share the single connection of the Hue SDK. Each
+ * bridge gets the full timeout: a bridge that is slow or not reachable only delays its own result, never the
+ * results of the others.
+ * <p/>
+ * The REST bridge can't create the light group, so a bridge has to be connected from the app once (which creates
+ * the group through the SDK) before it can be synchronized this way.
+ * <p/>
+ * The stages of each synchronization are recorded in the {@link SyncHistory}.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class BridgeFanOut {
+
+    private static final String TAG = "GentleWake.BridgeFanOut";
+
+    /** The name of the operation that loads the state of the bridge, as it is reported in the {@link SyncResult}. */
+    private static final String OPERATION_CONNECT = "Connect to bridge";
+
+    /** The threads synchronizing the bridges. Idle threads are discarded after a minute. */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+    private final Context mCtx;
+
+    private final ApplicationPreferences mPrefs;
+
+    /** The time each bridge has to complete its synchronization, in milliseconds. */
+    private final long mTimeoutMillis;
+
+    /** Receives the messages of the synchronizations of all bridges, can be <code>null</code>. */
+    private final ValueCallback<String> mMessageCallback;
+
+    /**
+     * @param ctx             the context used to read the configuration and the next alarm.
+     * @param timeoutMillis   the time each bridge has to complete its synchronization, in milliseconds.
+     * @param messageCallback receives the messages for the user, see {@link SyncManager#syncAlarm(ValueCallback)}.
+     *                        This parameter can be <code>null</code>.
+     */
+    public BridgeFanOut(Context ctx, long timeoutMillis, ValueCallback<String> messageCallback) {
+        this.mCtx = ctx.getApplicationContext();
+        this.mPrefs = ApplicationPreferences.getInstance(ctx);
+        this.mTimeoutMillis = timeoutMillis;
+        this.mMessageCallback = messageCallback;
+    }
+
+    /**
+     * Starts the synchronization of all given bridges. This method returns right away.
+     *
+     * @param addresses the addresses of the bridges to synchronize.
+     * @return the running synchronizations, by address. Pass them to {@link #await(Map)} to collect the results.
+     */
+    public Map<String, Future<SyncResult>> start(List<String> addresses) {
+        Map<String, Future<SyncResult>> result;
+
+        result = new LinkedHashMap<String, Future<SyncResult>>();
+        for (final String address : addresses) {
+            result.put(address, EXECUTOR.submit(new Callable<SyncResult>() {
+                @Override
+                public SyncResult call() {
+                    return sync(address);
+                }
+            }));
+        }
+
+        return result;
+    }
+
+    /**
+     * Waits for the results of the given synchronizations. As all of them were started together and each enforces
+     * its own timeout, this blocks for at most the timeout of a single bridge. Never call this on the UI thread.
+     *
+     * @param running the synchronizations as returned by {@link #start(List)}.
+     * @return the result of the synchronization of each bridge, by address.
+     */
+    public Map<String, SyncResult> await(Map<String, Future<SyncResult>> running) {
+        Map<String, SyncResult> result;
+
+        result = new LinkedHashMap<String, SyncResult>();
+        for (Map.Entry<String, Future<SyncResult>> entry : running.entrySet()) {
+            SyncResult bridgeResult;
+
+            try {
+                // the synchronization enforces the timeout itself, so this only waits a little longer
+                bridgeResult = entry.getValue().get(this.mTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                bridgeResult = failed("Interrupted");
+            } catch (ExecutionException e) {
+                bridgeResult = failed("Synchronization failed: " + e.getCause());
+            } catch (TimeoutException e) {
+                bridgeResult = failed("Not finished within " + this.mTimeoutMillis + "ms");
+            }
+            result.put(entry.getKey(), bridgeResult);
+        }
+
+        return result;
+    }
+
+    /**
+     * Synchronizes the alarm with a single bridge, waits for the synchronization to finish and records its timeline.
+     *
+     * @param address the address of the bridge.
+     * @return the result of the synchronization.
+     */
+    private SyncResult sync(String address) {
+        SyncTimeline timeline;
+        SyncResult result;
+
+        timeline = new SyncTimeline(address);
+        result = sync(address, timeline);
+        timeline.finish(result.toString());
+        SyncHistory.getInstance(this.mCtx).add(timeline);
+
+        return result;
+    }
+
+    /**
+     * @param address  the address of the bridge.
+     * @param timeline the timeline the stages of the synchronization are added to.
+     * @return the result of the synchronization.
+     */
+    private SyncResult sync(String address, SyncTimeline timeline) {
+        long deadline;
+        long offset;
+        SyncTimeline.Stage stage;
+        boolean reachable;
+        RestBridge bridge;
+        SyncManager manager;
+        SyncResult result;
+
+        deadline = SystemClock.elapsedRealtime() + this.mTimeoutMillis;
+
+        stage = timeline.begin("Probe bridge");
+        reachable = BridgeProbe.getInstance().isReachable(address);
+        stage.end();
+        if (!reachable) {
+            return failed("Bridge " + address + " is not reachable");
+        }
+
+        bridge = new RestBridge(address, this.mPrefs.getUsername());
+        stage = timeline.begin("Load bridge (REST)");
+        try {
+            bridge.load();
+        } catch (IOException e) {
+            return failed("Could not load the schedules of bridge " + address + ": " + e.getMessage());
+        } finally {
+            stage.end();
+        }
+
+        manager = new SyncManager(this.mCtx, bridge, address);
+        if (!manager.isGroupExistsOnBridge(this.mPrefs.getLightGroupName())) {
+            return failed("The light group does not exist on bridge " + address
+                    + ", connect to the bridge from the app to create it");
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Syncing bridge " + address + " ...");
+        }
+        offset = timeline.getElapsed();
+        result = manager.syncAlarm(this.mMessageCallback);
+        result.await(deadline - SystemClock.elapsedRealtime());
+        timeline.addOperations(result, offset);
+
+        return result;
+    }
+
+    /** @return a result reporting that the bridge could not be synchronized at all. */
+    private static SyncResult failed(String error) {
+        SyncResult result;
+
+        if (Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, error);
+        }
+
+        result = new SyncResult();
+        result.begin(OPERATION_CONNECT);
+        result.complete(OPERATION_CONNECT, error);
+        result.seal();
+
+        return result;
+    }
+}
@@ -0,0 +1,274 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests whether the bridge can be reached by opening a TCP connection to its HTTP port. Most of the synchronization
+ * triggers happen while the phone is not at home, so the most important job of this class is to say "no" quickly:
+ * <ul>
+ * <li>The connection is opened using a non-blocking channel, so we decide how long we wait for the bridge to answer.
+ * The timeout is derived from the round trip times of earlier probes of the same bridge the way TCP computes its
+ * retransmission timeout (RFC 6298: smoothed round trip time plus four times its variation), within
+ * {@link #MIN_TIMEOUT_MILLIS} and {@link #MAX_TIMEOUT_MILLIS}.</li>
+ * <li>A bridge is only deemed unreachable once it failed {@link #PROBE_ATTEMPTS} probes in a row, so a single lost
+ * packet does not cancel a synchronization. Within one check, each failed probe doubles the timeout of the next one
+ * (RFC 6298, section 5.5), but a check never takes longer than {@link #CHECK_BUDGET_MILLIS}. The next check starts
+ * with the timeout derived from the round trip times again.</li>
+ * <li>The verdict is cached for {@link #VERDICT_TTL_MILLIS}, so triggers that arrive shortly after each other do not
+ * probe the bridge again.</li>
+ * </ul>
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class BridgeProbe {
+
+    private static final String TAG = "GentleWake.BridgeProbe";
+
+    /** The port the bridge serves its REST API on. */
+    private static final int HTTP_PORT = 80;
+
+    /** The timeout we use as long as we don't know how fast the bridge answers. */
+    private static final long INITIAL_TIMEOUT_MILLIS = 400;
+
+    /** We never give up earlier than this, even if the bridge usually answers much quicker. */
+    private static final long MIN_TIMEOUT_MILLIS = 250;
+
+    /** The longest timeout of the first probe, so the probe after it still fits into the budget of the check. */
+    private static final long MAX_TIMEOUT_MILLIS = 500;
+
+    /** The number of probes that have to fail before a bridge is deemed unreachable. */
+    private static final int PROBE_ATTEMPTS = 2;
+
+    /** The longest time one check may take, including all its probes. Off the home network, this is what it costs. */
+    private static final long CHECK_BUDGET_MILLIS = 1000;
+
+    /** The time during which a verdict is reused instead of probing the bridge again. */
+    private static final long VERDICT_TTL_MILLIS = 30 * 1000;
+
+    /** The singleton. */
+    private static BridgeProbe sInstance;
+
+    /** The cached verdicts, by address. */
+    private final Map<String, Verdict> mVerdicts;
+
+    /** The round trip time estimates, by address. Each bridge is in a network of its own. */
+    private final Map<String, RttEstimate> mEstimates;
+
+    public static synchronized BridgeProbe getInstance() {
+        if (sInstance == null) {
+            sInstance = new BridgeProbe();
+        }
+        return sInstance;
+    }
+
+    private BridgeProbe() {
+        this.mVerdicts = new HashMap<String, Verdict>();
+        this.mEstimates = new HashMap<String, RttEstimate>();
+    }
+
+    /**
+     * Tests if the bridge with the given address is reachable. This method does not talk to the bridge, but only
+     * tries to establish a socket connection on its HTTP port. Never call this on the UI thread.
+     *
+     * @param address the ip address of the bridge, optionally followed by a colon and the port.
+     * @return true if the bridge can be reached, false otherwise.
+     */
+    public boolean isReachable(String address) {
+        Verdict verdict;
+        RttEstimate estimate;
+        boolean reachable;
+        long now;
+        long timeout;
+
+        now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            verdict = this.mVerdicts.get(address);
+            estimate = this.mEstimates.get(address);
+            if (estimate == null) {
+                estimate = new RttEstimate();
+                this.mEstimates.put(address, estimate);
+            }
+        }
+
+        if (verdict != null && now < verdict.mExpiresAt) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Reusing verdict for " + address + ": " + verdict.mReachable);
+            }
+            return verdict.mReachable;
+        }
+
+        reachable = false;
+        synchronized (this) {
+            timeout = estimate.getTimeout();
+        }
+        for (int attempt = 0; attempt < PROBE_ATTEMPTS && !reachable && timeout > 0; attempt++) {
+            long rtt;
+
+            rtt = probe(address, timeout);
+            reachable = rtt >= 0;
+            if (reachable) {
+                synchronized (this) {
+                    estimate.addSample(rtt);
+                }
+            }
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, address + (reachable ? " answered after " + rtt + "ms" : " did not answer within "
+                        + timeout + "ms"));
+            }
+
+            // back off, but only within the budget of this check
+            timeout = Math.min(2 * timeout, now + CHECK_BUDGET_MILLIS - SystemClock.elapsedRealtime());
+        }
+
+        synchronized (this) {
+            this.mVerdicts.put(address, new Verdict(reachable, SystemClock.elapsedRealtime() + VERDICT_TTL_MILLIS));
+        }
+
+        return reachable;
+    }
+
+    /**
+     * Forgets all verdicts. Call this when the phone connects to a network, as a bridge that was unreachable a
+     * moment ago may be reachable now.
+     */
+    public synchronized void invalidate() {
+        this.mVerdicts.clear();
+    }
+
+    /**
+     * Opens a TCP connection to the given address and closes it right away.
+     *
+     * @param address       the ip address of the bridge, optionally followed by a colon and the port.
+     * @param timeoutMillis the time to wait for the connection to be established.
+     * @return the time it took to establish the connection in milliseconds or -1 if it could not be established.
+     */
+    private static long probe(String address, long timeoutMillis) {
+        SocketChannel channel;
+        Selector selector;
+        long start;
+        long result;
+
+        channel = null;
+        selector = null;
+        result = -1;
+        start = SystemClock.elapsedRealtime();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(toSocketAddress(address))) {
+                result = SystemClock.elapsedRealtime() - start;
+            } else {
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_CONNECT);
+                if (selector.select(timeoutMillis) > 0 && channel.finishConnect()) {
+                    result = SystemClock.elapsedRealtime() - start;
+                }
+            }
+        } catch (IOException e) {
+            // connection refused, no route to host, ...
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Could not connect to " + address + ": " + e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            // e.g. an address that can't be resolved
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Could not probe " + address + ": " + e);
+            }
+        } finally {
+            // Selector only implements Closeable on newer versions of Android
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing we can do about it
+                }
+            }
+            close(channel);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the address of the HTTP port of the bridge. Ip addresses are not resolved, so this never blocks on a
+     * name lookup.
+     */
+    private static InetSocketAddress toSocketAddress(String address) {
+        int colon;
+
+        colon = address.lastIndexOf(':');
+        if (colon > 0) {
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
+        return new InetSocketAddress(address, HTTP_PORT);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing we can do about it
+            }
+        }
+    }
+
+    /** The round trip time estimate of one bridge and the timeout derived from it (see RFC 6298). */
+    private static class RttEstimate {
+
+        /** The smoothed round trip time in milliseconds or -1 if we haven't measured it yet. */
+        private long mSmoothedRtt;
+
+        /** The mean deviation of the round trip time in milliseconds. */
+        private long mRttVariation;
+
+        private RttEstimate() {
+            this.mSmoothedRtt = -1;
+        }
+
+        /** @return the timeout of the first probe of a check. */
+        private long getTimeout() {
+            if (this.mSmoothedRtt < 0) {
+                return INITIAL_TIMEOUT_MILLIS;
+            }
+            return Math.max(MIN_TIMEOUT_MILLIS,
+                    Math.min(MAX_TIMEOUT_MILLIS, this.mSmoothedRtt + 4 * this.mRttVariation));
+        }
+
+        /** Updates the estimates with a new measurement. */
+        private void addSample(long rtt) {
+            if (this.mSmoothedRtt < 0) {
+                this.mSmoothedRtt = rtt;
+                this.mRttVariation = rtt / 2;
+            } else {
+                this.mRttVariation = (3 * this.mRttVariation + Math.abs(this.mSmoothedRtt - rtt)) / 4;
+                this.mSmoothedRtt = (7 * this.mSmoothedRtt + rtt) / 8;
+            }
+        }
+    }
+
+    /** Whether an address was reachable and until when we believe it. */
+    private static class Verdict {
+
+        private final boolean mReachable;
+
+        private final long mExpiresAt;
+
+        private Verdict(boolean reachable, long expiresAt) {
+            this.mReachable = reachable;
+            this.mExpiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.philips.lighting.hue.sdk.PHHueSDK;
+import com.philips.lighting.model.PHBridge;
+
+import org.github.gentlewake.data.ApplicationPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the connection of the Hue SDK to the bridge alive while it is being used and for a while afterwards.
+ * Connecting to the bridge means downloading its whole configuration, so instead of disconnecting whenever a
+ * component is done with the bridge, all components that use the SDK (the sync service, the main activity and the
+ * setup fragment) {@link #acquire()} the session while they are running and {@link #release()} it afterwards. Only
+ * once the last user has released the session and it has not been acquired again for the time configured in
+ * {@link ApplicationPreferences#getSessionIdleSeconds()}, the SDK is disconnected from all bridges.
+ * <p/>
+ * This way, a synchronization triggered shortly after another one (or right after the app was closed) finds the SDK
+ * still connected and skips the connection handshake and the download of the resource cache.
+ * <p/>
+ * All methods have to be called on the main thread.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class BridgeSession {
+
+    private static final String TAG = "GentleWake.Session";
+
+    /** The singleton. */
+    private static BridgeSession sInstance;
+
+    private final ApplicationPreferences mPrefs;
+
+    /** The idle timer runs on the main thread. */
+    private final Handler mHandler;
+
+    /** Disconnects the SDK once the session has been idle for long enough. */
+    private final Runnable mDisconnectTask;
+
+    /** The number of components currently using the session. */
+    private int mUsers;
+
+    public static synchronized BridgeSession getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new BridgeSession(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BridgeSession(Context appContext) {
+        this.mPrefs = ApplicationPreferences.getInstance(appContext);
+        this.mHandler = new Handler(Looper.getMainLooper());
+        this.mDisconnectTask = new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+            }
+        };
+    }
+
+    /**
+     * Registers a user of the session. As long as there is at least one user, the SDK will not be disconnected by
+     * this class. Every call to this method has to be matched by a call to {@link #release()}.
+     */
+    public void acquire() {
+        this.mUsers++;
+        this.mHandler.removeCallbacks(this.mDisconnectTask);
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Session acquired, " + this.mUsers + " users");
+        }
+    }
+
+    /**
+     * Unregisters a user of the session. If this was the last user, the SDK will be disconnected after the
+     * configured idle time, unless the session is acquired again before.
+     */
+    public void release() {
+        long idleMillis;
+
+        if (this.mUsers == 0) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Session released more often than acquired");
+            }
+            return;
+        }
+
+        this.mUsers--;
+        if (this.mUsers == 0) {
+            idleMillis = this.mPrefs.getSessionIdleSeconds() * 1000L;
+            this.mHandler.postDelayed(this.mDisconnectTask, idleMillis);
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Session idle, disconnecting in " + idleMillis + "ms");
+            }
+        }
+    }
+
+    /** Disconnects the SDK from all bridges, if nobody acquired the session in the meantime. */
+    private void disconnect() {
+        PHHueSDK sdk;
+        List<PHBridge> bridges;
+
+        if (this.mUsers > 0) {
+            return;
+        }
+
+        sdk = PHHueSDK.getInstance();
+        bridges = new ArrayList<PHBridge>(sdk.getAllBridges()); // disconnecting modifies the list
+        for (PHBridge bridge : bridges) {
+            if (sdk.isHeartbeatEnabled(bridge)) {
+                sdk.disableHeartbeat(bridge);
+            }
+            sdk.disconnect(bridge);
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Session expired, disconnected from " + bridges.size() + " bridges");
+        }
+    }
+}
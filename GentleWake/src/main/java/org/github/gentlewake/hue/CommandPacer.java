@@ -0,0 +1,231 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Paces the commands that change the state of a bridge. The bridge starts rejecting or dropping commands once its
+ * clients send more than about ten per second, and a synchronization sends all its commands at once (see
+ * {@link SyncManager}). Every command that changes the bridge is therefore queued here and sent by a single thread
+ * per bridge, at most {@link #COMMANDS_PER_SECOND} per second.
+ * <p/>
+ * The rate is enforced with a token bucket: the bucket holds up to {@link #BURST} tokens and is refilled at the
+ * given rate; each command takes a token and waits for one if the bucket is empty. Short bursts go out right away,
+ * longer ones are spread out. Commands of an interactive synchronization (the user is watching) are sent before the
+ * commands of background synchronizations; commands of the same priority are sent in the order they were queued.
+ * <p/>
+ * The pacer only sends the commands, it doesn't wait for the bridge to answer them. The answers are still reported
+ * to the listeners of the commands, on the threads of the bridge.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class CommandPacer {
+
+    private static final String TAG = "GentleWake.CommandPacer";
+
+    /** The number of commands sent to a bridge per second, leaving some room for other apps. */
+    public static final int COMMANDS_PER_SECOND = 8;
+
+    /** The number of commands that can be sent right away, after the pacer was idle for a while. */
+    public static final int BURST = 4;
+
+    /** The order in which the commands of concurrent synchronizations are sent, highest priority first. */
+    public enum Priority {
+        /** The user started the synchronization and is waiting for it. */
+        INTERACTIVE,
+        /** The synchronization runs in the background. */
+        BACKGROUND
+    }
+
+    /** The pacers, by the address of their bridge. */
+    private static final Map<String, CommandPacer> sPacers = new HashMap<String, CommandPacer>();
+
+    /** The address of the bridge, used for logging. */
+    private final String mAddress;
+
+    /** The commands that have not been sent yet, in the order they have to be sent. */
+    private final PriorityBlockingQueue<Command> mQueue;
+
+    /** The number of tokens in the bucket, always accessed by the sending thread only. */
+    private double mTokens;
+
+    /** The time the bucket was refilled last, as returned by {@link SystemClock#elapsedRealtime()}. */
+    private long mRefillTime;
+
+    /** The number of commands queued so far, used to keep the order of commands with the same priority. */
+    private long mSequence;
+
+    /* The metrics, all guarded by the lock on this object. */
+
+    private int mMaxQueueDepth;
+
+    private long mSentCount;
+
+    private long mTotalWaitMillis;
+
+    private long mMaxWaitMillis;
+
+    /**
+     * @param address the address of the bridge.
+     * @return the pacer for the bridge with the given address. All commands for the same bridge must go through the
+     * same pacer.
+     */
+    public static CommandPacer forBridge(String address) {
+        CommandPacer result;
+
+        synchronized (sPacers) {
+            result = sPacers.get(address);
+            if (result == null) {
+                result = new CommandPacer(address);
+                sPacers.put(address, result);
+            }
+        }
+
+        return result;
+    }
+
+    private CommandPacer(String address) {
+        Thread sender;
+
+        this.mAddress = address;
+        this.mQueue = new PriorityBlockingQueue<Command>();
+        this.mTokens = BURST;
+        this.mRefillTime = SystemClock.elapsedRealtime();
+
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendForever();
+            }
+        }, TAG + " " + address);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues a command. This method returns right away, the command is sent as soon as the rate permits.
+     *
+     * @param priority the priority of the synchronization that sends the command.
+     * @param command  sends the command to the bridge. It must not block.
+     */
+    public void submit(Priority priority, Runnable command) {
+        synchronized (this) {
+            this.mQueue.add(new Command(priority, this.mSequence++, command));
+            this.mMaxQueueDepth = Math.max(this.mMaxQueueDepth, this.mQueue.size());
+        }
+    }
+
+    /** @return the number of commands waiting to be sent. */
+    public int getQueueDepth() {
+        return this.mQueue.size();
+    }
+
+    /** @return the largest number of commands that were waiting at the same time. */
+    public synchronized int getMaxQueueDepth() {
+        return this.mMaxQueueDepth;
+    }
+
+    /** @return the number of commands sent so far. */
+    public synchronized long getSentCount() {
+        return this.mSentCount;
+    }
+
+    /** @return the average time the commands waited in the queue, in milliseconds. */
+    public synchronized long getAverageWaitMillis() {
+        return this.mSentCount > 0 ? this.mTotalWaitMillis / this.mSentCount : 0;
+    }
+
+    /** @return the longest time a command waited in the queue, in milliseconds. */
+    public synchronized long getMaxWaitMillis() {
+        return this.mMaxWaitMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Pacer of " + this.mAddress + ": " + this.mSentCount + " commands sent, queue depth "
+                + this.mQueue.size() + " (max " + this.mMaxQueueDepth + "), wait " + getAverageWaitMillis()
+                + "ms on average (max " + this.mMaxWaitMillis + "ms)";
+    }
+
+    /** Sends the queued commands, one token at a time. Runs on the sending thread of this pacer. */
+    private void sendForever() {
+        while (true) {
+            Command command;
+            long waited;
+
+            try {
+                command = this.mQueue.take();
+                takeToken();
+            } catch (InterruptedException e) {
+                return; // the thread is a daemon, this only happens when the process goes away
+            }
+
+            waited = SystemClock.elapsedRealtime() - command.mQueuedAt;
+            synchronized (this) {
+                this.mSentCount++;
+                this.mTotalWaitMillis += waited;
+                this.mMaxWaitMillis = Math.max(this.mMaxWaitMillis, waited);
+            }
+
+            try {
+                command.mCommand.run();
+            } catch (RuntimeException e) {
+                if (Log.isLoggable(TAG, Log.ERROR)) {
+                    Log.e(TAG, "Command for bridge " + this.mAddress + " failed", e);
+                }
+            }
+
+            if (this.mQueue.isEmpty() && Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, toString());
+            }
+        }
+    }
+
+    /** Takes a token from the bucket, waiting for one to be refilled if the bucket is empty. */
+    private void takeToken() throws InterruptedException {
+        long now;
+
+        now = SystemClock.elapsedRealtime();
+        this.mTokens = Math.min(BURST, this.mTokens + (now - this.mRefillTime) * COMMANDS_PER_SECOND / 1000.0);
+        this.mRefillTime = now;
+        if (this.mTokens < 1) {
+            Thread.sleep((long) Math.ceil((1 - this.mTokens) * 1000 / COMMANDS_PER_SECOND));
+            now = SystemClock.elapsedRealtime();
+            this.mTokens += (now - this.mRefillTime) * COMMANDS_PER_SECOND / 1000.0;
+            this.mRefillTime = now;
+        }
+        this.mTokens -= 1;
+    }
+
+    /** A queued command, ordered by priority and then by the time it was queued. */
+    private static final class Command implements Comparable<Command> {
+
+        private final Priority mPriority;
+
+        private final long mSequence;
+
+        private final long mQueuedAt;
+
+        private final Runnable mCommand;
+
+        private Command(Priority priority, long sequence, Runnable command) {
+            this.mPriority = priority;
+            this.mSequence = sequence;
+            this.mQueuedAt = SystemClock.elapsedRealtime();
+            this.mCommand = command;
+        }
+
+        @Override
+        public int compareTo(Command other) {
+            if (this.mPriority != other.mPriority) {
+                return this.mPriority.compareTo(other.mPriority);
+            }
+            return this.mSequence < other.mSequence ? -1 : (this.mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
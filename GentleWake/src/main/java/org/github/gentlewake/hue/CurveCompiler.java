@@ -0,0 +1,292 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import com.philips.lighting.model.PHLightState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns a {@link WakeCurve} into the schedules that play it on the bridge. The bridge can only move the lights
+ * linearly from their current state to a target state, within at most {@link #MAX_TRANSITION_SECONDS}. Each such
+ * transition needs its own schedule, and the schedule table of the bridge is small and shared with all other apps,
+ * so the compiler looks for the smallest number of transitions that follow the curve closely enough:
+ * <ol>
+ * <li>Keyframes that are further apart than the longest transition are split.</li>
+ * <li>Starting at the first keyframe, each transition is extended over as many keyframes as possible, as long as
+ * none of the skipped keyframes deviates from the straight line by more than the tolerance.</li>
+ * <li>If this needs more schedules than allowed, the tolerance is doubled and the curve compiled again.</li>
+ * </ol>
+ * Deviations are measured relative to the full range of the value, so a tolerance of 0.05 allows the brightness
+ * to be off by about 13 steps and the colour temperature by about 17 mireds.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class CurveCompiler {
+
+    /** The longest transition the bridge supports: the transition time is a 16 bit number of 100ms. */
+    public static final int MAX_TRANSITION_SECONDS = 0xFFFF / 10;
+
+    /** Utility classes should never be instantiated. */
+    private CurveCompiler() {}
+
+    /**
+     * Compiles the curve into the steps that have to be scheduled on the bridge.
+     *
+     * @param curve        the curve to compile.
+     * @param tolerance    the largest deviation from the curve that is acceptable, relative to the full range.
+     * @param maxSchedules the largest number of schedules the curve may use, including the one that turns the
+     *                     lights on. Must be at least 2.
+     * @return the steps of the curve and what they cost.
+     * @throws IllegalArgumentException if the curve can't be played with the given number of schedules, even when
+     *                                  ignoring the tolerance.
+     */
+    public static Result compile(WakeCurve curve, double tolerance, int maxSchedules) {
+        double[][] points;
+        double currentTolerance;
+        List<Integer> ends;
+
+        if (maxSchedules < 2) {
+            throw new IllegalArgumentException("A curve needs at least 2 schedules");
+        }
+
+        points = split(curve);
+        currentTolerance = tolerance;
+        ends = fit(points, currentTolerance);
+        while (ends.size() + 1 > maxSchedules) {
+            if (currentTolerance >= 1) {
+                throw new IllegalArgumentException("The curve needs at least " + (ends.size() + 1)
+                        + " schedules, but only " + maxSchedules + " are available");
+            }
+            currentTolerance = currentTolerance > 0 ? Math.min(1, currentTolerance * 2) : 0.01;
+            ends = fit(points, currentTolerance);
+        }
+
+        return new Result(curve, points, ends, currentTolerance);
+    }
+
+    /**
+     * Converts the keyframes into points (seconds, brightness, ct) and inserts points wherever two keyframes are
+     * too far apart to be connected by a single transition.
+     */
+    private static double[][] split(WakeCurve curve) {
+        List<double[]> result;
+        List<WakeCurve.Keyframe> keyframes;
+
+        keyframes = curve.getKeyframes();
+        result = new ArrayList<double[]>();
+        result.add(toPoint(keyframes.get(0)));
+        for (int i = 1; i < keyframes.size(); i++) {
+            double[] from;
+            double[] to;
+            int parts;
+
+            from = toPoint(keyframes.get(i - 1));
+            to = toPoint(keyframes.get(i));
+            parts = (int) Math.ceil((to[0] - from[0]) / MAX_TRANSITION_SECONDS);
+            for (int part = 1; part < parts; part++) {
+                result.add(interpolate(from, to, from[0] + (to[0] - from[0]) * part / parts));
+            }
+            result.add(to);
+        }
+
+        return result.toArray(new double[result.size()][]);
+    }
+
+    /**
+     * @return the indexes of the points at which the transitions end. The first transition starts at point 0, all
+     * others where the previous one ended.
+     */
+    private static List<Integer> fit(double[][] points, double tolerance) {
+        List<Integer> result;
+        int start;
+
+        result = new ArrayList<Integer>();
+        start = 0;
+        while (start < points.length - 1) {
+            int end;
+
+            end = start + 1;
+            while (end + 1 < points.length
+                    && points[end + 1][0] - points[start][0] <= MAX_TRANSITION_SECONDS
+                    && deviation(points, start, end + 1) <= tolerance) {
+                end++;
+            }
+            result.add(end);
+            start = end;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the largest deviation of the points between <code>start</code> and <code>end</code> from the straight
+     * line connecting the two, relative to the full range of the values.
+     */
+    private static double deviation(double[][] points, int start, int end) {
+        double result;
+
+        result = 0;
+        for (int i = start + 1; i < end; i++) {
+            double[] onLine;
+
+            onLine = interpolate(points[start], points[end], points[i][0]);
+            result = Math.max(result, Math.abs(onLine[1] - points[i][1])
+                    / (LightStates.BRIGHTNESS_MAX - LightStates.BRIGHTNESS_MIN));
+            if (points[i][2] != PHLightState.VALUE_NOT_SET) {
+                result = Math.max(result, Math.abs(onLine[2] - points[i][2])
+                        / (LightStates.CT_MAX - LightStates.CT_MIN));
+            }
+        }
+
+        return result;
+    }
+
+    /** @return the point on the line between <code>from</code> and <code>to</code> at the given time. */
+    private static double[] interpolate(double[] from, double[] to, double seconds) {
+        double fraction;
+
+        fraction = (seconds - from[0]) / (to[0] - from[0]);
+        return new double[]{
+                seconds,
+                from[1] + (to[1] - from[1]) * fraction,
+                from[2] == PHLightState.VALUE_NOT_SET ? from[2] : from[2] + (to[2] - from[2]) * fraction
+        };
+    }
+
+    private static double[] toPoint(WakeCurve.Keyframe keyframe) {
+        return new double[]{keyframe.getSeconds(), keyframe.getBrightness(), keyframe.getCt()};
+    }
+
+    /**
+     * One schedule of a compiled curve: at the given time after the start of the curve, the lights start moving
+     * towards the given state.
+     */
+    public static final class Step {
+
+        private final int mOffsetSeconds;
+
+        private final int mBrightness;
+
+        private final int mCt;
+
+        /** The time the lights take to reach the state, in 100ms. 0 for the step that turns the lights on. */
+        private final int mTransitionTime;
+
+        private Step(int offsetSeconds, int brightness, int ct, int transitionTime) {
+            this.mOffsetSeconds = offsetSeconds;
+            this.mBrightness = brightness;
+            this.mCt = ct;
+            this.mTransitionTime = transitionTime;
+        }
+
+        /** @return the time at which the step starts, in seconds after the start of the curve. */
+        public int getOffsetSeconds() {
+            return mOffsetSeconds;
+        }
+
+        /**
+         * @return a new light state for the schedule of this step. The first step turns the lights on, all others
+         * move them to the next state of the curve.
+         */
+        public PHLightState createLightState() {
+            PHLightState result;
+
+            result = new PHLightState();
+            if (mTransitionTime == 0) {
+                result.setOn(true);
+            } else {
+                result.setTransitionTime(mTransitionTime);
+            }
+            result.setBrightness(mBrightness);
+            if (mCt != PHLightState.VALUE_NOT_SET) {
+                result.setCt(mCt);
+            }
+
+            return result;
+        }
+
+        /** @return the number of values (on, brightness, colour temperature) this step changes. */
+        private int getCommandCount() {
+            return 1 + (mTransitionTime == 0 ? 1 : 0) + (mCt != PHLightState.VALUE_NOT_SET ? 1 : 0);
+        }
+    }
+
+    /** The steps of a compiled curve and what it costs to play them. */
+    public static final class Result {
+
+        private final WakeCurve mCurve;
+
+        private final List<Step> mSteps;
+
+        /** The largest deviation from the curve, relative to the full range. */
+        private final double mMaxDeviation;
+
+        /** The tolerance the curve was compiled with, which may be larger than the one requested. */
+        private final double mTolerance;
+
+        private Result(WakeCurve curve, double[][] points, List<Integer> ends, double tolerance) {
+            int start;
+            double maxDeviation;
+
+            this.mCurve = curve;
+            this.mTolerance = tolerance;
+            this.mSteps = new ArrayList<Step>(ends.size() + 1);
+            this.mSteps.add(new Step(0, (int) Math.round(points[0][1]), (int) Math.round(points[0][2]), 0));
+
+            start = 0;
+            maxDeviation = 0;
+            for (int end : ends) {
+                this.mSteps.add(new Step((int) points[start][0], (int) Math.round(points[end][1]),
+                        (int) Math.round(points[end][2]), (int) Math.round((points[end][0] - points[start][0]) * 10)));
+                maxDeviation = Math.max(maxDeviation, deviation(points, start, end));
+                start = end;
+            }
+            this.mMaxDeviation = maxDeviation;
+        }
+
+        /** @return the steps, ordered by time. The first step turns the lights on. */
+        public List<Step> getSteps() {
+            return Collections.unmodifiableList(mSteps);
+        }
+
+        /** @return the time from turning on the lights until the end of the curve, in seconds. */
+        public int getDurationSeconds() {
+            return mCurve.getDurationSeconds();
+        }
+
+        /** @return the number of schedules needed to play the curve. */
+        public int getScheduleCount() {
+            return mSteps.size();
+        }
+
+        /** @return the number of values the bridge changes on the lights while playing the curve. */
+        public int getCommandCount() {
+            int result;
+
+            result = 0;
+            for (Step step : mSteps) {
+                result += step.getCommandCount();
+            }
+
+            return result;
+        }
+
+        /** @return the largest deviation from the curve, relative to the full range of the values. */
+        public double getMaxDeviation() {
+            return mMaxDeviation;
+        }
+
+        /** @return the tolerance the curve was compiled with. */
+        public double getTolerance() {
+            return mTolerance;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Curve '%s': %d schedules, %d commands, max deviation %.1f%% (tolerance %.1f%%)",
+                    mCurve, getScheduleCount(), getCommandCount(), mMaxDeviation * 100, mTolerance * 100);
+        }
+    }
+}
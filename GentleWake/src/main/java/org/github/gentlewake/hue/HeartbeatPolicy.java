@@ -0,0 +1,234 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.philips.lighting.hue.sdk.PHHueSDK;
+import com.philips.lighting.model.PHBridge;
+
+import org.github.gentlewake.data.ApplicationPreferences;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how often the state of the bridge is refreshed. The heartbeat of the Hue SDK downloads the whole
+ * configuration of the bridge (all lights, scenes, rules, ...) and can't be limited to the parts we need, while
+ * GentleWake only ever shows its schedules and needs the light groups. So instead of running the heartbeat of the SDK
+ * at its default interval for as long as the app is connected:
+ * <ul>
+ * <li>While a view that shows the state of the bridge is visible, the schedules and groups are fetched through the
+ * REST API every {@link #FOREGROUND_POLL_MILLIS} and passed to the {@link Listener}s. The heartbeat of the SDK only
+ * runs every {@link #FOREGROUND_HEARTBEAT_MILLIS}, which keeps the resource cache of the SDK from getting too old and
+ * lets the SDK notice a lost connection.</li>
+ * <li>Otherwise, nothing is polled and the heartbeat of the SDK is suspended.</li>
+ * </ul>
+ * Either way, the resource cache of the SDK may be much older than the state of the bridge, even though the SDK is
+ * still connected. Whoever synchronizes against it has to check {@link #isCacheCurrent(PHBridge)} first and load the
+ * schedules through the REST API if it isn't.
+ * <p/>
+ * All methods but {@link #isCacheCurrent(PHBridge)} have to be called on the main thread.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class HeartbeatPolicy {
+
+    private static final String TAG = "GentleWake.Heartbeat";
+
+    /** The interval at which the schedules and groups are fetched while the state of the bridge is shown. */
+    public static final long FOREGROUND_POLL_MILLIS = 10 * 1000;
+
+    /** The interval of the heartbeat of the SDK while the state of the bridge is shown. */
+    public static final long FOREGROUND_HEARTBEAT_MILLIS = 5 * 60 * 1000;
+
+    /** Receives the schedules and groups of the bridge. */
+    public interface Listener {
+
+        /**
+         * Called on a background thread whenever the schedules and groups have been fetched.
+         *
+         * @param bridge the bridge, its resource cache contains the schedules and groups.
+         */
+        void onBridgeRefreshed(RestBridge bridge);
+    }
+
+    /** The singleton. */
+    private static HeartbeatPolicy sInstance;
+
+    /** Fetches the schedules and groups. */
+    private static final ScheduledExecutorService POLLER = Executors.newSingleThreadScheduledExecutor();
+
+    private final ApplicationPreferences mPrefs;
+
+    private final List<Listener> mListeners;
+
+    /** Fetches the schedules and groups and passes them to the listeners. */
+    private final Runnable mPollTask;
+
+    /** The number of visible views that show the state of the bridge. */
+    private int mVisible;
+
+    /** The scheduled poll, <code>null</code> while we don't poll. */
+    private ScheduledFuture<?> mPoll;
+
+    /** The time the resource cache of the SDK was last refreshed, by address of the bridge. */
+    private final Map<String, Long> mCacheRefreshed;
+
+    /** Records when the SDK refreshes its resource cache. Subscriptions are weak, so we keep a reference. */
+    private final DefaultPHSDKListener mCacheListener;
+
+    public static synchronized HeartbeatPolicy getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new HeartbeatPolicy(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private HeartbeatPolicy(Context appContext) {
+        this.mPrefs = ApplicationPreferences.getInstance(appContext);
+        this.mListeners = new CopyOnWriteArrayList<Listener>();
+        this.mPollTask = new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        };
+        this.mCacheRefreshed = new ConcurrentHashMap<String, Long>();
+        this.mCacheListener = new DefaultPHSDKListener() {
+            @Override
+            public void onCacheUpdated(int flags, PHBridge bridge) {
+                onCacheRefreshed(bridge);
+            }
+
+            @Override
+            public void onBridgeConnected(PHBridge bridge) {
+                onCacheRefreshed(bridge);
+            }
+        };
+        SdkEventDispatcher.getInstance().subscribe(this.mCacheListener, SdkEventDispatcher.Delivery.SDK_THREAD);
+    }
+
+    /**
+     * Tells the policy that a view showing the state of the bridge became visible. Every call has to be followed by
+     * a call to {@link #onHidden()}.
+     */
+    public void onVisible() {
+        this.mVisible++;
+        if (this.mVisible == 1) {
+            apply();
+        }
+    }
+
+    /** Tells the policy that a view showing the state of the bridge is not visible anymore. */
+    public void onHidden() {
+        this.mVisible = Math.max(0, this.mVisible - 1);
+        if (this.mVisible == 0) {
+            apply();
+        }
+    }
+
+    /**
+     * Applies the policy to a bridge the SDK just connected to. Use this instead of enabling the heartbeat.
+     *
+     * @param bridge the bridge.
+     */
+    public void onBridgeConnected(PHBridge bridge) {
+        apply(PHHueSDK.getInstance(), bridge);
+    }
+
+    /**
+     * Tells whether the resource cache of the SDK can be synchronized against. With the heartbeat suspended or slowed
+     * down, the cache of a connected bridge may miss schedules that have been created or changed since, which would
+     * make a synchronization create them again or skip writes. May be called on any thread.
+     *
+     * @param bridge the bridge.
+     * @return true if the cache has been refreshed within the last {@link #FOREGROUND_POLL_MILLIS}.
+     */
+    public boolean isCacheCurrent(PHBridge bridge) {
+        Long refreshed;
+
+        refreshed = this.mCacheRefreshed.get(getIpAddress(bridge));
+        return refreshed != null && SystemClock.elapsedRealtime() - refreshed < FOREGROUND_POLL_MILLIS;
+    }
+
+    public void addListener(Listener listener) {
+        this.mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        this.mListeners.remove(listener);
+    }
+
+    /** Starts or stops polling and sets the heartbeat of all bridges, depending on whether a view is visible. */
+    private void apply() {
+        PHHueSDK sdk;
+
+        sdk = PHHueSDK.getInstance();
+        for (PHBridge bridge : sdk.getAllBridges()) {
+            apply(sdk, bridge);
+        }
+
+        if (this.mVisible > 0 && this.mPoll == null) {
+            this.mPoll = POLLER.scheduleWithFixedDelay(this.mPollTask, 0, FOREGROUND_POLL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } else if (this.mVisible == 0 && this.mPoll != null) {
+            this.mPoll.cancel(false);
+            this.mPoll = null;
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, this.mVisible > 0 ? "Foreground: polling schedules and groups" : "Background: suspended");
+        }
+    }
+
+    private void apply(PHHueSDK sdk, PHBridge bridge) {
+        if (sdk.isHeartbeatEnabled(bridge)) {
+            sdk.disableHeartbeat(bridge);
+        }
+        if (this.mVisible > 0) {
+            sdk.enableHeartbeat(bridge, FOREGROUND_HEARTBEAT_MILLIS);
+        }
+    }
+
+    private void onCacheRefreshed(PHBridge bridge) {
+        this.mCacheRefreshed.put(getIpAddress(bridge), SystemClock.elapsedRealtime());
+    }
+
+    private static String getIpAddress(PHBridge bridge) {
+        return bridge.getResourceCache().getBridgeConfiguration().getIpAddress();
+    }
+
+    /** Fetches the schedules and groups of the last connected bridge. Runs on the poller thread. */
+    private void poll() {
+        String ipAddress;
+        RestBridge bridge;
+
+        ipAddress = this.mPrefs.getLastConnectedIPAddress();
+        if (ipAddress == null || ipAddress.isEmpty() || this.mListeners.isEmpty()) {
+            return;
+        }
+
+        bridge = new RestBridge(ipAddress, this.mPrefs.getUsername());
+        try {
+            bridge.load();
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Could not fetch schedules and groups from " + ipAddress + ": " + e.getMessage());
+            }
+            return;
+        }
+
+        for (Listener listener : this.mListeners) {
+            listener.onBridgeRefreshed(bridge);
+        }
+    }
+}
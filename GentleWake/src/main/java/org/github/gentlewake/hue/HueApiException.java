@@ -0,0 +1,45 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import java.io.IOException;
+
+/**
+ * Signals that the Hue bridge answered a request with an error object, e.g.:
+ * <pre>[{"error":{"type":3,"address":"/schedules/7","description":"resource, /schedules/7, not available"}}]</pre>
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class HueApiException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The error type the bridge reports if a resource (e.g. a schedule) does not exist. */
+    public static final int TYPE_RESOURCE_NOT_AVAILABLE = 3;
+
+    /** The error type as reported by the bridge. */
+    private final int mType;
+
+    /** The address of the resource that caused the error. */
+    private final String mAddress;
+
+    /**
+     * @param type        the error type as reported by the bridge.
+     * @param address     the address of the resource that caused the error.
+     * @param description the error description as reported by the bridge.
+     */
+    public HueApiException(int type, String address, String description) {
+        super("Error " + type + " on '" + address + "': " + description);
+        this.mType = type;
+        this.mAddress = address;
+    }
+
+    /** @return the error type as reported by the bridge. */
+    public int getType() {
+        return mType;
+    }
+
+    /** @return the address of the resource that caused the error. */
+    public String getAddress() {
+        return mAddress;
+    }
+}
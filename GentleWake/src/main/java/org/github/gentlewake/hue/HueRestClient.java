@@ -0,0 +1,604 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHLightState;
+import com.philips.lighting.model.PHSchedule;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDeleteHC4;
+import org.apache.http.client.methods.HttpGetHC4;
+import org.apache.http.client.methods.HttpPostHC4;
+import org.apache.http.client.methods.HttpPutHC4;
+import org.apache.http.client.methods.HttpRequestBaseHC4;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntityHC4;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtilsHC4;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * A minimal client for the REST API of the Hue bridge. In contrast to the Hue SDK, which downloads the complete
+ * datastore of the bridge (lights, groups, schedules, configuration) when connecting, this client only talks to the
+ * endpoints GentleWake needs to keep its schedules up to date: <code>/groups</code>, <code>/schedules</code> and
+ * <code>/schedules/&lt;id&gt;</code>.
+ * <p/>
+ * All instances share one HTTP client with a connection pool, so subsequent requests to the bridge reuse the same
+ * (kept alive) connection. The pool grows with the number of bridges, so the bridges synchronized in parallel don't
+ * wait for each other's connections. Responses are parsed in a streaming fashion, without building a DOM first.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class HueRestClient {
+
+    private static final String TAG = "GentleWake.RestClient";
+
+    /** The number of milliseconds we wait for a tcp connection to the bridge to be established. */
+    private static final int CONNECT_TIMEOUT_MILLIS = 3 * 1000;
+
+    /** The number of milliseconds we wait for the bridge to answer a request. */
+    private static final int SOCKET_TIMEOUT_MILLIS = 5 * 1000;
+
+    /** We never send more than three requests (one per schedule) to a bridge at the same time. */
+    private static final int MAX_CONNECTIONS = 3;
+
+    /** The number of milliseconds a request waits for a connection of the pool to become available. */
+    private static final int CONNECTION_REQUEST_TIMEOUT_MILLIS = 5 * 1000;
+
+    /** The format of the (UTC) time of a schedule, as used by the bridge. */
+    private static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
+    /** The format of the time of the day of recurring schedules, e.g. "W124/T06:30:00". */
+    private static final String TIME_OF_DAY_FORMAT = "HH:mm:ss";
+
+    /** The prefix of the time of recurring schedules, followed by the bit mask of the days of the week. */
+    private static final String RECURRING_PREFIX = "W";
+
+    /** The http client shared by all instances, so that connections can be reused. */
+    private static CloseableHttpClient sHttpClient;
+
+    /** The connection pool of {@link #sHttpClient}. */
+    private static PoolingHttpClientConnectionManager sConnectionManager;
+
+    /** The addresses of all bridges clients have been created for. */
+    private static final Set<String> sAddresses = new HashSet<String>();
+
+    /** The address of the bridge, e.g. "192.168.1.2". A port can be appended, e.g. "127.0.0.1:8080". */
+    private final String mIpAddress;
+
+    /** The username (whitelist entry) this app uses when talking to the bridge. */
+    private final String mUsername;
+
+    /** The url prefix for all requests, e.g. "http://192.168.1.2/api/username". */
+    private final String mBaseUrl;
+
+    /**
+     * @param ipAddress the address of the bridge.
+     * @param username  the username this app is registered with on the bridge.
+     */
+    public HueRestClient(String ipAddress, String username) {
+        if (ipAddress == null) {
+            throw new IllegalArgumentException("IP address cannot be Null");
+        }
+        if (username == null) {
+            throw new IllegalArgumentException("Username cannot be Null");
+        }
+
+        this.mIpAddress = ipAddress;
+        this.mUsername = username;
+        this.mBaseUrl = "http://" + ipAddress + "/api/" + username;
+        addBridge(ipAddress);
+    }
+
+    /** @return the address of the bridge this client talks to. */
+    public String getIpAddress() {
+        return mIpAddress;
+    }
+
+    /** @return the username this client uses to authenticate with the bridge. */
+    public String getUsername() {
+        return mUsername;
+    }
+
+    /**
+     * @return all groups configured on the bridge. The groups carry their identifier, their name and, if the bridge
+     * reports them, the identifiers of their lights.
+     * @throws IOException if the bridge could not be reached or answered with an error.
+     */
+    public List<PHGroup> getGroups() throws IOException {
+        final List<PHGroup> result;
+
+        result = new ArrayList<PHGroup>();
+        execute(new HttpGetHC4(mBaseUrl + "/groups"), new ResponseParser() {
+            @Override
+            public void parse(JsonReader reader) throws IOException {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    result.add(readGroup(reader.nextName(), reader));
+                }
+                reader.endObject();
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * @return all schedules of the bridge, whether they were created by this app or not. The bridge sends all of
+     * them in one response, which is cheaper than loading a few of them one by one.
+     * @throws IOException if the bridge could not be reached or answered with an error.
+     */
+    public List<PHSchedule> getSchedules() throws IOException {
+        final List<PHSchedule> result;
+
+        result = new ArrayList<PHSchedule>();
+        execute(new HttpGetHC4(mBaseUrl + "/schedules"), new ResponseParser() {
+            @Override
+            public void parse(JsonReader reader) throws IOException {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    result.add(readSchedule(reader.nextName(), reader));
+                }
+                reader.endObject();
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * @param scheduleId the identifier of the schedule to load.
+     * @return the schedule with the given identifier or <code>null</code> if there is no such schedule.
+     * @throws IOException if the bridge could not be reached or answered with an error.
+     */
+    public PHSchedule getSchedule(final String scheduleId) throws IOException {
+        final PHSchedule[] result;
+
+        result = new PHSchedule[1];
+        try {
+            execute(new HttpGetHC4(mBaseUrl + "/schedules/" + scheduleId), new ResponseParser() {
+                @Override
+                public void parse(JsonReader reader) throws IOException {
+                    result[0] = readSchedule(scheduleId, reader);
+                }
+            });
+        } catch (HueApiException e) {
+            if (e.getType() != HueApiException.TYPE_RESOURCE_NOT_AVAILABLE) {
+                throw e;
+            }
+        }
+
+        return result[0];
+    }
+
+    /**
+     * Creates a new schedule on the bridge.
+     *
+     * @param schedule the schedule to create.
+     * @return the identifier the bridge assigned to the new schedule.
+     * @throws IOException if the bridge could not be reached or answered with an error.
+     */
+    public String createSchedule(PHSchedule schedule) throws IOException {
+        final String[] result;
+        HttpPostHC4 request;
+
+        result = new String[1];
+        request = new HttpPostHC4(mBaseUrl + "/schedules");
+        request.setEntity(new StringEntityHC4(writeSchedule(schedule), ContentType.APPLICATION_JSON));
+        execute(request, new ResponseParser() {
+            @Override
+            public void parse(JsonReader reader) throws IOException {
+                result[0] = readSuccess(reader, "id");
+            }
+        });
+
+        return result[0];
+    }
+
+    /**
+     * Sends all the fields of the schedule that GentleWake manages to the bridge.
+     *
+     * @param schedule the schedule to update. Its identifier must be set.
+     * @throws IOException if the bridge could not be reached or answered with an error.
+     */
+    public void updateSchedule(PHSchedule schedule) throws IOException {
+        HttpPutHC4 request;
+
+        request = new HttpPutHC4(mBaseUrl + "/schedules/" + schedule.getIdentifier());
+        request.setEntity(new StringEntityHC4(writeSchedule(schedule), ContentType.APPLICATION_JSON));
+        execute(request, new ResponseParser() {
+            @Override
+            public void parse(JsonReader reader) throws IOException {
+                readSuccess(reader, null);
+            }
+        });
+    }
+
+    /**
+     * @param scheduleId the identifier of the schedule to remove from the bridge.
+     * @throws IOException if the bridge could not be reached or answered with an error.
+     */
+    public void removeSchedule(String scheduleId) throws IOException {
+        execute(new HttpDeleteHC4(mBaseUrl + "/schedules/" + scheduleId), new ResponseParser() {
+            @Override
+            public void parse(JsonReader reader) throws IOException {
+                readSuccess(reader, null);
+            }
+        });
+    }
+
+    /**
+     * Sends the request to the bridge and hands the response to the parser. Error responses of the bridge are
+     * turned into a {@link HueApiException}. The response is always consumed completely, so the connection can be
+     * reused.
+     *
+     * @param request the request to send.
+     * @param parser  the parser for a successful response.
+     * @throws IOException if the bridge could not be reached or answered with an error.
+     */
+    private void execute(HttpRequestBaseHC4 request, ResponseParser parser) throws IOException {
+        CloseableHttpResponse response;
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, request.getMethod() + " " + request.getURI().getPath());
+        }
+
+        response = getHttpClient().execute(request);
+        try {
+            HttpEntity entity;
+            JsonReader reader;
+
+            entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Empty response from bridge (HTTP " + response.getStatusLine() + ")");
+            }
+
+            reader = new JsonReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                checkErrors(reader);
+            }
+            parser.parse(reader);
+            EntityUtilsHC4.consume(entity);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * The bridge reports the results of modifying requests (and failed reads) as an array of "success" or "error"
+     * objects. This method throws an exception if the first entry in the array is an error. Otherwise the reader is
+     * left positioned at the value of the first "success" entry.
+     *
+     * @param reader a reader positioned at the start of the response array.
+     * @throws HueApiException if the response contains an error.
+     */
+    private static void checkErrors(JsonReader reader) throws IOException {
+        reader.beginArray();
+        if (reader.hasNext()) {
+            reader.beginObject();
+            if ("error".equals(reader.nextName())) {
+                int type;
+                String address;
+                String description;
+
+                type = -1;
+                address = null;
+                description = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name;
+
+                    name = reader.nextName();
+                    if ("type".equals(name)) {
+                        type = reader.nextInt();
+                    } else if ("address".equals(name)) {
+                        address = reader.nextString();
+                    } else if ("description".equals(name)) {
+                        description = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                throw new HueApiException(type, address, description);
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of a success response, after {@link #checkErrors(JsonReader)} has verified that the first
+     * result is a success.
+     *
+     * @param reader  the reader positioned at the value of the first "success" entry.
+     * @param idField the name of the field whose value should be returned, may be <code>null</code>.
+     * @return the value of the requested field of the first success entry or <code>null</code>.
+     */
+    private static String readSuccess(JsonReader reader, String idField) throws IOException {
+        String result;
+
+        result = null;
+        if (idField != null && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (idField.equals(reader.nextName())) {
+                    result = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+
+        return result;
+    }
+
+    private static PHGroup readGroup(String groupId, JsonReader reader) throws IOException {
+        PHGroup result;
+        String name;
+        List<String> lightIds;
+
+        name = null;
+        lightIds = new ArrayList<String>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field;
+
+            field = reader.nextName();
+            if ("name".equals(field)) {
+                name = reader.nextString();
+            } else if ("lights".equals(field)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    lightIds.add(reader.nextString());
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        result = new PHGroup(name, groupId);
+        result.setLightIdentifiers(lightIds.toArray(new String[lightIds.size()]));
+
+        return result;
+    }
+
+    private static PHSchedule readSchedule(String scheduleId, JsonReader reader) throws IOException {
+        PHSchedule result;
+
+        result = new PHSchedule("");
+        result.setIdentifier(scheduleId);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field;
+
+            field = reader.nextName();
+            if ("name".equals(field)) {
+                result.setName(reader.nextString());
+            } else if ("description".equals(field)) {
+                result.setDescription(reader.nextString());
+            } else if ("time".equals(field) && result.getRecurringDays() == 0) {
+                try {
+                    result.setDate(createTimeFormat().parse(reader.nextString()));
+                } catch (ParseException e) {
+                    // timers have a different format, they are of no interest to us
+                    result.setDate(null);
+                }
+            } else if ("localtime".equals(field)) {
+                readLocalTime(result, reader.nextString());
+            } else if ("command".equals(field)) {
+                readCommand(result, reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return result;
+    }
+
+    /**
+     * Reads the local time of a schedule. Only recurring schedules ("W124/T06:30:00") are supported, their date is
+     * set to the time of the day on the 1st of January 1970, local time.
+     */
+    private static void readLocalTime(PHSchedule schedule, String localTime) {
+        int separator;
+
+        separator = localTime.indexOf("/T");
+        if (!localTime.startsWith(RECURRING_PREFIX) || separator < 0) {
+            return; // a one-time schedule, its "time" in UTC is read instead
+        }
+
+        try {
+            schedule.setRecurringDays(Integer.parseInt(localTime.substring(RECURRING_PREFIX.length(), separator)));
+            schedule.setDate(createTimeOfDayFormat().parse(localTime.substring(separator + 2)));
+            schedule.setLocalTime(true);
+        } catch (NumberFormatException e) {
+            schedule.setRecurringDays(0);
+        } catch (ParseException e) {
+            schedule.setRecurringDays(0);
+        }
+    }
+
+    private static void readCommand(PHSchedule schedule, JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field;
+
+            field = reader.nextName();
+            if ("address".equals(field)) {
+                String address;
+                String[] segments;
+
+                // e.g. /api/<username>/groups/<id>/action or /api/<username>/lights/<id>/state
+                address = reader.nextString();
+                segments = address.split("/");
+                for (int i = 0; i < segments.length - 1; i++) {
+                    if ("groups".equals(segments[i])) {
+                        schedule.setGroupIdentifier(segments[i + 1]);
+                    } else if ("lights".equals(segments[i])) {
+                        schedule.setLightIdentifier(segments[i + 1]);
+                    }
+                }
+            } else if ("body".equals(field)) {
+                schedule.setLightState(readLightState(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static PHLightState readLightState(JsonReader reader) throws IOException {
+        PHLightState result;
+
+        result = new PHLightState();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field;
+
+            field = reader.nextName();
+            if ("on".equals(field)) {
+                result.setOn(reader.nextBoolean());
+            } else if ("bri".equals(field)) {
+                result.setBrightness(reader.nextInt());
+            } else if ("transitiontime".equals(field)) {
+                result.setTransitionTime(reader.nextInt());
+            } else if ("ct".equals(field)) {
+                result.setCt(reader.nextInt());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return result;
+    }
+
+    /**
+     * Serializes the schedule the same way the Hue SDK does: the time is sent in UTC and the command addresses the
+     * light group of the schedule. Recurring schedules are sent with the local time of the day and the days of the
+     * week they go off on.
+     */
+    private String writeSchedule(PHSchedule schedule) throws IOException {
+        StringWriter result;
+        JsonWriter writer;
+        PHLightState lightState;
+
+        result = new StringWriter();
+        writer = new JsonWriter(result);
+        writer.beginObject();
+        if (schedule.getName() != null) {
+            writer.name("name").value(schedule.getName());
+        }
+        if (schedule.getDescription() != null && schedule.getDescription().length() > 0) {
+            writer.name("description").value(schedule.getDescription());
+        }
+        if (schedule.getDate() != null && schedule.getRecurringDays() != 0) {
+            writer.name("localtime").value(RECURRING_PREFIX + schedule.getRecurringDays() + "/T"
+                    + createTimeOfDayFormat().format(schedule.getDate()));
+        } else if (schedule.getDate() != null) {
+            writer.name("time").value(createTimeFormat().format(schedule.getDate()));
+        }
+        writer.name("command").beginObject();
+        if (schedule.getGroupIdentifier() != null) {
+            writer.name("address").value("/api/" + mUsername + "/groups/" + schedule.getGroupIdentifier() + "/action");
+        } else {
+            writer.name("address").value("/api/" + mUsername + "/lights/" + schedule.getLightIdentifier() + "/state");
+        }
+        writer.name("method").value("PUT");
+        writer.name("body").beginObject();
+        lightState = schedule.getLightState();
+        if (lightState != null) {
+            if (lightState.isOn() != null) {
+                writer.name("on").value(lightState.isOn());
+            }
+            if (lightState.getBrightness() != PHLightState.VALUE_NOT_SET) {
+                writer.name("bri").value(lightState.getBrightness());
+            }
+            if (lightState.getTransitionTime() != PHLightState.VALUE_NOT_SET) {
+                writer.name("transitiontime").value(lightState.getTransitionTime());
+            }
+            if (lightState.getCt() != PHLightState.VALUE_NOT_SET) {
+                writer.name("ct").value(lightState.getCt());
+            }
+        }
+        writer.endObject(); // body
+        writer.endObject(); // command
+        writer.endObject();
+        writer.close();
+
+        return result.toString();
+    }
+
+    /** @return a format for the times of schedules. Formats are not thread safe, so we create a new one each time. */
+    private static DateFormat createTimeFormat() {
+        DateFormat result;
+
+        result = new SimpleDateFormat(TIME_FORMAT, Locale.US);
+        result.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return result;
+    }
+
+    /** @return a format for the time of the day of recurring schedules, in the local time zone. */
+    private static DateFormat createTimeOfDayFormat() {
+        return new SimpleDateFormat(TIME_OF_DAY_FORMAT, Locale.US);
+    }
+
+    /**
+     * Makes room in the connection pool for the connections to another bridge.
+     *
+     * @param ipAddress the address of the bridge.
+     */
+    private static synchronized void addBridge(String ipAddress) {
+        if (sAddresses.add(ipAddress) && sConnectionManager != null) {
+            sConnectionManager.setMaxTotal(MAX_CONNECTIONS * sAddresses.size());
+        }
+    }
+
+    /** @return the http client shared by all instances of this class. */
+    private static synchronized CloseableHttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            sConnectionManager = new PoolingHttpClientConnectionManager();
+            sConnectionManager.setMaxTotal(MAX_CONNECTIONS * Math.max(1, sAddresses.size()));
+            sConnectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+
+            sHttpClient = HttpClientBuilder.create()
+                    .setConnectionManager(sConnectionManager)
+                    .setDefaultRequestConfig(RequestConfig.custom()
+                            .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                            .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                            .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_MILLIS)
+                            .build())
+                    .build();
+        }
+        return sHttpClient;
+    }
+
+    /** Parses the json response of a successful request. */
+    private interface ResponseParser {
+        public void parse(JsonReader reader) throws IOException;
+    }
+}
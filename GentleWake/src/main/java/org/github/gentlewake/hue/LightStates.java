@@ -0,0 +1,39 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import com.philips.lighting.model.PHLightState;
+
+/**
+ * Creates the light states that the alarm schedules set. The states only depend on their parameters and not on
+ * the settings of the app, so they can be created (and measured) without an Android context. The states of the
+ * wake curve are created by {@link CurveCompiler}.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class LightStates {
+
+    /** The brightness the lights are turned on with. */
+    public static final int BRIGHTNESS_MIN = 1;
+
+    /** The brightness the lights reach at the end of the transition. */
+    public static final int BRIGHTNESS_MAX = 255;
+
+    /** The coldest colour temperature the lights support, in mireds. */
+    public static final int CT_MIN = 153;
+
+    /** The warmest colour temperature the lights support, in mireds. */
+    public static final int CT_MAX = 500;
+
+    /** Utility classes should never be instantiated. */
+    private LightStates() {}
+
+    /**
+     * @return a light state to turn the hue off.
+     */
+    public static PHLightState off() {
+        PHLightState scheduleLightState;
+        scheduleLightState = new PHLightState();
+        scheduleLightState.setOn(false);
+        return scheduleLightState;
+    }
+}
@@ -0,0 +1,164 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.util.Log;
+
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeResourcesCache;
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHSchedule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the groups and schedules in the resource cache of a bridge, by name and (for schedules) by owner. The
+ * resource cache of the SDK only offers lookups by identifier, so finding our light group used to mean walking
+ * through all groups of the bridge, several times per synchronization.
+ * <p/>
+ * The index is built once from the resource cache and reused until the cache changes. Changes are detected in two
+ * ways: an SDK listener invalidates the index whenever the SDK reports a cache update, and an index is only reused
+ * for the very cache object it was built from (the {@link RestBridge} creates a new cache for every run).
+ * Code that changes the cache itself (e.g. by creating a group) must call {@link #invalidate()}.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class ResourceIndex {
+
+    private static final String TAG = "GentleWake.ResIndex";
+
+    /**
+     * The prefix of the description of the schedules created by this app. It is followed by the device name of the
+     * phone that owns the schedule, which is the only way to find out which device a schedule belongs to.
+     */
+    public static final String OWNER_PREFIX = "Schedule of: ";
+
+    /** The index that has been built last, <code>null</code> if it has been invalidated. */
+    private static ResourceIndex sCurrent;
+
+    /** Drops the index when the cache is updated. Kept here, as the dispatcher only holds it weakly. */
+    private static DefaultPHSDKListener sCacheListener;
+
+    /** The cache this index has been built from. */
+    private final PHBridgeResourcesCache mCache;
+
+    private final Map<String, PHGroup> mGroupsByName;
+
+    private final Map<String, PHSchedule> mSchedulesByName;
+
+    /** The schedules by the device name of their owner. Schedules that were not created by this app are missing. */
+    private final Map<String, List<PHSchedule>> mSchedulesByOwner;
+
+    private ResourceIndex(PHBridgeResourcesCache cache) {
+        this.mCache = cache;
+        this.mGroupsByName = new HashMap<String, PHGroup>();
+        this.mSchedulesByName = new HashMap<String, PHSchedule>();
+        this.mSchedulesByOwner = new HashMap<String, List<PHSchedule>>();
+
+        for (PHGroup group : cache.getAllGroups()) {
+            this.mGroupsByName.put(group.getName(), group);
+        }
+
+        for (PHSchedule schedule : cache.getSchedules().values()) {
+            String owner;
+
+            this.mSchedulesByName.put(schedule.getName(), schedule);
+            owner = getOwner(schedule);
+            if (owner != null) {
+                List<PHSchedule> owned;
+
+                owned = this.mSchedulesByOwner.get(owner);
+                if (owned == null) {
+                    owned = new ArrayList<PHSchedule>();
+                    this.mSchedulesByOwner.put(owner, owned);
+                }
+                owned.add(schedule);
+            }
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Indexed " + mGroupsByName.size() + " groups and " + mSchedulesByName.size() + " schedules");
+        }
+    }
+
+    /**
+     * @param bridge the bridge whose resources to look up.
+     * @return the index of the resource cache of the bridge. It is only built if the cache changed since the last
+     * call.
+     */
+    public static synchronized ResourceIndex of(PHBridge bridge) {
+        PHBridgeResourcesCache cache;
+
+        if (sCacheListener == null) {
+            sCacheListener = new DefaultPHSDKListener() {
+                @Override
+                public void onCacheUpdated(int flags, PHBridge updatedBridge) {
+                    invalidate();
+                }
+            };
+            SdkEventDispatcher.getInstance().subscribe(sCacheListener, SdkEventDispatcher.Delivery.SDK_THREAD);
+        }
+
+        cache = bridge.getResourceCache();
+        if (sCurrent == null || sCurrent.mCache != cache) {
+            sCurrent = new ResourceIndex(cache);
+        }
+
+        return sCurrent;
+    }
+
+    /** Drops the current index. The next call to {@link #of(PHBridge)} builds a new one. */
+    public static synchronized void invalidate() {
+        sCurrent = null;
+    }
+
+    /**
+     * @param schedule a schedule of the bridge.
+     * @return the device name of the phone that created the schedule or <code>null</code> if the schedule has not
+     * been created by this app.
+     */
+    public static String getOwner(PHSchedule schedule) {
+        String description;
+
+        description = schedule.getDescription();
+        if (description != null && description.startsWith(OWNER_PREFIX)) {
+            return description.substring(OWNER_PREFIX.length());
+        }
+
+        return null;
+    }
+
+    /**
+     * @param name the name of the group.
+     * @return the group with the given name or <code>null</code> if there is no such group.
+     */
+    public PHGroup getGroup(String name) {
+        return mGroupsByName.get(name);
+    }
+
+    /**
+     * @param name the name of the schedule.
+     * @return the schedule with the given name or <code>null</code> if there is no such schedule.
+     */
+    public PHSchedule getSchedule(String name) {
+        return mSchedulesByName.get(name);
+    }
+
+    /**
+     * @param owner the device name of a phone.
+     * @return all schedules created by the phone with the given device name.
+     */
+    public List<PHSchedule> getSchedulesOwnedBy(String owner) {
+        List<PHSchedule> result;
+
+        result = mSchedulesByOwner.get(owner);
+        if (result == null) {
+            return Collections.emptyList();
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+}
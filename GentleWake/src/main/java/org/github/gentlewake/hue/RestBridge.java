@@ -0,0 +1,368 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.util.Log;
+
+import com.philips.lighting.hue.listener.PHBridgeAPIListener;
+import com.philips.lighting.hue.listener.PHBridgeConfigurationListener;
+import com.philips.lighting.hue.listener.PHGroupListener;
+import com.philips.lighting.hue.listener.PHLightListener;
+import com.philips.lighting.hue.listener.PHSceneListener;
+import com.philips.lighting.hue.listener.PHScheduleListener;
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeConfiguration;
+import com.philips.lighting.model.PHBridgeResourcesCache;
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHHueError;
+import com.philips.lighting.model.PHLight;
+import com.philips.lighting.model.PHLightState;
+import com.philips.lighting.model.PHScene;
+import com.philips.lighting.model.PHSchedule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An implementation of {@link PHBridge} that talks to the bridge using the {@link HueRestClient} instead of the Hue
+ * SDK. It only supports the operations that the {@link SyncManager} needs to keep already existing schedules up to
+ * date, which allows the background synchronization to skip the expensive connection handshake of the SDK.
+ * <p/>
+ * The resource cache of this bridge only contains the groups and the schedules of the bridge, as loaded by
+ * {@link #load()}. Lights, scenes and the configuration are never downloaded. Just like the
+ * SDK, all operations run in the background and report back to their listeners.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class RestBridge implements PHBridge {
+
+    private static final String TAG = "GentleWake.RestBridge";
+
+    /**
+     * The threads that send the requests to the bridges. Several bridges may be synchronized at once (see
+     * {@link BridgeFanOut}), so the pool grows as needed; otherwise the requests to a slow bridge would hold up the
+     * requests to all others.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+    /** The client used to talk to the bridge. */
+    private final HueRestClient mClient;
+
+    /** The resources we loaded from the bridge. */
+    private final Cache mCache;
+
+    /**
+     * @param ipAddress the address of the bridge.
+     * @param username  the username this app is registered with on the bridge.
+     */
+    public RestBridge(String ipAddress, String username) {
+        this.mClient = new HueRestClient(ipAddress, username);
+        this.mCache = new Cache(ipAddress, username);
+    }
+
+    /**
+     * Loads the groups and all schedules from the bridge into the resource cache. All schedules are needed to find
+     * the orphaned schedules of this app and to know how full the schedule table is (see {@link ScheduleCollector}),
+     * and loading them takes a single request.
+     *
+     * @throws IOException if the bridge could not be reached or answered with an error.
+     */
+    public void load() throws IOException {
+        mCache.mGroups.clear();
+        for (PHGroup group : mClient.getGroups()) {
+            mCache.mGroups.put(group.getIdentifier(), group);
+        }
+
+        mCache.mSchedules.clear();
+        for (PHSchedule schedule : mClient.getSchedules()) {
+            mCache.mSchedules.put(schedule.getIdentifier(), schedule);
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Loaded " + mCache.mGroups.size() + " groups and " + mCache.mSchedules.size() + " schedules");
+        }
+    }
+
+    @Override
+    public PHBridgeResourcesCache getResourceCache() {
+        return mCache;
+    }
+
+    @Override
+    public void createSchedule(final PHSchedule schedule, final PHScheduleListener listener) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    schedule.setIdentifier(mClient.createSchedule(schedule));
+                    mCache.mSchedules.put(schedule.getIdentifier(), schedule);
+                    listener.onCreated(schedule);
+                    listener.onSuccess();
+                } catch (IOException e) {
+                    reportError(listener, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void updateSchedule(final PHSchedule schedule, final PHScheduleListener listener) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mClient.updateSchedule(schedule);
+                    mCache.mSchedules.put(schedule.getIdentifier(), schedule);
+                    listener.onSuccess();
+                } catch (IOException e) {
+                    reportError(listener, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void removeSchedule(final String scheduleId, final PHScheduleListener listener) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mClient.removeSchedule(scheduleId);
+                    mCache.mSchedules.remove(scheduleId);
+                    listener.onSuccess();
+                } catch (IOException e) {
+                    reportError(listener, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creating a group requires the list of all lights, which this bridge does not download. Callers should make
+     * sure the group exists (see {@link SyncManager#isGroupExistsOnBridge(String)}) and use the SDK otherwise.
+     */
+    @Override
+    public void createGroup(String name, String[] lightIds, PHGroupListener listener) {
+        reportUnsupported(listener, "createGroup");
+    }
+
+    /**
+     * Reports an operation this bridge does not support as {@link PHHueError#INVALID_API_CALL}.
+     *
+     * @param listener  the listener of the operation, <code>null</code> if the operation has none.
+     * @param operation the name of the operation.
+     */
+    private static void reportUnsupported(PHBridgeAPIListener listener, String operation) {
+        String msg;
+
+        msg = operation + " is not supported by the REST bridge";
+        if (Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, msg);
+        }
+
+        if (listener != null) {
+            listener.onError(PHHueError.INVALID_API_CALL, msg);
+        }
+    }
+
+    /**
+     * Passes the error on to the listener. Errors reported by the bridge keep their error type, all other errors
+     * are reported as {@link PHHueError#BRIDGE_NOT_RESPONDING}.
+     */
+    private static void reportError(PHBridgeAPIListener listener, IOException e) {
+        if (Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, "Request to bridge failed: " + e.getMessage());
+        }
+
+        if (e instanceof HueApiException) {
+            listener.onError(((HueApiException) e).getType(), e.getMessage());
+        } else {
+            listener.onError(PHHueError.BRIDGE_NOT_RESPONDING, e.getMessage());
+        }
+    }
+
+
+    /*
+     * All other operations are not needed to synchronize the alarm and hence not supported. Like createGroup, they
+     * report PHHueError.INVALID_API_CALL to their listener; the ones without a listener are only logged.
+     */
+
+    @Override
+    public void findNewLights(PHLightListener listener) {
+        reportUnsupported(listener, "findNewLights");
+    }
+
+    @Override
+    public void updateLight(PHLight light, PHLightListener listener) {
+        reportUnsupported(listener, "updateLight");
+    }
+
+    @Override
+    public void updateLightState(String lightId, PHLightState lightState, PHLightListener listener) {
+        reportUnsupported(listener, "updateLightState");
+    }
+
+    @Override
+    public void updateLightState(PHLight light, PHLightState lightState, PHLightListener listener) {
+        reportUnsupported(listener, "updateLightState");
+    }
+
+    @Override
+    public void updateLightState(PHLight light, PHLightState lightState) {
+        reportUnsupported(null, "updateLightState");
+    }
+
+    @Override
+    public void updateGroup(PHGroup group, PHGroupListener listener) {
+        reportUnsupported(listener, "updateGroup");
+    }
+
+    @Override
+    public void deleteGroup(String groupId, PHGroupListener listener) {
+        reportUnsupported(listener, "deleteGroup");
+    }
+
+    @Override
+    public void setLightStateForGroup(String groupId, PHLightState lightState, PHGroupListener listener) {
+        reportUnsupported(listener, "setLightStateForGroup");
+    }
+
+    @Override
+    public void setLightStateForDefaultGroup(PHLightState lightState) {
+        reportUnsupported(null, "setLightStateForDefaultGroup");
+    }
+
+    @Override
+    public void setLightStateForGroup(String groupId, PHLightState lightState) {
+        reportUnsupported(null, "setLightStateForGroup");
+    }
+
+    @Override
+    public void updateBridgeConfigurations(PHBridgeConfiguration configuration,
+                                           PHBridgeConfigurationListener listener) {
+        reportUnsupported(listener, "updateBridgeConfigurations");
+    }
+
+    @Override
+    public void removeUsername(String username, PHBridgeConfigurationListener listener) {
+        reportUnsupported(listener, "removeUsername");
+    }
+
+    @Override
+    public void updateSoftware(PHBridgeConfigurationListener listener) {
+        reportUnsupported(listener, "updateSoftware");
+    }
+
+    @Override
+    public void getBridgeConfigurations(PHBridgeConfigurationListener listener) {
+        reportUnsupported(listener, "getBridgeConfigurations");
+    }
+
+    @Override
+    public void getAllScenes(PHSceneListener listener) {
+        reportUnsupported(listener, "getAllScenes");
+    }
+
+    @Override
+    public void saveScene(PHScene scene, PHSceneListener listener) {
+        reportUnsupported(listener, "saveScene");
+    }
+
+    @Override
+    public void activateScene(String sceneId, String groupId, PHSceneListener listener) {
+        reportUnsupported(listener, "activateScene");
+    }
+
+    @Override
+    public void saveSceneWithCurrentLightStates(PHScene scene, PHSceneListener listener) {
+        reportUnsupported(listener, "saveSceneWithCurrentLightStates");
+    }
+
+    @Override
+    public void findNewLightsWithSerials(List<String> serials, PHLightListener listener) {
+        reportUnsupported(listener, "findNewLightsWithSerials");
+    }
+
+    @Override
+    public void saveLightState(PHLightState lightState, String lightId, String sceneId, PHSceneListener listener) {
+        reportUnsupported(listener, "saveLightState");
+    }
+
+
+    /**
+     * The resource cache of the REST bridge. It only holds what has been loaded by {@link RestBridge#load()}
+     * and what has been changed through the bridge afterwards.
+     */
+    private static class Cache implements PHBridgeResourcesCache {
+
+        /** The groups of the bridge, by identifier. */
+        private final Hashtable<String, PHGroup> mGroups;
+
+        /** The schedules that have been loaded, by identifier. */
+        private final Hashtable<String, PHSchedule> mSchedules;
+
+        /** The configuration only contains the ip address and the username. */
+        private final PHBridgeConfiguration mConfiguration;
+
+        private Cache(String ipAddress, String username) {
+            this.mGroups = new Hashtable<String, PHGroup>();
+            this.mSchedules = new Hashtable<String, PHSchedule>();
+            this.mConfiguration = new PHBridgeConfiguration();
+            this.mConfiguration.setIpAddress(ipAddress);
+            this.mConfiguration.setUserName(username);
+        }
+
+        @Override
+        public Hashtable<String, PHLight> getLights() {
+            return new Hashtable<String, PHLight>();
+        }
+
+        @Override
+        public List<PHLight> getAllLights() {
+            return new ArrayList<PHLight>();
+        }
+
+        @Override
+        public Hashtable<String, PHGroup> getGroups() {
+            return mGroups;
+        }
+
+        @Override
+        public List<PHGroup> getAllGroups() {
+            return new ArrayList<PHGroup>(mGroups.values());
+        }
+
+        @Override
+        public List<PHScene> getAllScenes() {
+            return new ArrayList<PHScene>();
+        }
+
+        @Override
+        public PHBridgeConfiguration getBridgeConfiguration() {
+            return mConfiguration;
+        }
+
+        @Override
+        public Hashtable<String, PHSchedule> getSchedules() {
+            return mSchedules;
+        }
+
+        @Override
+        public Hashtable<String, PHScene> getScenes() {
+            return new Hashtable<String, PHScene>();
+        }
+
+        @Override
+        public List<PHSchedule> getAllSchedules(boolean recurring) {
+            return new ArrayList<PHSchedule>(mSchedules.values());
+        }
+
+        @Override
+        public List<PHSchedule> getAllTimers(boolean recurring) {
+            return new ArrayList<PHSchedule>();
+        }
+    }
+}
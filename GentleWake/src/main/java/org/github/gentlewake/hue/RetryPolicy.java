@@ -0,0 +1,111 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import com.philips.lighting.model.PHHueError;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides what to do when the bridge reports an error for one of the operations of the {@link SyncManager}. The
+ * error codes come either from the Hue SDK (see {@link PHHueError}) or, for the {@link RestBridge}, straight from the
+ * bridge (see {@link HueApiException}). They fall into three classes:
+ * <ul>
+ * <li>{@link ErrorClass#RETRYABLE}: the bridge could not be reached or was too busy. The operation is sent again
+ * after a delay that doubles with every attempt (with a random part, so that several phones don't retry in lock
+ * step), up to {@link #MAX_ATTEMPTS} times. A create the bridge did not answer may have been applied anyway, so the
+ * sync manager looks for the schedule on the bridge before it sends the create again.</li>
+ * <li>{@link ErrorClass#REPAIRABLE}: something the operation depends on is missing, e.g. the light group has been
+ * deleted or the schedule has been removed by another app. The sync manager repairs the cause and sends the failed
+ * operation once more.</li>
+ * <li>{@link ErrorClass#FATAL}: sending the operation again would not help.</li>
+ * </ul>
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class RetryPolicy {
+
+    /** The number of times an operation is sent at most, including the first attempt. */
+    public static final int MAX_ATTEMPTS = 4;
+
+    /** The attempt after which an operation is never sent again. Operations are resent as this after a repair. */
+    public static final int LAST_ATTEMPT = MAX_ATTEMPTS - 1;
+
+    /** The delay before the first retry, in milliseconds. */
+    private static final long BASE_BACKOFF_MILLIS = 500;
+
+    /** The longest delay before a retry, in milliseconds. */
+    private static final long MAX_BACKOFF_MILLIS = 8 * 1000;
+
+    /** The error type the bridge reports if it failed internally, e.g. because it was too busy. */
+    private static final int TYPE_INTERNAL_ERROR = 901;
+
+    /** What to do about an error. */
+    public enum ErrorClass {
+        /** Send the operation again later. */
+        RETRYABLE,
+        /** Repair the cause of the error, then send the operation again. */
+        REPAIRABLE,
+        /** Give up. */
+        FATAL
+    }
+
+    /** Runs the retries once their delay has passed. */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor();
+
+    private static final Random RANDOM = new Random();
+
+    /** Utility classes should never be instantiated. */
+    private RetryPolicy() {}
+
+    /**
+     * @param errorCode the error code reported to the listener of the operation.
+     * @return what to do about the error.
+     */
+    public static ErrorClass classify(int errorCode) {
+        switch (errorCode) {
+            case PHHueError.NO_CONNECTION:
+            case PHHueError.UNABLE_TO_PROCESS_REQUEST:
+            case PHHueError.BRIDGE_NOT_RESPONDING:
+            case TYPE_INTERNAL_ERROR:
+                return ErrorClass.RETRYABLE;
+            case PHHueError.GROUP_ID_NOT_FOUND:
+            case HueApiException.TYPE_RESOURCE_NOT_AVAILABLE:
+                return ErrorClass.REPAIRABLE;
+            default:
+                return ErrorClass.FATAL;
+        }
+    }
+
+    /**
+     * @param attempt the attempt that failed, starting at 0.
+     * @return the time to wait before the next attempt, in milliseconds: half of the exponential delay plus a random
+     * part of up to the other half.
+     */
+    public static long getBackoffMillis(int attempt) {
+        long delay;
+
+        delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        synchronized (RANDOM) {
+            return delay / 2 + (long) (RANDOM.nextDouble() * delay / 2);
+        }
+    }
+
+    /**
+     * Runs the retry of a failed attempt once its delay has passed.
+     *
+     * @param retry   sends the operation again.
+     * @param attempt the attempt that failed, starting at 0.
+     * @return the delay in milliseconds.
+     */
+    public static long retryLater(Runnable retry, int attempt) {
+        long delay;
+
+        delay = getBackoffMillis(attempt);
+        TIMER.schedule(retry, delay, TimeUnit.MILLISECONDS);
+
+        return delay;
+    }
+}
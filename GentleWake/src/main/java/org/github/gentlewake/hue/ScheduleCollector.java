@@ -0,0 +1,184 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.util.Log;
+
+import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHSchedule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of the schedule table of a bridge during one synchronization. The table holds at most
+ * {@link #TABLE_CAPACITY} schedules and is shared with all other apps; once it is full, creating a schedule fails and
+ * the wake-up light silently stops working.
+ * <p/>
+ * Whenever a schedule id of this app got lost (e.g. because the app data was cleared or the schedule could not be
+ * stored), a new schedule was created and the old one stayed on the bridge forever. The collector finds these
+ * orphans in a single pass over the schedules owned by this phone (see {@link ResourceIndex#getOwner(PHSchedule)}):
+ * every owned schedule whose identifier is not one of the identifiers we keep track of is an orphan. The
+ * {@link SyncManager} reuses orphans instead of creating new schedules and removes the ones that are left over.
+ * <p/>
+ * An orphan may also be a schedule whose creation was sent by a synchronization that died before the bridge
+ * confirmed it (see {@link org.github.gentlewake.data.SyncJournal#getUnconfirmed(String)}). Such an orphan is kept
+ * for the schedule it was created for, so that schedule is updated instead of created twice.
+ * <p/>
+ * The collector works on the resource cache of the bridge, so it only sees all schedules if the cache contains all of
+ * them, which is the case for both the SDK and the {@link RestBridge}.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class ScheduleCollector {
+
+    private static final String TAG = "GentleWake.Collector";
+
+    /** The number of schedules a bridge can hold. */
+    public static final int TABLE_CAPACITY = 100;
+
+    /** The orphans that have neither been reused nor taken for removal yet. */
+    private final List<PHSchedule> mOrphans;
+
+    /** The identifiers of the orphans that have been taken for removal. */
+    private final Set<String> mRemoving;
+
+    /** The names of the schedules whose creation has never been confirmed. */
+    private final Set<String> mUnconfirmed;
+
+    /** The number of schedules on the bridge, including the ones that are about to be created. */
+    private int mUsed;
+
+    /** The number of schedules owned by this phone. */
+    private final int mOwned;
+
+    /** The number of orphans found on the bridge. */
+    private final int mOrphanCount;
+
+    /** The number of orphans that have been reused so far. */
+    private int mReused;
+
+    /**
+     * Scans the resource cache of the bridge.
+     *
+     * @param bridge  the bridge whose schedules to scan.
+     * @param owner   the device name of this phone.
+     * @param keepIds     the identifiers of the schedules the app keeps track of. These are never considered orphans.
+     * @param unconfirmed the names of the schedules whose creation has been sent, but never confirmed.
+     */
+    public ScheduleCollector(PHBridge bridge, String owner, Collection<String> keepIds,
+                             Collection<String> unconfirmed) {
+        List<PHSchedule> owned;
+        Set<String> keep;
+
+        keep = new HashSet<String>(keepIds);
+        owned = ResourceIndex.of(bridge).getSchedulesOwnedBy(owner);
+        this.mOrphans = new ArrayList<PHSchedule>();
+        this.mRemoving = new HashSet<String>();
+        this.mUnconfirmed = new HashSet<String>(unconfirmed);
+        for (PHSchedule schedule : owned) {
+            if (!keep.contains(schedule.getIdentifier())) {
+                this.mOrphans.add(schedule);
+            }
+        }
+        this.mOwned = owned.size();
+        this.mOrphanCount = this.mOrphans.size();
+        this.mUsed = bridge.getResourceCache().getSchedules().size();
+
+        if (this.mOrphanCount > 0 && Log.isLoggable(TAG, Log.INFO)) {
+            Log.i(TAG, "Found " + this.mOrphanCount + " orphaned schedules of '" + owner + "'");
+        }
+    }
+
+    /**
+     * Hands out an orphan, so it can be updated to become one of our schedules instead of creating a new one. An
+     * orphan with the same name is preferred. Orphans whose creation has never been confirmed are only handed out
+     * for the schedule they were created for.
+     *
+     * @param name the name of the schedule that is about to be created.
+     * @return an orphaned schedule or <code>null</code> if there are none left.
+     */
+    public synchronized PHSchedule reuse(String name) {
+        int index;
+
+        index = -1;
+        for (int i = this.mOrphans.size() - 1; i >= 0 && index < 0; i--) {
+            if (name.equals(this.mOrphans.get(i).getName())) {
+                index = i;
+            }
+        }
+        for (int i = this.mOrphans.size() - 1; i >= 0 && index < 0; i--) {
+            if (!this.mUnconfirmed.contains(this.mOrphans.get(i).getName())) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            return null;
+        }
+
+        if (this.mUnconfirmed.contains(name) && Log.isLoggable(TAG, Log.INFO)) {
+            Log.i(TAG, "Adopting '" + name + "', whose creation has never been confirmed");
+        }
+        this.mReused++;
+        return this.mOrphans.remove(index);
+    }
+
+    /**
+     * Reserves an entry of the schedule table for a schedule that is about to be created.
+     *
+     * @return true if the table has room for the new schedule, false if it is full.
+     */
+    public synchronized boolean reserve() {
+        if (this.mUsed >= TABLE_CAPACITY) {
+            return false;
+        }
+
+        this.mUsed++;
+        return true;
+    }
+
+    /**
+     * Takes all orphans that have not been reused, so they can be removed from the bridge. Afterwards, there are no
+     * orphans left to reuse.
+     *
+     * @return the orphans to remove.
+     */
+    public synchronized List<PHSchedule> takeRemaining() {
+        List<PHSchedule> result;
+
+        if (this.mOrphans.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        result = new ArrayList<PHSchedule>(this.mOrphans);
+        for (PHSchedule orphan : result) {
+            this.mRemoving.add(orphan.getIdentifier());
+        }
+        this.mOrphans.clear();
+        this.mUsed -= result.size();
+
+        return result;
+    }
+
+    /**
+     * @param scheduleId the identifier of a schedule.
+     * @return true if the schedule is an orphan that has been taken for removal, see {@link #takeRemaining()}.
+     */
+    public synchronized boolean isRemoving(String scheduleId) {
+        return this.mRemoving.contains(scheduleId);
+    }
+
+    /** @return the number of used entries of the schedule table, once all pending changes have been made. */
+    public synchronized int getUsed() {
+        return this.mUsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Schedule table " + this.mUsed + "/" + TABLE_CAPACITY + ", " + this.mOwned + " owned, "
+                + this.mOrphanCount + " orphaned (" + this.mReused + " reused)";
+    }
+}
@@ -0,0 +1,185 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import com.philips.lighting.model.PHLightState;
+import com.philips.lighting.model.PHSchedule;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Compares the schedules we would like to have on the bridge ("desired" schedules) with the schedules that are
+ * currently stored in the resource cache of the bridge. Only if the two differ do we have to send an update to the
+ * bridge, which saves us a round trip for most of the synchronizations (the alarm usually does not change between
+ * two WiFi connects).
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class ScheduleReconciler {
+
+    /** The fields of a schedule that we manage and hence compare. */
+    public enum Field {
+        /** The identifier of the light group the schedule is sent to. */
+        GROUP,
+        /** The time at which the schedule goes off. */
+        DATE,
+        /** The light state that the schedule sets. */
+        LIGHT_STATE,
+        /** The days of the week on which the schedule repeats and whether it uses the local time. */
+        RECURRENCE
+    }
+
+    /** Utility classes should never be instantiated. */
+    private ScheduleReconciler() {}
+
+    /**
+     * Compares the schedule on the bridge with the desired schedule field by field.
+     *
+     * @param actual  the schedule as it is currently stored on the bridge.
+     * @param desired the schedule as we would like it to be.
+     * @return the fields in which the two schedules differ. If the returned set is empty, there is no need to send an
+     * update to the bridge.
+     */
+    public static Set<Field> diff(PHSchedule actual, PHSchedule desired) {
+        Set<Field> result;
+
+        result = EnumSet.noneOf(Field.class);
+
+        if (!equal(actual.getGroupIdentifier(), desired.getGroupIdentifier())) {
+            result.add(Field.GROUP);
+        }
+        if (isRecurring(desired)
+                ? !isSameTimeOfDay(actual.getDate(), desired.getDate())
+                : !isSameDate(actual.getDate(), desired.getDate())) {
+            result.add(Field.DATE);
+        }
+        if (!isSameLightState(actual.getLightState(), desired.getLightState())) {
+            result.add(Field.LIGHT_STATE);
+        }
+        if (actual.getRecurringDays() != desired.getRecurringDays()
+                || isRecurring(desired) && isLocalTime(actual) != isLocalTime(desired)) {
+            result.add(Field.RECURRENCE);
+        }
+
+        return result;
+    }
+
+    /**
+     * Copies a schedule, so it can be changed without changing the resource cache it came from. The cache must only
+     * be changed once the bridge confirmed the change, otherwise a failed update would make the schedule look up to
+     * date to the next synchronization.
+     *
+     * @param schedule the schedule to copy.
+     * @return a copy of the schedule, with its own light state.
+     */
+    public static PHSchedule copy(PHSchedule schedule) {
+        PHSchedule result;
+
+        result = new PHSchedule(schedule);
+        result.setIdentifier(schedule.getIdentifier());
+        if (schedule.getLightState() != null) {
+            result.setLightState(new PHLightState(schedule.getLightState()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Copies the given fields from the desired schedule onto the target schedule.
+     *
+     * @param desired the schedule to copy the values from.
+     * @param target  the schedule to copy the values to. This is usually a {@link #copy(PHSchedule)} of the schedule
+     *                from the resource cache, as it carries the identifier and all the fields we do not manage.
+     * @param fields  the fields to copy, usually the result of {@link #diff(PHSchedule, PHSchedule)}.
+     */
+    public static void apply(PHSchedule desired, PHSchedule target, Set<Field> fields) {
+        if (fields.contains(Field.GROUP)) {
+            target.setGroupIdentifier(desired.getGroupIdentifier());
+        }
+        if (fields.contains(Field.DATE)) {
+            target.setDate(desired.getDate());
+        }
+        if (fields.contains(Field.LIGHT_STATE)) {
+            target.setLightState(desired.getLightState());
+        }
+        if (fields.contains(Field.RECURRENCE)) {
+            target.setRecurringDays(desired.getRecurringDays());
+            if (isRecurring(desired)) {
+                target.setLocalTime(desired.getLocalTime());
+            }
+        }
+    }
+
+    private static boolean isRecurring(PHSchedule schedule) {
+        return schedule.getRecurringDays() != PHSchedule.RecurringDay.RECURRING_NONE.getValue();
+    }
+
+    /**
+     * The parser of the SDK sets the flag on every schedule that has a local time, while one-time schedules we create
+     * leave it unset. Only recurring schedules depend on it, so a missing flag counts as false.
+     */
+    private static boolean isLocalTime(PHSchedule schedule) {
+        return Boolean.TRUE.equals(schedule.getLocalTime());
+    }
+
+    /**
+     * The bridge stores the time of a schedule with a precision of one second, so we ignore the milliseconds.
+     *
+     * @param actual  the date stored on the bridge.
+     * @param desired the date we would like the schedule to have.
+     * @return true if both dates denote the same second, false otherwise.
+     */
+    private static boolean isSameDate(Date actual, Date desired) {
+        if (actual == null || desired == null) {
+            return actual == desired;
+        }
+        return actual.getTime() / 1000 == desired.getTime() / 1000;
+    }
+
+    /**
+     * Recurring schedules only store the time of the day at which they go off, so the date is ignored.
+     *
+     * @param actual  the date stored on the bridge.
+     * @param desired the date we would like the schedule to have.
+     * @return true if both dates denote the same second of the day in the local time zone, false otherwise.
+     */
+    private static boolean isSameTimeOfDay(Date actual, Date desired) {
+        Calendar calendar;
+        int actualSecond;
+
+        if (actual == null || desired == null) {
+            return actual == desired;
+        }
+
+        calendar = Calendar.getInstance();
+        calendar.setTime(actual);
+        actualSecond = calendar.get(Calendar.HOUR_OF_DAY) * 3600 + calendar.get(Calendar.MINUTE) * 60
+                + calendar.get(Calendar.SECOND);
+        calendar.setTime(desired);
+        return actualSecond == calendar.get(Calendar.HOUR_OF_DAY) * 3600 + calendar.get(Calendar.MINUTE) * 60
+                + calendar.get(Calendar.SECOND);
+    }
+
+    /**
+     * Compares all the attributes of the light state that GentleWake sets on its schedules.
+     *
+     * @param actual  the light state stored on the bridge.
+     * @param desired the light state we would like the schedule to set.
+     * @return true if the light states are equal with regards to the attributes we use.
+     */
+    private static boolean isSameLightState(PHLightState actual, PHLightState desired) {
+        if (actual == null || desired == null) {
+            return actual == desired;
+        }
+        return equal(actual.isOn(), desired.isOn())
+                && actual.getBrightness() == desired.getBrightness()
+                && actual.getTransitionTime() == desired.getTransitionTime()
+                && actual.getCt() == desired.getCt();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,248 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.philips.lighting.hue.sdk.PHAccessPoint;
+import com.philips.lighting.hue.sdk.PHHueSDK;
+import com.philips.lighting.hue.sdk.PHSDKListener;
+import com.philips.lighting.model.PHBridge;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The only listener the app registers with the notification manager of the Hue SDK. All components subscribe here
+ * instead and get the callbacks of the SDK on the thread they ask for: the UI on the main thread, the sync service
+ * on the thread of the SDK.
+ * <p/>
+ * Subscribers are only weakly referenced, so an activity or fragment that has been destroyed without unsubscribing
+ * is not kept alive, and stops getting callbacks once it has been collected. Whoever subscribes an anonymous listener
+ * therefore has to keep a reference to it for as long as it should be called.
+ * <p/>
+ * The SDK reports the state of the connection with every heartbeat: {@link PHSDKListener#onConnectionResumed} and
+ * {@link PHSDKListener#onConnectionLost} are called again and again while nothing changes. The dispatcher only passes
+ * them on if the state of the bridge actually changed, so the subscribers don't repeat their work with every
+ * heartbeat.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class SdkEventDispatcher {
+
+    private static final String TAG = "GentleWake.SdkEvents";
+
+    /** The thread a subscriber is called on. */
+    public enum Delivery {
+        /** The thread the SDK reports the event on. Subscribers must return quickly. */
+        SDK_THREAD,
+        /** The main thread of the app. */
+        MAIN_THREAD
+    }
+
+    /** The singleton. */
+    private static SdkEventDispatcher sInstance;
+
+    private final List<Subscription> mSubscriptions;
+
+    /** Posts the events to the subscribers that want them on the main thread. */
+    private final Handler mMainHandler;
+
+    /** Whether the bridges are connected as far as the callbacks of the SDK tell, by address. */
+    private final Map<String, Boolean> mConnected;
+
+    public static synchronized SdkEventDispatcher getInstance() {
+        if (sInstance == null) {
+            sInstance = new SdkEventDispatcher();
+            PHHueSDK.getInstance().getNotificationManager().registerSDKListener(sInstance.new SdkListener());
+        }
+        return sInstance;
+    }
+
+    private SdkEventDispatcher() {
+        this.mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+        this.mMainHandler = new Handler(Looper.getMainLooper());
+        this.mConnected = new HashMap<String, Boolean>();
+    }
+
+    /**
+     * Subscribes a listener to the events of the SDK. Subscribing a listener a second time only changes its delivery.
+     *
+     * @param listener the listener. It is only weakly referenced.
+     * @param delivery the thread to call the listener on.
+     */
+    public void subscribe(PHSDKListener listener, Delivery delivery) {
+        unsubscribe(listener);
+        this.mSubscriptions.add(new Subscription(listener, delivery));
+    }
+
+    /**
+     * Unsubscribes a listener. Events that have been posted to the main thread already are not delivered anymore.
+     *
+     * @param listener the listener.
+     */
+    public void unsubscribe(PHSDKListener listener) {
+        for (Subscription subscription : this.mSubscriptions) {
+            PHSDKListener subscribed;
+
+            subscribed = subscription.mListener.get();
+            if (subscribed == null || subscribed == listener) {
+                subscription.mActive = false;
+                this.mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /** Passes an event on to all subscribers, on the thread each of them asked for. */
+    private void dispatch(final Event event) {
+        for (final Subscription subscription : this.mSubscriptions) {
+            PHSDKListener listener;
+
+            listener = subscription.mListener.get();
+            if (listener == null) {
+                this.mSubscriptions.remove(subscription); // the subscriber has been collected
+            } else if (subscription.mDelivery == Delivery.SDK_THREAD) {
+                event.deliver(listener);
+            } else {
+                this.mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        PHSDKListener listener;
+
+                        listener = subscription.mListener.get();
+                        if (subscription.mActive && listener != null) {
+                            event.deliver(listener);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Records the state of the connection to a bridge.
+     *
+     * @return true if the state changed or was not known before.
+     */
+    private boolean setConnected(String ipAddress, boolean connected) {
+        synchronized (this.mConnected) {
+            return !Boolean.valueOf(connected).equals(this.mConnected.put(ipAddress, connected));
+        }
+    }
+
+    private static String getIpAddress(PHBridge bridge) {
+        return bridge.getResourceCache().getBridgeConfiguration().getIpAddress();
+    }
+
+    /** A callback of the SDK, waiting to be delivered. */
+    private interface Event {
+        void deliver(PHSDKListener listener);
+    }
+
+    private static final class Subscription {
+
+        private final WeakReference<PHSDKListener> mListener;
+
+        private final Delivery mDelivery;
+
+        /** False once the listener has been unsubscribed. */
+        private volatile boolean mActive;
+
+        private Subscription(PHSDKListener listener, Delivery delivery) {
+            this.mListener = new WeakReference<PHSDKListener>(listener);
+            this.mDelivery = delivery;
+            this.mActive = true;
+        }
+    }
+
+    /** Receives the callbacks of the SDK. */
+    private final class SdkListener implements PHSDKListener {
+
+        @Override
+        public void onCacheUpdated(final int flags, final PHBridge bridge) {
+            dispatch(new Event() {
+                @Override
+                public void deliver(PHSDKListener listener) {
+                    listener.onCacheUpdated(flags, bridge);
+                }
+            });
+        }
+
+        @Override
+        public void onBridgeConnected(final PHBridge bridge) {
+            setConnected(getIpAddress(bridge), true);
+            dispatch(new Event() {
+                @Override
+                public void deliver(PHSDKListener listener) {
+                    listener.onBridgeConnected(bridge);
+                }
+            });
+        }
+
+        @Override
+        public void onAuthenticationRequired(final PHAccessPoint accessPoint) {
+            dispatch(new Event() {
+                @Override
+                public void deliver(PHSDKListener listener) {
+                    listener.onAuthenticationRequired(accessPoint);
+                }
+            });
+        }
+
+        @Override
+        public void onAccessPointsFound(final List<PHAccessPoint> accessPoints) {
+            dispatch(new Event() {
+                @Override
+                public void deliver(PHSDKListener listener) {
+                    listener.onAccessPointsFound(accessPoints);
+                }
+            });
+        }
+
+        @Override
+        public void onError(final int code, final String message) {
+            dispatch(new Event() {
+                @Override
+                public void deliver(PHSDKListener listener) {
+                    listener.onError(code, message);
+                }
+            });
+        }
+
+        @Override
+        public void onConnectionResumed(final PHBridge bridge) {
+            if (!setConnected(getIpAddress(bridge), true)) {
+                return; // just another heartbeat
+            }
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Connection to " + getIpAddress(bridge) + " resumed");
+            }
+            dispatch(new Event() {
+                @Override
+                public void deliver(PHSDKListener listener) {
+                    listener.onConnectionResumed(bridge);
+                }
+            });
+        }
+
+        @Override
+        public void onConnectionLost(final PHAccessPoint accessPoint) {
+            if (!setConnected(accessPoint.getIpAddress(), false)) {
+                return; // we knew already
+            }
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Connection to " + accessPoint.getIpAddress() + " lost");
+            }
+            dispatch(new Event() {
+                @Override
+                public void deliver(PHSDKListener listener) {
+                    listener.onConnectionLost(accessPoint);
+                }
+            });
+        }
+    }
+}
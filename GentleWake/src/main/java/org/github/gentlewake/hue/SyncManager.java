@@ -6,6 +6,7 @@ import android.provider.Settings;
 import android.util.Log;
 
 import com.philips.lighting.hue.listener.PHGroupListener;
+import com.philips.lighting.hue.listener.PHScheduleListener;
 import com.philips.lighting.hue.sdk.PHHueSDK;
 import com.philips.lighting.hue.sdk.connection.impl.PHBridgeInternal;
 import com.philips.lighting.model.PHBridge;
@@ -17,16 +18,29 @@ import com.philips.lighting.model.PHLightState;
 import com.philips.lighting.model.PHSchedule;
 
 import org.github.gentlewake.R;
+import org.github.gentlewake.data.AlarmHistory;
 import org.github.gentlewake.data.ApplicationPreferences;
-import org.github.gentlewake.util.AlarmUtils;
+import org.github.gentlewake.data.SyncJournal;
 import org.github.gentlewake.util.Callback;
+import org.github.gentlewake.util.NextAlarmSource;
+import org.github.gentlewake.util.EventLog;
 import org.github.gentlewake.util.ValueCallback;
 
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class deals with setting the schedules to sync the alarm of the phone with the Hue system. In each
@@ -37,6 +51,20 @@ import java.util.Random;
  * is reached, when the alarm clock of the phone goes off.</li>
  * <li>Schedule Off: This schedule turns the Hue lights off.</li>
  * </ol>
+ * All three schedules are sent to the bridge concurrently. The progress of a synchronization can be followed using
+ * the {@link SyncResult} that is returned by {@link #syncAlarm(ValueCallback)}.
+ * <p/>
+ * If the next alarm repeats every week (see {@link AlarmHistory}), the schedules are stored as recurring schedules
+ * for all days of the week that have an alarm at the same time. They stay valid after the alarm went off, so the
+ * following alarms at that time don't depend on another synchronization, and later synchronizations find the
+ * schedules up to date and don't write to the bridge at all.
+ * <p/>
+ * Schedules of this phone whose identifiers got lost are reused instead of creating new ones, and removed if they
+ * are not needed anymore (see {@link ScheduleCollector}), so the schedule table of the bridge does not fill up.
+ * <p/>
+ * All commands that change the bridge are sent through the {@link CommandPacer} of the bridge, so the bridge isn't
+ * flooded with more commands than it can handle. Operations that fail are retried or repaired as far as the
+ * {@link RetryPolicy} allows; only the failed operation is sent again, never the whole synchronization.
  *
  * @author lorenz.fischer@gmail.com
  */
@@ -44,6 +72,48 @@ public class SyncManager {
 
     public static final String TAG = "GentleWake.SyncManager";
 
+    /** The name of the operation that creates the light group, as it is reported in the {@link SyncResult}. */
+    private static final String OPERATION_CREATE_GROUP = "Create light group";
+
+    /** The name of the operation that works out which requests to send, as it is reported in the {@link SyncResult}. */
+    private static final String OPERATION_PLAN = "Plan schedules";
+
+    /** The name of the operation that waits for the previous synchronization of the bridge to finish. */
+    private static final String OPERATION_WAIT = "Wait for previous sync";
+
+    /**
+     * The longest time a synchronization waits for the previous one of its bridge, and the longest time it keeps the
+     * {@link SyncJournal} open. A synchronization whose callbacks got lost never finishes, but must not hold up all
+     * further ones.
+     */
+    private static final long MAX_WAIT_MILLIS = 60 * 1000;
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Asks the bridge for its current state before a failed operation is repaired or resent. The resource cache of
+     * the SDK is refreshed rarely (see {@link HeartbeatPolicy}), so it can't tell.
+     */
+    private static final ScheduledExecutorService LOOKUP_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * The latest synchronization of each bridge, by address. Only one synchronization runs per bridge at a time: the
+     * ids of the schedules a synchronization creates are only stored once it has finished, so a concurrent one would
+     * take them for orphans (see {@link ScheduleCollector}) and remove or reuse them.
+     */
+    private static final Map<String, SyncResult> sLatestSyncs = new HashMap<String, SyncResult>();
+
+    /** The days of the week as the bridge knows them, starting with sunday like {@link Calendar#DAY_OF_WEEK}. */
+    private static final PHSchedule.RecurringDay[] RECURRING_DAYS = {
+            PHSchedule.RecurringDay.RECURRING_SUNDAY,
+            PHSchedule.RecurringDay.RECURRING_MONDAY,
+            PHSchedule.RecurringDay.RECURRING_TUESDAY,
+            PHSchedule.RecurringDay.RECURRING_WEDNESDAY,
+            PHSchedule.RecurringDay.RECURRING_THURSDAY,
+            PHSchedule.RecurringDay.RECURRING_FRIDAY,
+            PHSchedule.RecurringDay.RECURRING_SATURDAY
+    };
+
     private Context mCtx;
 
     /** the object that can be used to communicate with the Hue bridge. */
@@ -52,11 +122,48 @@ public class SyncManager {
     /** a reference to the datastore_preferences object that contains all the configuration of Gentlewake. */
     private ApplicationPreferences mPrefs;
 
+    /** The address of the bridge, used to look up its schedule ids. <code>null</code> for the last connected one. */
+    private String mBridgeAddress;
+
+    /** The address of the bridge, also if it is the last connected one. Used to pace and journal the commands. */
+    private String mResolvedAddress;
+
+    /** Sends the commands that change the bridge. */
+    private CommandPacer mPacer;
+
+    /** Records the progress of the synchronizations, so they can be recovered after the process died. */
+    private SyncJournal mJournal;
+
+    /** The priority of the commands of this sync manager. */
+    private CommandPacer.Priority mPriority;
+
     /**
      * @param ctx    the context that can be used to retrieve resources.
      * @param bridge an object that the sync manager can use to configure the Hue bridge.
      */
     public SyncManager(Context ctx, PHBridge bridge) {
+        this(ctx, bridge, null);
+    }
+
+    /**
+     * @param ctx           the context that can be used to retrieve resources.
+     * @param bridge        an object that the sync manager can use to configure the Hue bridge.
+     * @param bridgeAddress the address of the bridge, which selects the schedule ids used on it (see
+     *                      {@link ApplicationPreferences#getScheduleIdOn(String)}). <code>null</code> for the last
+     *                      connected bridge.
+     */
+    public SyncManager(Context ctx, PHBridge bridge, String bridgeAddress) {
+        this(ctx, bridge, bridgeAddress, CommandPacer.Priority.BACKGROUND);
+    }
+
+    /**
+     * @param ctx           the context that can be used to retrieve resources.
+     * @param bridge        an object that the sync manager can use to configure the Hue bridge.
+     * @param bridgeAddress the address of the bridge, see {@link #SyncManager(Context, PHBridge, String)}.
+     * @param priority      the priority of the commands this sync manager sends to the bridge. Use
+     *                      {@link CommandPacer.Priority#INTERACTIVE} if the user waits for the synchronization.
+     */
+    public SyncManager(Context ctx, PHBridge bridge, String bridgeAddress, CommandPacer.Priority priority) {
 
         if (ctx == null) {
             throw new IllegalArgumentException("Context cannot be Null");
@@ -69,6 +176,11 @@ public class SyncManager {
         this.mCtx = ctx;
         this.mHueBridge = bridge;
         this.mPrefs = ApplicationPreferences.getInstance(ctx);
+        this.mBridgeAddress = bridgeAddress;
+        this.mResolvedAddress = bridgeAddress != null ? bridgeAddress : this.mPrefs.getLastConnectedIPAddress();
+        this.mPacer = CommandPacer.forBridge(this.mResolvedAddress);
+        this.mJournal = SyncJournal.getInstance(ctx);
+        this.mPriority = priority;
     }
 
     /**
@@ -78,21 +190,7 @@ public class SyncManager {
      * @return true if a group with that name is configured on the bridge, false otherwise.
      */
     public boolean isGroupExistsOnBridge(String alarmLightGroupName) {
-        PHGroup alarmGroup;
-        PHBridgeResourcesCache bridgeInfos;
-
-
-        bridgeInfos = this.mHueBridge.getResourceCache();
-        alarmGroup = null;
-
-        for (PHGroup group : bridgeInfos.getAllGroups()) {
-            if (group.getName().equals(alarmLightGroupName)) {
-                alarmGroup = group;
-                break;
-            }
-        }
-
-        return alarmGroup != null;
+        return ResourceIndex.of(this.mHueBridge).getGroup(alarmLightGroupName) != null;
     }
 
     /**
@@ -106,217 +204,503 @@ public class SyncManager {
      *                            the callback will be ignored.
      */
     public void ensureAlarmLightGroup(String alarmLightGroupName, final Callback callback) {
-        if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Checking for existence of light group '" + alarmLightGroupName + "' ...");
-        }
+        ensureAlarmLightGroup(alarmLightGroupName, callback, null);
+    }
+
+    /**
+     * Same as {@link #ensureAlarmLightGroup(String, Callback)}, but also informs the caller if the light group could
+     * not be created.
+     *
+     * @param alarmLightGroupName the name of the light group whose existence in the bridge configuration we should verify.
+     * @param callback            will be called as soon as the group exists on the bridge.
+     * @param errorCallback       will be called with an error message, if the group could not be created. This
+     *                            parameter can be <code>null</code>.
+     */
+    public void ensureAlarmLightGroup(String alarmLightGroupName,
+                                      final Callback callback,
+                                      final ValueCallback<String> errorCallback) {
+        EventLog.d(TAG, "Checking for existence of light group '" + alarmLightGroupName + "' ...");
 
         if (callback != null) {
             if (isGroupExistsOnBridge(alarmLightGroupName)) {
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "Group '" + alarmLightGroupName + "' existed");
-                }
+                EventLog.d(TAG, "Group '" + alarmLightGroupName + "' existed");
                 callback.go();
             } else { // There was no alarm group configured, yet. So we do that now ...
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "Group '" + alarmLightGroupName + "' did not exist. Creating it...");
-                }
+                EventLog.d(TAG, "Group '" + alarmLightGroupName + "' did not exist. Creating it...");
+                createAlarmLightGroup(alarmLightGroupName, callback, errorCallback);
+            }
+        }
+    }
 
-                PHBridgeResourcesCache bridgeInfos;
-                List<PHLight> allLights;
-                String[] allLightIds;
-                int idx;
-
-                bridgeInfos = this.mHueBridge.getResourceCache();
-                allLights = bridgeInfos.getAllLights();
-                allLightIds = new String[allLights.size()];
-                idx = 0;
-                for (PHLight light : allLights) {
-                    allLightIds[idx++] = light.getIdentifier();
-                }
-                this.mHueBridge.createGroup(alarmLightGroupName, allLightIds, new PHGroupListener() {
-                    @Override
-                    public void onCreated(PHGroup group) {
-                        super.onCreated(group);
-                        callback.go(); // pass the group on to the callback
-                    }
+    /**
+     * Creates the light group with all lights of the bridge.
+     *
+     * @param alarmLightGroupName the name of the light group.
+     * @param callback            will be called as soon as the group has been created.
+     * @param errorCallback       will be called with an error message, if the group could not be created. This
+     *                            parameter can be <code>null</code>.
+     */
+    private void createAlarmLightGroup(String alarmLightGroupName,
+                                       final Callback callback,
+                                       final ValueCallback<String> errorCallback) {
+        PHBridgeResourcesCache bridgeInfos;
+        List<PHLight> allLights;
+        final String[] allLightIds;
+        final PHGroupListener listener;
+        final String groupName;
+        int idx;
 
-                    @Override
-                    public void onSuccess() {
-                    }
+        bridgeInfos = this.mHueBridge.getResourceCache();
+        allLights = bridgeInfos.getAllLights();
+        allLightIds = new String[allLights.size()];
+        idx = 0;
+        for (PHLight light : allLights) {
+            allLightIds[idx++] = light.getIdentifier();
+        }
+        groupName = alarmLightGroupName;
+        listener = new PHGroupListener() {
+            @Override
+            public void onCreated(PHGroup group) {
+                super.onCreated(group);
+                ResourceIndex.invalidate(); // the cache contains the new group now
+                callback.go(); // pass the group on to the callback
+            }
 
-                    @Override
-                    public void onError(int i, String s) {
-                        if (Log.isLoggable(TAG, Log.ERROR)) {
-                            Log.e(TAG, "Error while creating group. Error code = " + Integer.toString(i) +
-                                    " Error msg = '" + s + "'");
-                        }
-                    }
+            @Override
+            public void onSuccess() {
+            }
 
-                    @Override
-                    public void onStateUpdate(Hashtable<String, String> stringStringHashtable,
-                                              List<PHHueError> phHueErrors) {
+            @Override
+            public void onError(int i, String s) {
+                String msg;
 
-                    }
-                });
+                msg = "Error while creating group. Error code = " + Integer.toString(i) +
+                        " Error msg = '" + s + "'";
+                EventLog.e(TAG, msg);
+
+                if (errorCallback != null) {
+                    errorCallback.go(msg);
+                }
             }
-        }
+
+            @Override
+            public void onStateUpdate(Hashtable<String, String> stringStringHashtable,
+                                      List<PHHueError> phHueErrors) {
+
+            }
+        };
+        this.mPacer.submit(this.mPriority, new Runnable() {
+            @Override
+            public void run() {
+                mHueBridge.createGroup(groupName, allLightIds, listener);
+            }
+        });
     }
 
     /**
      * This method sets the time for Hue to turn on the light group with the supplied name.
      * <p/>
      * This method makes sure that the configured light group exist on the bridge.
+     * <p/>
+     * The method does not block: all operations are sent to the bridge concurrently. Use
+     * {@link SyncResult#await(long)} on the returned object to wait for all of them to finish. If another
+     * synchronization of the same bridge is still running, this one starts once it has finished.
      *
      * @param messageCallback this callback will be called with a message for the user after the schedule that
      *                        turns the Hue lights "on" has been changed or if there is some general information
      *                        that is important for the user.
+     * @return an object that tracks the operations sent to the bridge.
+     */
+    public SyncResult syncAlarm(final ValueCallback<String> messageCallback) {
+        final SyncResult result;
+        final SyncResult previous;
+        final ApplicationPreferences.Transaction transaction;
+        final AtomicBoolean started;
+        final Callback start;
+        final AtomicBoolean finished;
+        final Callback finish;
+        long wait;
+
+        result = new SyncResult();
+        result.begin(OPERATION_WAIT);
+        synchronized (sLatestSyncs) {
+            previous = sLatestSyncs.put(this.mResolvedAddress, result);
+        }
+
+        // the identifiers of all created schedules are stored with a single write, once all operations have finished,
+        // and before the next synchronization of the bridge starts
+        transaction = this.mPrefs.beginTransaction(this.mBridgeAddress);
+        finished = new AtomicBoolean();
+        finish = new Callback() {
+            @Override
+            public void go() {
+                if (!finished.getAndSet(true)) {
+                    transaction.commit();
+                    mJournal.end(mResolvedAddress);
+                }
+            }
+        };
+        result.addCompletionCallback(finish);
+        result.addCompletionCallback(new Callback() {
+            @Override
+            public void go() {
+                synchronized (sLatestSyncs) {
+                    if (sLatestSyncs.get(mResolvedAddress) == result) {
+                        sLatestSyncs.remove(mResolvedAddress);
+                    }
+                }
+            }
+        });
+
+        started = new AtomicBoolean();
+        start = new Callback() {
+            @Override
+            public void go() {
+                if (!started.getAndSet(true)) {
+                    startSync(messageCallback, result, transaction, finish);
+                }
+            }
+        };
+
+        wait = previous == null ? 0 : MAX_WAIT_MILLIS - previous.getDuration();
+        if (wait <= 0 || previous.isDone()) {
+            start.go();
+        } else {
+            EventLog.d(TAG, "Waiting for the previous sync of " + this.mResolvedAddress + " to finish");
+            previous.addCompletionCallback(start);
+            LOOKUP_EXECUTOR.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    start.go();
+                }
+            }, wait, TimeUnit.MILLISECONDS);
+        }
+
+        return result;
+    }
+
+    /**
+     * Plans and sends the operations of a synchronization, once the previous one of the bridge has finished.
+     *
+     * @param messageCallback see {@link #syncAlarm(ValueCallback)}.
+     * @param result          the object that tracks the operations of this synchronization.
+     * @param transaction     the identifiers of newly created schedules are stored in this transaction.
+     * @param finish          stores the transaction and ends the synchronization in the journal. It runs when all
+     *                        operations have finished, but at the latest {@link #MAX_WAIT_MILLIS} after the start, so
+     *                        a synchronization that hangs or failed does not keep the journal open.
      */
-    public void syncAlarm(final ValueCallback<String> messageCallback) {
-        if (Log.isLoggable(TAG, Log.INFO)) {
-            Log.i(TAG, "Syncing alarms");
+    private void startSync(ValueCallback<String> messageCallback, SyncResult result,
+                           ApplicationPreferences.Transaction transaction, final Callback finish) {
+        EventLog.i(TAG, "Syncing alarms");
+
+        this.mJournal.begin(this.mResolvedAddress);
+        LOOKUP_EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                finish.go();
+            }
+        }, MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        result.begin(OPERATION_PLAN);
+        result.complete(OPERATION_WAIT, null);
+        try {
+            syncAlarm(messageCallback, result, transaction);
+            result.complete(OPERATION_PLAN, null);
+        } catch (RuntimeException e) {
+            result.complete(OPERATION_PLAN, e.toString());
+            throw e;
+        } finally {
+            result.seal(); // all further operations are started from within the callbacks of pending operations
         }
+    }
+
+    /**
+     * @param messageCallback see {@link #syncAlarm(ValueCallback)}.
+     * @param result          all operations sent to the bridge are registered with this object.
+     * @param transaction     the identifiers of newly created schedules are stored in this transaction.
+     */
+    private void syncAlarm(final ValueCallback<String> messageCallback, final SyncResult result,
+                           final ApplicationPreferences.Transaction transaction) {
         String lightGroupName;
         lightGroupName = this.mPrefs.getLightGroupName();
 
         if (!isGroupExistsOnBridge(lightGroupName)) {
+            result.begin(OPERATION_CREATE_GROUP);
+            result.countWrite();
             ensureAlarmLightGroup(lightGroupName, new Callback() {
                 @Override
                 public void go() {
                     // todo: should I prevent a stack overflow, here?
-                    syncAlarm(messageCallback); // self-call, but this time the group should exist
+                    syncAlarm(messageCallback, result, transaction); // self-call, but this time the group should exist
+                    result.complete(OPERATION_CREATE_GROUP, null); // only now, so the barrier does not open early
+                }
+            }, new ValueCallback<String>() {
+                @Override
+                public void go(String error) {
+                    result.complete(OPERATION_CREATE_GROUP, error);
                 }
             });
         } else {
             Calendar scheduleOnCalendar;
             final String scheduleIdOn;
             String scheduleNameOn;
-            Calendar scheduleBrightenCalendar;
             String scheduleIdBrighten;
             String scheduleNameBrighten;
             Calendar scheduleOffCalendar;
             String scheduleIdOff;
             String scheduleNameOff;
-            Date nextAlarm;
+            long nextAlarm;
+            int recurringDays;
+            CurveCompiler.Result curve;
+            List<CurveCompiler.Step> steps;
+            ScheduleCollector collector;
 
-            scheduleIdOn = mPrefs.getScheduleIdOn();
+            scheduleIdOn = mPrefs.getScheduleIdOn(mBridgeAddress);
             scheduleNameOn = mPrefs.getScheduleNameOn();
-            scheduleIdBrighten = mPrefs.getScheduleIdBrighten();
+            scheduleIdBrighten = mPrefs.getScheduleIdBrighten(mBridgeAddress);
             scheduleNameBrighten = mPrefs.getScheduleNameBrighten();
-            scheduleIdOff = mPrefs.getScheduleIdOff();
+            scheduleIdOff = mPrefs.getScheduleIdOff(mBridgeAddress);
             scheduleNameOff = mPrefs.getScheduleNameOff();
 
-            nextAlarm = AlarmUtils.getNextAlarm(mCtx);
+            nextAlarm = NextAlarmSource.getInstance(mCtx).getNextAlarmMillis();
+            collector = new ScheduleCollector(mHueBridge, mPrefs.getBridgeDeviceName(),
+                    mPrefs.getScheduleIds(mBridgeAddress), mJournal.getUnconfirmed(mResolvedAddress));
 
-            if (nextAlarm != null) {
+            if (nextAlarm != NextAlarmSource.NO_ALARM) {
+                AlarmHistory history;
 
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "Creating / updating all three schedules");
-                }
+                history = AlarmHistory.getInstance(mCtx);
+                history.record(nextAlarm, System.currentTimeMillis());
+                recurringDays = history.getRecurringDays(nextAlarm);
 
-                // the first schedule turns the light on
+                EventLog.d(TAG, "Creating / updating all three schedules" + (recurringDays != 0 ? " (recurring)" : ""));
+
+                // the first schedule turns the light on, so the alarm goes off when the wake curve ends
+                curve = compileCurve();
+                steps = curve.getSteps();
                 scheduleOnCalendar = Calendar.getInstance();
-                scheduleOnCalendar.setTime(nextAlarm);
-                scheduleOnCalendar.add(Calendar.MINUTE, mPrefs.getTransitionMinutes() * -1); // n mins before alarm
-                createUpdateSchedule(scheduleIdOn, scheduleNameOn, lightGroupName,
-                        scheduleOnCalendar.getTime(), createLightStateOn(), messageCallback,
+                scheduleOnCalendar.setTimeInMillis(nextAlarm);
+                scheduleOnCalendar.add(Calendar.SECOND, -curve.getDurationSeconds());
+                createUpdateSchedule(scheduleIdOn,
+                        createDesiredSchedule(scheduleNameOn, lightGroupName, scheduleOnCalendar.getTime(),
+                                toRecurringDays(recurringDays, nextAlarm, scheduleOnCalendar.getTimeInMillis()),
+                                steps.get(0).createLightState()),
+                        messageCallback,
+                        result,
+                        collector,
                         new ValueCallback<PHSchedule>() {
                             @Override
                             public void go(PHSchedule createdSchedule) {
-                                mPrefs.setScheduleIdOn(createdSchedule.getIdentifier());
+                                transaction.setScheduleIdOn(createdSchedule.getIdentifier());
                             }
                         }
                 );
 
-                // the second schedule brightens the light slowly over the course of
-                scheduleBrightenCalendar = Calendar.getInstance();
-                scheduleBrightenCalendar.setTime(scheduleOnCalendar.getTime());
-                scheduleBrightenCalendar.add(Calendar.SECOND, 10); // start 10 seconds after turning the light on
-                createUpdateSchedule(scheduleIdBrighten, scheduleNameBrighten, lightGroupName,
-                        scheduleBrightenCalendar.getTime(),
-                        // technically, this will result in the light reaching its brightest setting 10 seconds after
-                        // the alarm of the phone goes off, as we will start the brighten process 10 seconds after
-                        // the turn-on schedule.
-                        createLightStateBrighten(),
-                        null,
-                        new ValueCallback<PHSchedule>() {
-                            @Override
-                            public void go(PHSchedule createdSchedule) {
-                                mPrefs.setScheduleIdBrighten(createdSchedule.getIdentifier());
+                // the following schedules move the light along the wake curve, the first one is the "brighten"
+                // schedule, all further ones are named after it
+                for (int i = 1; i < steps.size(); i++) {
+                    final int transition;
+                    Calendar stepCalendar;
+
+                    transition = i;
+                    stepCalendar = Calendar.getInstance();
+                    stepCalendar.setTime(scheduleOnCalendar.getTime());
+                    // all steps start 10 seconds late, so the light has been turned on before the first of them
+                    // starts and each step still starts when the transition of the previous one ends. Technically,
+                    // the light reaches its brightest setting 10 seconds after the alarm of the phone goes off.
+                    stepCalendar.add(Calendar.SECOND, steps.get(i).getOffsetSeconds() + 10);
+                    createUpdateSchedule(i == 1 ? scheduleIdBrighten : mPrefs.getScheduleIdCurve(i, mBridgeAddress),
+                            createDesiredSchedule(i == 1 ? scheduleNameBrighten : scheduleNameBrighten + " " + i,
+                                    lightGroupName,
+                                    stepCalendar.getTime(),
+                                    toRecurringDays(recurringDays, nextAlarm, stepCalendar.getTimeInMillis()),
+                                    steps.get(i).createLightState()),
+                            null,
+                            result,
+                            collector,
+                            new ValueCallback<PHSchedule>() {
+                                @Override
+                                public void go(PHSchedule createdSchedule) {
+                                    if (transition == 1) {
+                                        transaction.setScheduleIdBrighten(createdSchedule.getIdentifier());
+                                    } else {
+                                        transaction.setScheduleIdCurve(transition, createdSchedule.getIdentifier());
+                                    }
+                                }
                             }
-                        }
-                );
+                    );
+                }
+
+                // a previous curve may have needed more schedules
+                for (int i = steps.size(); i < ApplicationPreferences.MAX_CURVE_SCHEDULES; i++) {
+                    String scheduleIdCurve;
+
+                    scheduleIdCurve = mPrefs.getScheduleIdCurve(i, mBridgeAddress);
+                    if (isScheduleOnBridge(scheduleIdCurve)) {
+                        removeSchedule(scheduleIdCurve, null, result);
+                    }
+                    if (scheduleIdCurve != null) {
+                        transaction.setScheduleIdCurve(i, null);
+                    }
+                }
 
                 // todo: make the "one hour" configurable
                 // the last schedule will turn the light off after one hour
                 scheduleOffCalendar = Calendar.getInstance();
-                scheduleOffCalendar.setTime(nextAlarm);
+                scheduleOffCalendar.setTimeInMillis(nextAlarm);
                 scheduleOffCalendar.add(Calendar.HOUR, 1);  // turn the light off one hour after the alarm went off
 
-                createUpdateSchedule(scheduleIdOff, scheduleNameOff, lightGroupName, scheduleOffCalendar.getTime(),
-                        createLightStateOff(), null,
+                createUpdateSchedule(scheduleIdOff,
+                        createDesiredSchedule(scheduleNameOff, lightGroupName, scheduleOffCalendar.getTime(),
+                                toRecurringDays(recurringDays, nextAlarm, scheduleOffCalendar.getTimeInMillis()),
+                                LightStates.off()),
+                        null,
+                        result,
+                        collector,
                         new ValueCallback<PHSchedule>() {
                             @Override
                             public void go(PHSchedule createdSchedule) {
-                                mPrefs.setScheduleIdOff(createdSchedule.getIdentifier());
+                                transaction.setScheduleIdOff(createdSchedule.getIdentifier());
                             }
                         }
                 );
 
             } else { // there is no alarm scheduled, so we have to remove all hue schedules for this phone
-                if (scheduleIdOn != null) {
-                    removeSchedule(scheduleIdOn, messageCallback);
+                // schedules that are not in the cache anymore have been removed already, no need to ask again
+                if (isScheduleOnBridge(scheduleIdOn)) {
+                    removeSchedule(scheduleIdOn, messageCallback, result);
                 }
-                if (scheduleIdBrighten != null) {
-                    removeSchedule(scheduleIdBrighten, messageCallback);
+                if (isScheduleOnBridge(scheduleIdBrighten)) {
+                    removeSchedule(scheduleIdBrighten, messageCallback, result);
                 }
-                if (scheduleIdBrighten != null) {
-                    removeSchedule(scheduleIdBrighten, messageCallback);
+                if (isScheduleOnBridge(scheduleIdOff)) {
+                    removeSchedule(scheduleIdOff, messageCallback, result);
                 }
-                if (scheduleIdOff != null) {
-                    removeSchedule(scheduleIdOff, messageCallback);
+                for (int i = 2; i < ApplicationPreferences.MAX_CURVE_SCHEDULES; i++) {
+                    String scheduleIdCurve;
+
+                    scheduleIdCurve = mPrefs.getScheduleIdCurve(i, mBridgeAddress);
+                    if (isScheduleOnBridge(scheduleIdCurve)) {
+                        removeSchedule(scheduleIdCurve, null, result);
+                    }
                 }
             }
+
+            // all schedules have been handed out, the orphans that were not reused are not needed anymore
+            for (PHSchedule orphan : collector.takeRemaining()) {
+                removeSchedule(orphan.getIdentifier(), null, result);
+            }
+            result.setScheduleTableUsage(collector.getUsed(), ScheduleCollector.TABLE_CAPACITY);
+            EventLog.i(TAG, collector.toString());
         }
     }
 
+    /**
+     * Compiles the wake curve configured by the user or, if there is none (or it is not valid), the linear curve
+     * over the configured transition time.
+     *
+     * @return the schedules that play the wake curve.
+     */
+    private CurveCompiler.Result compileCurve() {
+        String keyframes;
+        double tolerance;
+        CurveCompiler.Result result;
+
+        keyframes = mPrefs.getWakeCurve();
+        tolerance = mPrefs.getCurveTolerancePercent() / 100.0;
+        result = null;
+        if (keyframes != null) {
+            try {
+                result = CurveCompiler.compile(WakeCurve.parse(keyframes), tolerance,
+                        ApplicationPreferences.MAX_CURVE_SCHEDULES);
+            } catch (IllegalArgumentException e) {
+                EventLog.w(TAG, "Ignoring wake curve '" + keyframes + "': " + e.getMessage());
+            }
+        }
+        if (result == null) {
+            result = CurveCompiler.compile(WakeCurve.linear(mPrefs.getTransitionMinutes()), tolerance,
+                    ApplicationPreferences.MAX_CURVE_SCHEDULES);
+        }
+
+        EventLog.i(TAG, result.toString());
+
+        return result;
+    }
+
     /**
      * This method removes the given schedule from the Hue system.
      *
      * @param scheduleId      the identifier of the schedule to be removed.
-     * @param messageCallback this callback will be called with a message about the removed schedule.
+     * @param messageCallback this callback will be called with a message about the removed schedule. If this value
+     *                        is <code>null</code> it will be ignored.
+     * @param result          the removal is registered as an operation with this object.
      */
-    private void removeSchedule(final String scheduleId, final ValueCallback<String> messageCallback) {
+    private void removeSchedule(final String scheduleId,
+                                final ValueCallback<String> messageCallback,
+                                final SyncResult result) {
+        final String operation;
 
         if (scheduleId == null) {
             throw new RuntimeException("The id of the schedule to be removed cannot be null.");
         }
 
-        if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Removing schedule with identifier " + scheduleId);
-        }
+        EventLog.d(TAG, "Removing schedule with identifier " + scheduleId);
 
-        this.mHueBridge.removeSchedule(scheduleId, new DefaultPHScheduleListener() {
+        operation = "Remove schedule " + scheduleId;
+        result.begin(operation);
+        sendRemove(scheduleId, operation, messageCallback, result, 0);
+    }
+
+    /**
+     * Sends the removal of a schedule to the bridge.
+     *
+     * @param scheduleId      the identifier of the schedule to be removed.
+     * @param operation       the name of the operation registered with the <code>result</code>.
+     * @param messageCallback see {@link #removeSchedule(String, ValueCallback, SyncResult)}.
+     * @param result          the operation is completed on this object.
+     * @param attempt         the number of times the removal has been sent before.
+     */
+    private void sendRemove(final String scheduleId,
+                            final String operation,
+                            final ValueCallback<String> messageCallback,
+                            final SyncResult result,
+                            final int attempt) {
+        result.countWrite();
+        removeScheduleFromBridge(scheduleId, new DefaultPHScheduleListener() {
             @Override
             public void onSuccess() {
                 String msg;
 
                 msg = "'" + scheduleId + "' removed from Hue bridge.";
-                if (Log.isLoggable(TAG, Log.INFO)) {
-                    Log.i(TAG, msg);
+                EventLog.i(TAG, msg);
+                if (messageCallback != null) {
+                    messageCallback.go(msg);
                 }
-                messageCallback.go(msg);
+                result.complete(operation, null);
             }
 
-            // todo: remove these as soon as this works
             @Override
             public void onError(int i, String s) {
                 String msg;
 
+                if (i == HueApiException.TYPE_RESOURCE_NOT_AVAILABLE) {
+                    EventLog.d(TAG, "Schedule '" + scheduleId + "' has been removed already");
+                    result.complete(operation, null);
+                    return;
+                }
+
                 msg = "Error while removing schedule '" + scheduleId + "': " + s;
-                if (Log.isLoggable(TAG, Log.ERROR)) {
-                    Log.e(TAG, msg);
+                EventLog.e(TAG, msg);
+                if (!retry(i, attempt, new Runnable() {
+                    @Override
+                    public void run() {
+                        sendRemove(scheduleId, operation, messageCallback, result, attempt + 1);
+                    }
+                }, null)) {
+                    if (messageCallback != null) {
+                        messageCallback.go(msg);
+                    }
+                    result.complete(operation, msg);
                 }
-                messageCallback.go(msg);
             }
 
             @Override
@@ -336,29 +720,110 @@ public class SyncManager {
     }
 
     /**
-     * Checks if there is a schedule with the given id configured. If yes, the method checks if the light group is set
-     * correctly and sets the date and the light state on the schedule. The success/failure of the operation will
-     * be communicated ot the callback.
+     * @param scheduleId the identifier of the schedule to look for, can be <code>null</code>.
+     * @return true if the resource cache of the bridge contains a schedule with the given identifier.
+     */
+    private boolean isScheduleOnBridge(String scheduleId) {
+        return scheduleId != null && this.mHueBridge.getResourceCache().getSchedules().containsKey(scheduleId);
+    }
+
+    /**
+     * Creates the schedule as we would like it to be stored on the bridge. This object is used to create new
+     * schedules on the bridge, or to compare it with an existing schedule, so we only update the bridge if something
+     * actually changed.
+     *
+     * @param scheduleName   the name of the schedule that will be set, should the schedule be created newly.
+     * @param lightGroupName the light group that should be used.
+     * @param scheduleDate   the time for the schedule to be executed at. For recurring schedules, only the time of
+     *                       the day is used.
+     * @param recurringDays  the days of the week on which the schedule repeats, as a bit mask of
+     *                       {@link PHSchedule.RecurringDay} values. 0 if the schedule only runs once.
+     * @param lightState     the light state to set on the schedule.
+     * @return the desired schedule.
+     */
+    private PHSchedule createDesiredSchedule(String scheduleName,
+                                             String lightGroupName,
+                                             Date scheduleDate,
+                                             int recurringDays,
+                                             PHLightState lightState) {
+        PHSchedule result;
+
+        result = new PHSchedule(scheduleName);
+        result.setGroupIdentifier(lightGroupName);
+        result.setDescription(ResourceIndex.OWNER_PREFIX  // this is a hack because I cannot otherwise uniquely
+                + mPrefs.getBridgeDeviceName());        // identify the schedules that belong to a given device.
+        result.setLightState(lightState);
+        result.setDate(scheduleDate);
+        if (recurringDays != PHSchedule.RecurringDay.RECURRING_NONE.getValue()) {
+            result.setRecurringDays(recurringDays);
+            result.setLocalTime(true); // recurring schedules go off at the same local time, even across DST changes
+        }
+
+        return result;
+    }
+
+    /**
+     * Converts the days of the week on which an alarm recurs into the days on which one of its schedules has to go
+     * off. The schedules run before or after the alarm, so a schedule of an alarm shortly after midnight may have to
+     * go off on the previous day.
+     *
+     * @param alarmDays    the days of the week of the alarm, see {@link AlarmHistory#getRecurringDays(long)}.
+     * @param alarm        the time of the next alarm in milliseconds since the epoch.
+     * @param scheduleTime the time at which the schedule belonging to the next alarm goes off.
+     * @return the days of the week as a bit mask of {@link PHSchedule.RecurringDay} values, 0 if the alarm is not
+     * recurring.
+     */
+    private static int toRecurringDays(int alarmDays, long alarm, long scheduleTime) {
+        TimeZone timeZone;
+        int dayShift;
+        int result;
+
+        timeZone = TimeZone.getDefault();
+        dayShift = (int) ((scheduleTime + timeZone.getOffset(scheduleTime)) / DAY_MILLIS
+                - (alarm + timeZone.getOffset(alarm)) / DAY_MILLIS);
+
+        result = PHSchedule.RecurringDay.RECURRING_NONE.getValue();
+        for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY; day++) {
+            if ((alarmDays & (1 << day)) != 0) {
+                // Calendar counts the days from 1 (sunday) to 7 (saturday)
+                result |= RECURRING_DAYS[((day - 1 + dayShift) % 7 + 7) % 7].getValue();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks if there is a schedule with the given id configured. If yes, the method compares the schedule with the
+     * desired schedule and only sends the fields that differ to the bridge. If the schedule on the bridge is already
+     * up to date, no request is sent at all. The success/failure of the operation will be communicated ot the
+     * callback.
      *
      * @param scheduleId       the id of the schedule to find.
-     * @param scheduleName     the name of the schedule that will be set, should the schedule be created newly.
-     * @param lightGroupName   the light group that should be used.
-     * @param scheduleDate     the time for the schedule to be executed at.
-     * @param lightState       the light state to set on the schedule.
+     * @param desiredSchedule  the schedule as it should be stored on the bridge, see
+     *                         {@link #createDesiredSchedule(String, String, Date, int, PHLightState)}.
      * @param messageCallback  the callback to inform about the success/failure of the operation. If this value is
      *                         <code>null</code> it will be ignored.
-     * @param scheduleCallback in case of the schedule not existing on the bridge and a new schedule has to be created,
-     *                         this method will be called with the new schedule as an argument.
+     * @param result           the operation is registered with this object under the name of the schedule.
+     * @param collector        provides an orphaned schedule to reuse, if the schedule does not exist on the bridge.
+     * @param scheduleCallback in case of the schedule not existing on the bridge and a new schedule has to be created
+     *                         (or an orphan has been reused), this method will be called with the new schedule as an
+     *                         argument.
      */
     private void createUpdateSchedule(String scheduleId,
-                                      String scheduleName,
-                                      String lightGroupName,
-                                      Date scheduleDate,
-                                      PHLightState lightState,
+                                      final PHSchedule desiredSchedule,
                                       final ValueCallback<String> messageCallback,
+                                      final SyncResult result,
+                                      ScheduleCollector collector,
                                       final ValueCallback<PHSchedule> scheduleCallback) {
         final PHSchedule schedule;
+        final String operation;
         boolean needToCreateNewSchedule;
+        PHSchedule orphan;
+        PHSchedule update;
+
+        operation = desiredSchedule.getName();
+        result.begin(operation);
 
         if (scheduleId != null) {
             schedule = this.mHueBridge.getResourceCache().getSchedules().get(scheduleId);
@@ -369,168 +834,417 @@ public class SyncManager {
         needToCreateNewSchedule = false;
 
         if (schedule == null) {
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "Schedule with id '" + scheduleId + "' did not exist.");
-            }
+            EventLog.d(TAG, "Schedule with id '" + scheduleId + "' did not exist.");
             needToCreateNewSchedule = true;
-        } else if (!schedule.getDescription().contains(mPrefs.getBridgeDeviceName())) {
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "The description of the schedule with id '" + scheduleId + "' did not contain the " +
-                        "device name '" + mPrefs.getBridgeDeviceName() + "'.");
-            }
+        } else if (!mPrefs.getBridgeDeviceName().equals(ResourceIndex.getOwner(schedule))) {
+            EventLog.d(TAG, "The schedule with id '" + scheduleId + "' is not owned by the device '"
+                    + mPrefs.getBridgeDeviceName() + "'.");
             needToCreateNewSchedule = true;
         }
 
-
-        if (needToCreateNewSchedule) {
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "Creating a new schedule with name '" + scheduleName + "' ...");
+        orphan = needToCreateNewSchedule ? collector.reuse(operation) : null;
+
+        if (orphan != null) {
+            EventLog.d(TAG, "Reusing orphaned schedule '" + orphan.getIdentifier() + "' for '"
+                    + desiredSchedule.getName() + "' ...");
+
+            // the orphan becomes the schedule we would have created, so all its fields are sent to the bridge
+            update = ScheduleReconciler.copy(orphan);
+            ScheduleReconciler.apply(desiredSchedule, update, EnumSet.allOf(ScheduleReconciler.Field.class));
+            update.setName(desiredSchedule.getName());
+            update.setDescription(desiredSchedule.getDescription());
+            sendUpdate(orphan, update, desiredSchedule, operation, messageCallback, result, collector, scheduleCallback,
+                    true, 0);
+        } else if (needToCreateNewSchedule && !collector.reserve()) {
+            String msg;
+
+            msg = "The schedule table of the bridge is full, cannot create '" + desiredSchedule.getName() + "'";
+            EventLog.e(TAG, msg);
+            if (messageCallback != null) {
+                messageCallback.go(msg);
             }
-            final PHSchedule newSchedule;
+            result.complete(operation, msg);
+        } else if (needToCreateNewSchedule) {
+            EventLog.d(TAG, "Creating a new schedule with name '" + desiredSchedule.getName() + "' ...");
+
+            sendCreate(desiredSchedule, operation, messageCallback, result, collector, scheduleCallback, 0);
+        } else {
+            Set<ScheduleReconciler.Field> changedFields;
 
-            newSchedule = new PHSchedule(scheduleName);
-            newSchedule.setGroupIdentifier(lightGroupName);
-            newSchedule.setDescription("Schedule of: "  // this is a hack because I cannot otherwise uniquely
-                    + mPrefs.getBridgeDeviceName());    // identify the schedules that belong to a given device.
-            newSchedule.setLightState(lightState);
-            newSchedule.setDate(scheduleDate);
+            changedFields = ScheduleReconciler.diff(schedule, desiredSchedule);
 
-            // creating schedule on bridge
-            this.mHueBridge.createSchedule(newSchedule, new DefaultPHScheduleListener() {
-                @Override
-                public void onCreated(PHSchedule createdSchedule) {
-                    String msg = "'" + createdSchedule.getName() + "' scheduled for "
-                            + createdSchedule.getDate();
-                    if (Log.isLoggable(TAG, Log.INFO)) {
-                        Log.i(TAG, msg);
-                    }
+            if (changedFields.isEmpty()) {
+                String msg;
 
-                    if (messageCallback != null) {
-                        messageCallback.go(msg);
-                    }
+                msg = "'" + schedule.getName() + "' already scheduled for " + schedule.getDate();
+                EventLog.d(TAG, "Schedule '" + schedule.getName() + "' is up to date. Not updating the bridge.");
 
-                    scheduleCallback.go(createdSchedule);
+                if (messageCallback != null) {
+                    messageCallback.go(msg);
                 }
+                result.complete(operation, null);
+                return;
+            }
 
-                @Override
-                public void onError(int i, String s) {
-                    if (Log.isLoggable(TAG, Log.ERROR)) {
-                        Log.e(TAG, "Error while creating Schedule '" + newSchedule.getName() + "'. Error code " + i + ": " + s);
-                    }
+            EventLog.d(TAG, "Schedule '" + schedule.getName() + "' differs in " + changedFields + ". Updating bridge.");
 
-                    // todo: handle the case when the light group does not exist on the bridge (e.g. if it was renamed
-                    // in the settings)
-                }
+            // updating schedule on bridge, but only the fields that have changed
+            update = ScheduleReconciler.copy(schedule);
+            ScheduleReconciler.apply(desiredSchedule, update, changedFields);
+            sendUpdate(schedule, update, desiredSchedule, operation, messageCallback, result, collector,
+                    scheduleCallback, false, 0);
+        }
+    }
 
-                @Override
-                public void onSuccess() {
-                    if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "onSuccess");
-                    }
-                }
+    /**
+     * Sends a new schedule to the bridge.
+     *
+     * @param desiredSchedule  the schedule to create.
+     * @param operation        the name of the operation registered with the <code>result</code>.
+     * @param messageCallback  see {@link #createUpdateSchedule}. If this value is <code>null</code> it will be ignored.
+     * @param result           the operation is completed on this object.
+     * @param collector        the collector of the synchronization.
+     * @param scheduleCallback called with the schedule once it has been created.
+     * @param attempt          the number of times the schedule has been sent before.
+     */
+    private void sendCreate(final PHSchedule desiredSchedule,
+                            final String operation,
+                            final ValueCallback<String> messageCallback,
+                            final SyncResult result,
+                            final ScheduleCollector collector,
+                            final ValueCallback<PHSchedule> scheduleCallback,
+                            final int attempt) {
+        result.countWrite();
+        this.mJournal.intend(this.mResolvedAddress, operation);
+        createScheduleOnBridge(desiredSchedule, new DefaultPHScheduleListener() {
+            @Override
+            public void onCreated(PHSchedule createdSchedule) {
+                String msg = "'" + createdSchedule.getName() + "' scheduled for "
+                        + createdSchedule.getDate();
+                EventLog.i(TAG, msg);
 
-                @Override
-                public void onStateUpdate(Hashtable<String, String> stringStringHashtable, List<PHHueError> phHueErrors) {
-                    if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "onStateUpdate");
-                    }
+                if (messageCallback != null) {
+                    messageCallback.go(msg);
                 }
-            });
-        } else {
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "Schedule existed. Checking if scheduling of Hue is necessary");
-            }
 
-            String scheduleLightGroupId;
+                mJournal.created(mResolvedAddress, operation, createdSchedule.getIdentifier());
+                scheduleCallback.go(createdSchedule);
+                result.complete(operation, null);
+            }
 
-            scheduleLightGroupId = schedule.getGroupIdentifier();
+            @Override
+            public void onError(final int i, String s) {
+                String msg;
 
-            if (!lightGroupName.equals(scheduleLightGroupId)) {
-                if (Log.isLoggable(TAG, Log.WARN)) {
-                    Log.w(TAG, "Light group identifier on schedule '" + schedule.getName() + "' was set to '" +
-                            scheduleLightGroupId + "'. Overwriting with new value '" + lightGroupName + "'");
+                msg = "Error while creating Schedule '" + desiredSchedule.getName() + "'. Error code " + i + ": " + s;
+                EventLog.e(TAG, msg);
+                if (!retry(i, attempt, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (i == PHHueError.BRIDGE_NOT_RESPONDING) {
+                            // the bridge may have created the schedule before it stopped responding
+                            resendCreate(desiredSchedule, operation, messageCallback, result, collector, scheduleCallback,
+                                    attempt + 1);
+                        } else {
+                            sendCreate(desiredSchedule, operation, messageCallback, result, collector, scheduleCallback,
+                                    attempt + 1);
+                        }
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        // most likely the light group does not exist anymore (e.g. it was renamed in the settings)
+                        repairLightGroup(operation, result, new Runnable() {
+                            @Override
+                            public void run() {
+                                sendCreate(desiredSchedule, operation, messageCallback, result, collector, scheduleCallback,
+                                        RetryPolicy.LAST_ATTEMPT);
+                            }
+                        });
+                    }
+                })) {
+                    result.complete(operation, msg);
                 }
-                schedule.setGroupIdentifier(lightGroupName);
             }
 
-            // updating schedule on bridge if necessary
-            schedule.setLightState(lightState);
-            schedule.setDate(scheduleDate);
-            this.mHueBridge.updateSchedule(schedule, new DefaultPHScheduleListener() {
-                @Override
-                public void onSuccess() {
-                    String msg;
+            @Override
+            public void onSuccess() {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "onSuccess");
+                }
+            }
 
-                    msg = "'" + schedule.getName() + "' updated for " + schedule.getDate();
+            @Override
+            public void onStateUpdate(Hashtable<String, String> stringStringHashtable, List<PHHueError> phHueErrors) {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "onStateUpdate");
+                }
+            }
+        });
+    }
 
-                    if (messageCallback != null) {
-                        messageCallback.go(msg);
+    /**
+     * Sends a new schedule to the bridge again, unless the bridge already has it. Creating a schedule is not
+     * idempotent: if the bridge stopped responding after it created the schedule, sending it again would create it
+     * twice.
+     * <p/>
+     * A schedule on the bridge is only taken for the one we sent if the journal still waits for the confirmation of
+     * the creation, if it has the same name, owner and contents, and if it is not an orphan that is about to be
+     * removed.
+     *
+     * @see #sendCreate
+     */
+    private void resendCreate(final PHSchedule desiredSchedule,
+                              final String operation,
+                              final ValueCallback<String> messageCallback,
+                              final SyncResult result,
+                              final ScheduleCollector collector,
+                              final ValueCallback<PHSchedule> scheduleCallback,
+                              final int attempt) {
+        LOOKUP_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                PHSchedule created;
+
+                created = null;
+                try {
+                    if (mJournal.isCreatePending(mResolvedAddress, operation)) {
+                        for (PHSchedule schedule : createRestClient().getSchedules()) {
+                            if (desiredSchedule.getName().equals(schedule.getName())
+                                    && mPrefs.getBridgeDeviceName().equals(ResourceIndex.getOwner(schedule))
+                                    && !collector.isRemoving(schedule.getIdentifier())
+                                    && ScheduleReconciler.diff(schedule, desiredSchedule).isEmpty()) {
+                                created = schedule;
+                            }
+                        }
                     }
+                } catch (IOException e) {
+                    EventLog.w(TAG, "Could not check whether '" + desiredSchedule.getName() + "' exists: "
+                            + e.getMessage());
+                }
 
-                    if (Log.isLoggable(TAG, Log.INFO)) {
-                        Log.i(TAG, msg);
-                    }
+                if (created != null) {
+                    EventLog.i(TAG, "'" + created.getName() + "' had been created before the bridge stopped "
+                            + "responding");
+                    mJournal.created(mResolvedAddress, operation, created.getIdentifier());
+                    scheduleCallback.go(created);
+                    result.complete(operation, null);
+                } else {
+                    sendCreate(desiredSchedule, operation, messageCallback, result, collector, scheduleCallback, attempt);
                 }
+            }
+        });
+    }
 
-                @Override
-                public void onError(int i, String s) {
-                    if (Log.isLoggable(TAG, Log.ERROR)) {
-                        Log.e(TAG, "Error code " + i + ":" + s);
-                    }
+    /**
+     * Sends the changed schedule to the bridge.
+     *
+     * @param cached           the schedule in the resource cache. It only takes the values of the sent schedule once
+     *                         the bridge confirmed the update.
+     * @param schedule         the schedule to send, a changed copy of the cached schedule.
+     * @param desiredSchedule  the schedule as it should be stored on the bridge. It is created newly if the schedule
+     *                         has been removed from the bridge in the meantime.
+     * @param operation        the name of the operation registered with the <code>result</code>.
+     * @param messageCallback  see {@link #createUpdateSchedule}. If this value is <code>null</code> it will be ignored.
+     * @param result           the operation is completed on this object.
+     * @param collector        the collector of the synchronization.
+     * @param scheduleCallback called with the schedule if it has been created newly or, if <code>reused</code> is
+     *                         set, once it has been updated.
+     * @param reused           true if the schedule is an orphan that has been reused.
+     * @param attempt          the number of times the schedule has been sent before.
+     */
+    private void sendUpdate(final PHSchedule cached,
+                            final PHSchedule schedule,
+                            final PHSchedule desiredSchedule,
+                            final String operation,
+                            final ValueCallback<String> messageCallback,
+                            final SyncResult result,
+                            final ScheduleCollector collector,
+                            final ValueCallback<PHSchedule> scheduleCallback,
+                            final boolean reused,
+                            final int attempt) {
+        result.countWrite();
+        updateScheduleOnBridge(schedule, new DefaultPHScheduleListener() {
+            @Override
+            public void onSuccess() {
+                String msg;
+
+                msg = "'" + schedule.getName() + "' updated for " + schedule.getDate();
+
+                if (messageCallback != null) {
+                    messageCallback.go(msg);
                 }
 
-                @Override
-                public void onStateUpdate(Hashtable<String, String> stringStringHashtable, List<PHHueError> phHueErrors) {
-                    String msg;
+                EventLog.i(TAG, msg);
 
-                    msg = "'" + schedule.getName() + "' updated for " + schedule.getDate();
+                // now that the bridge has the new values, the cache may have them too
+                ScheduleReconciler.apply(schedule, cached, EnumSet.allOf(ScheduleReconciler.Field.class));
+                cached.setName(schedule.getName());
+                cached.setDescription(schedule.getDescription());
+                if (reused) {
+                    scheduleCallback.go(cached);
+                }
+                result.complete(operation, null);
+            }
 
-                    if (messageCallback != null) {
-                        messageCallback.go(msg);
+            @Override
+            public void onError(final int i, String s) {
+                EventLog.e(TAG, "Error code " + i + ":" + s);
+                if (!retry(i, attempt, new Runnable() {
+                    @Override
+                    public void run() {
+                        sendUpdate(cached, schedule, desiredSchedule, operation, messageCallback, result,
+                                collector, scheduleCallback, reused, attempt + 1);
                     }
-
-                    if (Log.isLoggable(TAG, Log.INFO)) {
-                        Log.i(TAG, msg);
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (i == HueApiException.TYPE_RESOURCE_NOT_AVAILABLE) {
+                            // the schedule has been removed in the meantime, so we create it again
+                            sendCreate(desiredSchedule, operation, messageCallback, result, collector, scheduleCallback,
+                                    RetryPolicy.LAST_ATTEMPT);
+                        } else {
+                            repairLightGroup(operation, result, new Runnable() {
+                                @Override
+                                public void run() {
+                                    sendUpdate(cached, schedule, desiredSchedule, operation, messageCallback,
+                                            result, collector, scheduleCallback, reused, RetryPolicy.LAST_ATTEMPT);
+                                }
+                            });
+                        }
                     }
+                })) {
+                    result.complete(operation, "Error code " + i + ": " + s);
                 }
-            });
-        }
+            }
+
+            @Override
+            public void onStateUpdate(Hashtable<String, String> stringStringHashtable, List<PHHueError> phHueErrors) {
+                onSuccess();
+            }
+        });
     }
 
     /**
-     * @return a light state to turn the hue on.
+     * Decides what to do about an error the bridge reported for an operation, see {@link RetryPolicy}.
+     *
+     * @param errorCode the error code reported to the listener of the operation.
+     * @param attempt   the number of times the operation has been sent before the attempt that failed.
+     * @param resend    sends the operation again.
+     * @param repair    repairs the cause of the error and sends the operation again. <code>null</code> if there is
+     *                  no repair for this operation.
+     * @return true if the operation is sent again, false if it failed for good.
      */
-    private PHLightState createLightStateOn() {
-        PHLightState scheduleLightState;
-        scheduleLightState = new PHLightState();
-        scheduleLightState.setBrightness(1);
-        scheduleLightState.setOn(true);
-        return scheduleLightState;
+    private boolean retry(int errorCode, int attempt, Runnable resend, Runnable repair) {
+        RetryPolicy.ErrorClass errorClass;
+
+        if (attempt >= RetryPolicy.LAST_ATTEMPT) {
+            return false;
+        }
+
+        errorClass = RetryPolicy.classify(errorCode);
+        if (errorClass == RetryPolicy.ErrorClass.RETRYABLE) {
+            long delay;
+
+            delay = RetryPolicy.retryLater(resend, attempt);
+            EventLog.i(TAG, "Retrying in " + delay + "ms (attempt " + (attempt + 2) + " of "
+                    + RetryPolicy.MAX_ATTEMPTS + ")");
+            return true;
+        } else if (errorClass == RetryPolicy.ErrorClass.REPAIRABLE && repair != null) {
+            EventLog.i(TAG, "Repairing the cause of error " + errorCode + " before retrying");
+            repair.run();
+            return true;
+        }
+
+        return false;
     }
 
     /**
-     * Creates a hue lights state object that transitions from the lights current state to full brightness within
-     * the time configured in {@link org.github.gentlewake.data.ApplicationPreferences#getTransitionMinutes()}.
+     * Creates the light group, if it does not exist anymore, and sends the failed operation again.
      *
-     * @return a light state to turn the hue on.
+     * @param operation the name of the failed operation.
+     * @param result    the operation is completed on this object, if the group can't be created.
+     * @param resend    sends the operation again.
      */
-    private PHLightState createLightStateBrighten() {
-        PHLightState scheduleLightState;
-        scheduleLightState = new PHLightState();
-        // the transition time is measured in 100ms, so to get from minutes to 100ms we need * 60 * 10
-        scheduleLightState.setTransitionTime(this.mPrefs.getTransitionMinutes() * 60 * 10);
-        scheduleLightState.setBrightness(255);
-        return scheduleLightState;
+    private void repairLightGroup(final String operation, final SyncResult result, final Runnable resend) {
+        final String groupName;
+        final Callback callback;
+        final ValueCallback<String> errorCallback;
+
+        groupName = mPrefs.getLightGroupName();
+        callback = new Callback() {
+            @Override
+            public void go() {
+                resend.run();
+            }
+        };
+        errorCallback = new ValueCallback<String>() {
+            @Override
+            public void go(String error) {
+                result.complete(operation, error);
+            }
+        };
+
+        ResourceIndex.invalidate(); // the group is missing from the bridge, but it may still be in the index
+        LOOKUP_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean exists;
+
+                // the cache may still list the group that has been deleted, so we ask the bridge
+                exists = false;
+                try {
+                    for (PHGroup group : createRestClient().getGroups()) {
+                        exists |= groupName.equals(group.getName());
+                    }
+                } catch (IOException e) {
+                    EventLog.w(TAG, "Could not load the groups of the bridge: " + e.getMessage());
+                    ensureAlarmLightGroup(groupName, callback, errorCallback);
+                    return;
+                }
+
+                if (exists) {
+                    callback.go();
+                } else {
+                    EventLog.d(TAG, "Group '" + groupName + "' has been deleted. Creating it again...");
+                    createAlarmLightGroup(groupName, callback, errorCallback);
+                }
+            }
+        });
     }
 
-    /**
-     * @return a light state to turn the hue on.
-     */
-    private PHLightState createLightStateOff() {
-        PHLightState scheduleLightState;
-        scheduleLightState = new PHLightState();
-        scheduleLightState.setOn(false);
-        return scheduleLightState;
+    /** @return a client that reads the current state of the bridge, bypassing the resource cache. */
+    private HueRestClient createRestClient() {
+        return new HueRestClient(this.mResolvedAddress, this.mPrefs.getUsername());
+    }
+
+    /* The commands that change the bridge, sent through the pacer. */
+
+    private void createScheduleOnBridge(final PHSchedule schedule, final PHScheduleListener listener) {
+        this.mPacer.submit(this.mPriority, new Runnable() {
+            @Override
+            public void run() {
+                mHueBridge.createSchedule(schedule, listener);
+            }
+        });
+    }
+
+    private void updateScheduleOnBridge(final PHSchedule schedule, final PHScheduleListener listener) {
+        this.mPacer.submit(this.mPriority, new Runnable() {
+            @Override
+            public void run() {
+                mHueBridge.updateSchedule(schedule, listener);
+            }
+        });
+    }
+
+    private void removeScheduleFromBridge(final String scheduleId, final PHScheduleListener listener) {
+        this.mPacer.submit(this.mPriority, new Runnable() {
+            @Override
+            public void run() {
+                mHueBridge.removeSchedule(scheduleId, listener);
+            }
+        });
     }
 
 }
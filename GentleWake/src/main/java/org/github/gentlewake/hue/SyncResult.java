@@ -0,0 +1,311 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.os.SystemClock;
+
+import org.github.gentlewake.util.Callback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of one synchronization run of the {@link SyncManager}. All the operations that the sync manager sends
+ * to the bridge (creating the light group, creating, updating or removing the schedules) run concurrently, as the Hue
+ * SDK calls us back on its own threads. This object keeps track of the operations that are still running and serves
+ * as a completion barrier: {@link #await(long)} blocks until all of them have finished and the completion callbacks
+ * have run, or the deadline has passed.
+ * <p/>
+ * Operations are identified by a name (usually the name of the schedule). Each operation has to be started with
+ * {@link #begin(String)} and finished with {@link #complete(String, String)}. Finishing an operation twice is
+ * harmless, as the SDK sometimes reports success through more than one callback method.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public class SyncResult {
+
+    /** The time at which the synchronization started, as returned by {@link SystemClock#elapsedRealtime()}. */
+    private final long mStartTime;
+
+    /** The start times of all operations that have not yet finished. */
+    private final Map<String, Long> mPending;
+
+    /** The start times of all operations, in milliseconds since the start of the synchronization. */
+    private final Map<String, Long> mStartOffsets;
+
+    /** The durations in milliseconds of all the operations that have finished. */
+    private final Map<String, Long> mDurations;
+
+    /** The error messages of all operations that failed. */
+    private final Map<String, String> mErrors;
+
+    /** The number of requests that modified the state of the bridge (create, update and remove requests). */
+    private int mWriteCount;
+
+    /** The number of used entries of the schedule table of the bridge, -1 if unknown. */
+    private int mTableUsed;
+
+    /** The number of schedules the bridge can hold. */
+    private int mTableCapacity;
+
+    /** Once the sync manager has issued all operations it is going to issue directly, this flag is set. */
+    private boolean mSealed;
+
+    /** The time it took until all operations were finished or -1 if they are still running. */
+    private long mDuration;
+
+    /** The callbacks to call once all operations have finished. The list is cleared once they have been called. */
+    private final List<Callback> mCompletionCallbacks;
+
+    /**
+     * Set once all operations have finished and the completion callbacks have been called. The barrier only opens
+     * then, so that the waiting threads see what the callbacks stored (e.g. the identifiers of created schedules).
+     */
+    private boolean mCallbacksRun;
+
+    public SyncResult() {
+        this.mStartTime = SystemClock.elapsedRealtime();
+        this.mPending = new LinkedHashMap<String, Long>();
+        this.mStartOffsets = new LinkedHashMap<String, Long>();
+        this.mDurations = new LinkedHashMap<String, Long>();
+        this.mErrors = new LinkedHashMap<String, String>();
+        this.mDuration = -1;
+        this.mTableUsed = -1;
+        this.mCompletionCallbacks = new ArrayList<Callback>();
+    }
+
+    /**
+     * Registers a new operation. The barrier will not open before this operation has been completed.
+     *
+     * @param operation the name of the operation.
+     */
+    public synchronized void begin(String operation) {
+        long now;
+
+        now = SystemClock.elapsedRealtime();
+        this.mPending.put(operation, now);
+        this.mStartOffsets.put(operation, now - this.mStartTime);
+    }
+
+    /**
+     * Counts a request that modifies the state of the bridge. Operations that find the bridge up to date do not
+     * send such a request, so a synchronization without changes has a write count of zero.
+     */
+    public synchronized void countWrite() {
+        this.mWriteCount++;
+    }
+
+    /**
+     * Records how full the schedule table of the bridge is, see {@link ScheduleCollector}.
+     *
+     * @param used     the number of used entries, once all operations have finished.
+     * @param capacity the number of schedules the bridge can hold.
+     */
+    public synchronized void setScheduleTableUsage(int used, int capacity) {
+        this.mTableUsed = used;
+        this.mTableCapacity = capacity;
+    }
+
+    /**
+     * Marks the given operation as finished. Calls for operations that are not pending are ignored.
+     *
+     * @param operation the name of the operation.
+     * @param error     an error message if the operation failed, <code>null</code> if it succeeded.
+     */
+    public void complete(String operation, String error) {
+        List<Callback> callbacks;
+
+        synchronized (this) {
+            Long begin;
+
+            begin = this.mPending.remove(operation);
+            if (begin == null) {
+                return;
+            }
+            this.mDurations.put(operation, SystemClock.elapsedRealtime() - begin);
+            if (error != null) {
+                this.mErrors.put(operation, error);
+            }
+            callbacks = checkDone();
+        }
+
+        openBarrier(callbacks);
+    }
+
+    /**
+     * Tells this object that the sync manager has issued all its operations. Operations can still be started by
+     * callbacks of operations that are pending (e.g. the schedules are set after the light group has been created).
+     */
+    public void seal() {
+        List<Callback> callbacks;
+
+        synchronized (this) {
+            this.mSealed = true;
+            callbacks = checkDone();
+        }
+
+        openBarrier(callbacks);
+    }
+
+    /**
+     * Registers a callback that is called once all operations have finished, whether they succeeded or not. The
+     * callback is called on the thread that finished the last operation, or right away if all operations have
+     * finished already. Callbacks are not called if the operations never finish.
+     *
+     * @param callback the callback to call.
+     */
+    public void addCompletionCallback(Callback callback) {
+        boolean done;
+
+        synchronized (this) {
+            done = isDone();
+            if (!done) {
+                this.mCompletionCallbacks.add(callback);
+            }
+        }
+
+        if (done) {
+            callback.go();
+        }
+    }
+
+    /**
+     * Blocks until all operations have finished and the completion callbacks have been called, or the timeout has
+     * passed. Never call this on the UI thread.
+     *
+     * @param timeoutMillis the maximum number of milliseconds to wait.
+     * @return true if all operations have finished, false if the timeout passed first.
+     */
+    public synchronized boolean await(long timeoutMillis) {
+        long deadline;
+        long remaining;
+
+        deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        remaining = timeoutMillis;
+        while (!this.mCallbacksRun && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+
+        return this.mCallbacksRun;
+    }
+
+    /** @return true if all operations have finished. */
+    public synchronized boolean isDone() {
+        return this.mSealed && this.mPending.isEmpty();
+    }
+
+    /** @return true if all operations have finished and none of them failed. */
+    public synchronized boolean isSuccess() {
+        return isDone() && this.mErrors.isEmpty();
+    }
+
+    /** @return the error messages of the failed operations, keyed by operation name. */
+    public synchronized Map<String, String> getErrors() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(this.mErrors));
+    }
+
+    /** @return the durations in milliseconds of all finished operations, keyed by operation name. */
+    public synchronized Map<String, Long> getDurations() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(this.mDurations));
+    }
+
+    /**
+     * @return the start times of all operations that have been started, in milliseconds since the start of the
+     * synchronization, keyed by operation name.
+     */
+    public synchronized Map<String, Long> getStartOffsets() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(this.mStartOffsets));
+    }
+
+    /** @return the number of used entries of the schedule table of the bridge, -1 if it is not known. */
+    public synchronized int getScheduleTableUsed() {
+        return this.mTableUsed;
+    }
+
+    /** @return the number of requests that modified the state of the bridge. */
+    public synchronized int getWriteCount() {
+        return this.mWriteCount;
+    }
+
+    /**
+     * @return the number of milliseconds the whole synchronization took. If it is still running, this is the time
+     * that has passed since it started.
+     */
+    public synchronized long getDuration() {
+        return this.mDuration >= 0 ? this.mDuration : SystemClock.elapsedRealtime() - this.mStartTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        if (isSuccess()) {
+            result.append("Sync succeeded");
+        } else if (isDone()) {
+            result.append("Sync failed");
+        } else {
+            result.append("Sync timed out (pending: ").append(this.mPending.keySet()).append(")");
+        }
+        result.append(" after ").append(getDuration()).append("ms with ").append(this.mWriteCount).append(" writes");
+        if (this.mTableUsed >= 0) {
+            result.append(", schedule table ").append(this.mTableUsed).append('/').append(this.mTableCapacity);
+        }
+        if (!this.mErrors.isEmpty()) {
+            result.append(", errors: ").append(this.mErrors);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Checks whether all operations have finished.
+     *
+     * @return the completion callbacks that have to be called before the barrier opens, <code>null</code> if
+     * operations are still pending. They are called by the caller, after it released the lock on this object.
+     */
+    private List<Callback> checkDone() {
+        List<Callback> result;
+
+        result = null;
+        if (isDone()) {
+            if (this.mDuration < 0) {
+                this.mDuration = SystemClock.elapsedRealtime() - this.mStartTime;
+            }
+            result = new ArrayList<Callback>(this.mCompletionCallbacks);
+            this.mCompletionCallbacks.clear();
+        }
+
+        return result;
+    }
+
+    /**
+     * Calls the completion callbacks and then releases the threads waiting in {@link #await(long)}.
+     *
+     * @param callbacks the callbacks returned by {@link #checkDone()}, <code>null</code> if the barrier stays closed.
+     */
+    private void openBarrier(List<Callback> callbacks) {
+        if (callbacks == null) {
+            return;
+        }
+
+        try {
+            for (Callback callback : callbacks) {
+                callback.go();
+            }
+        } finally {
+            synchronized (this) {
+                this.mCallbacksRun = true;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records where the time of one synchronization went: probing the bridge, connecting to it, loading its resources
+ * and each of the operations sent to it. All stages are measured with the monotonic clock
+ * ({@link SystemClock#elapsedRealtime()}), relative to the start of the synchronization, so changes of the wall clock
+ * don't distort them. Timelines are kept in the {@link org.github.gentlewake.data.SyncHistory}.
+ * <p/>
+ * Timelines are encoded as a single line of text: the start time (wall clock), the bridge, the outcome and then all
+ * stages as <code>offset:duration:name</code>, separated by tabs.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class SyncTimeline {
+
+    private static final String SEPARATOR = "\t";
+
+    /** The start of the synchronization, in milliseconds since the epoch. */
+    private final long mStartTime;
+
+    /** The start of the synchronization, as returned by {@link SystemClock#elapsedRealtime()}. */
+    private final long mStartElapsed;
+
+    /** The bridge that has been synchronized. */
+    private final String mBridge;
+
+    /** The stages, in the order they started. Guarded by the lock on this object. */
+    private final List<Stage> mStages;
+
+    /** The outcome of the synchronization, <code>null</code> while it is running. */
+    private String mOutcome;
+
+    /**
+     * Starts a new timeline now.
+     *
+     * @param bridge the address of the bridge being synchronized.
+     */
+    public SyncTimeline(String bridge) {
+        this(System.currentTimeMillis(), SystemClock.elapsedRealtime(), bridge);
+    }
+
+    private SyncTimeline(long startTime, long startElapsed, String bridge) {
+        this.mStartTime = startTime;
+        this.mStartElapsed = startElapsed;
+        this.mBridge = bridge != null ? bridge : "?";
+        this.mStages = new ArrayList<Stage>();
+    }
+
+    /**
+     * Starts a stage. Finish it with {@link Stage#end()}.
+     *
+     * @param name the name of the stage.
+     * @return the stage.
+     */
+    public Stage begin(String name) {
+        return new Stage(name, SystemClock.elapsedRealtime() - this.mStartElapsed, -1);
+    }
+
+    /**
+     * Adds the operations of a synchronization as stages, see {@link SyncResult#getStartOffsets()}. Operations that
+     * did not finish are added with the time they have been running so far.
+     *
+     * @param result the result of the synchronization.
+     * @param offset the start of the synchronization, relative to the start of this timeline.
+     */
+    public void addOperations(SyncResult result, long offset) {
+        Map<String, Long> durations;
+
+        durations = result.getDurations();
+        for (Map.Entry<String, Long> entry : result.getStartOffsets().entrySet()) {
+            Long duration;
+
+            duration = durations.get(entry.getKey());
+            add(new Stage(entry.getKey(), offset + entry.getValue(), duration != null ? duration
+                    : SystemClock.elapsedRealtime() - this.mStartElapsed - offset - entry.getValue()));
+        }
+    }
+
+    /** @return the number of milliseconds since the start of this timeline. */
+    public long getElapsed() {
+        return SystemClock.elapsedRealtime() - this.mStartElapsed;
+    }
+
+    /**
+     * Ends the timeline.
+     *
+     * @param outcome a short description of the outcome, e.g. the result of the synchronization.
+     */
+    public synchronized void finish(String outcome) {
+        this.mOutcome = outcome;
+        add(new Stage("Total", 0, getElapsed()));
+    }
+
+    /** @return the start of the synchronization, in milliseconds since the epoch. */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /** @return the outcome of the synchronization or <code>null</code> if it has not been finished. */
+    public synchronized String getOutcome() {
+        return mOutcome;
+    }
+
+    /** @return the stages, in the order they started. */
+    public synchronized List<Stage> getStages() {
+        return Collections.unmodifiableList(new ArrayList<Stage>(mStages));
+    }
+
+    /** Adds a finished stage, keeping the stages ordered by their start. */
+    private synchronized void add(Stage stage) {
+        int index;
+
+        index = this.mStages.size();
+        while (index > 0 && this.mStages.get(index - 1).mOffset > stage.mOffset) {
+            index--;
+        }
+        this.mStages.add(index, stage);
+    }
+
+    /** @return this timeline as a single line of text. */
+    public synchronized String encode() {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        result.append(mStartTime).append(SEPARATOR).append(clean(mBridge)).append(SEPARATOR)
+                .append(clean(mOutcome != null ? mOutcome : ""));
+        for (Stage stage : mStages) {
+            result.append(SEPARATOR).append(stage.mOffset).append(':').append(stage.mDuration).append(':')
+                    .append(clean(stage.mName));
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * @param text a timeline as returned by {@link #encode()}.
+     * @return the timeline or <code>null</code> if the text is not a valid timeline.
+     */
+    public static SyncTimeline decode(String text) {
+        String[] fields;
+        SyncTimeline result;
+
+        fields = text.split(SEPARATOR, -1);
+        if (fields.length < 3) {
+            return null;
+        }
+
+        try {
+            result = new SyncTimeline(Long.parseLong(fields[0]), 0, fields[1]);
+            result.mOutcome = fields[2];
+            for (int i = 3; i < fields.length; i++) {
+                String[] parts;
+
+                parts = fields[i].split(":", 3);
+                if (parts.length == 3) {
+                    result.add(result.new Stage(parts[2], Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        return result;
+    }
+
+    /** @return the stages of the timeline, one per line. */
+    @Override
+    public synchronized String toString() {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        result.append(mBridge).append(": ").append(mOutcome != null ? mOutcome : "running");
+        for (Stage stage : mStages) {
+            result.append('\n').append(String.format("  %6dms +%5dms  %s", stage.mOffset, stage.mDuration,
+                    stage.mName));
+        }
+
+        return result.toString();
+    }
+
+    /** Separators can't be part of the fields, so they are replaced with blanks. */
+    private static String clean(String text) {
+        return text.replace(SEPARATOR, " ").replace('\n', ' ');
+    }
+
+    /** One stage of a synchronization. */
+    public final class Stage {
+
+        private final String mName;
+
+        /** The start of the stage, in milliseconds since the start of the synchronization. */
+        private final long mOffset;
+
+        /** The duration of the stage in milliseconds, -1 while it is running. */
+        private long mDuration;
+
+        private Stage(String name, long offset, long duration) {
+            this.mName = name;
+            this.mOffset = offset;
+            this.mDuration = duration;
+        }
+
+        /** Finishes the stage and adds it to the timeline. */
+        public void end() {
+            this.mDuration = SystemClock.elapsedRealtime() - mStartElapsed - this.mOffset;
+            add(this);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public long getDuration() {
+            return mDuration;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/* TODO: license */
+package org.github.gentlewake.hue;
+
+import com.philips.lighting.model.PHLightState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how the lights wake the user up: a list of keyframes, each giving the brightness and (optionally) the
+ * colour temperature the lights should have at a given time. Between two keyframes, the values change linearly. The
+ * curve starts when the lights are turned on and ends when the alarm goes off.
+ * <p/>
+ * Curves are written as a list of keyframes separated by blanks or commas, each keyframe being
+ * <code>minute:brightness</code> or <code>minute:brightness:ct</code>, e.g. <code>0:1:454 20:120:370 30:254:250</code>
+ * for a warm, slow start that gets brighter and colder towards the end. Either all or none of the keyframes have a
+ * colour temperature. Use {@link CurveCompiler} to turn a curve into schedules for the bridge.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class WakeCurve {
+
+    /** The keyframes, ordered by time. */
+    private final List<Keyframe> mKeyframes;
+
+    private WakeCurve(List<Keyframe> keyframes) {
+        this.mKeyframes = keyframes;
+    }
+
+    /**
+     * @param transitionMinutes the number of minutes the lights take to reach their full brightness, at least 1.
+     * @return the curve GentleWake has always used: the lights are turned on at the lowest brightness and get
+     * brighter at a constant rate until they reach their full brightness when the alarm goes off.
+     */
+    public static WakeCurve linear(int transitionMinutes) {
+        List<Keyframe> keyframes;
+        int seconds;
+
+        seconds = Math.max(1, transitionMinutes) * 60;
+        keyframes = new ArrayList<Keyframe>(2);
+        keyframes.add(new Keyframe(0, LightStates.BRIGHTNESS_MIN, PHLightState.VALUE_NOT_SET));
+        keyframes.add(new Keyframe(seconds, LightStates.BRIGHTNESS_MAX, PHLightState.VALUE_NOT_SET));
+
+        return new WakeCurve(keyframes);
+    }
+
+    /**
+     * Parses a curve in the format described above.
+     *
+     * @param text the keyframes of the curve.
+     * @return the curve.
+     * @throws IllegalArgumentException if the text is not a valid curve.
+     */
+    public static WakeCurve parse(String text) {
+        List<Keyframe> keyframes;
+        boolean withCt;
+
+        keyframes = new ArrayList<Keyframe>();
+        withCt = false;
+        for (String token : text.trim().split("[\\s,]+")) {
+            String[] fields;
+            int seconds;
+            int brightness;
+            int ct;
+
+            fields = token.split(":");
+            if (fields.length < 2 || fields.length > 3) {
+                throw new IllegalArgumentException("Invalid keyframe '" + token + "'");
+            }
+            try {
+                seconds = Integer.parseInt(fields[0]) * 60;
+                brightness = Integer.parseInt(fields[1]);
+                ct = fields.length == 3 ? Integer.parseInt(fields[2]) : PHLightState.VALUE_NOT_SET;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid keyframe '" + token + "'");
+            }
+
+            if (brightness < LightStates.BRIGHTNESS_MIN || brightness > LightStates.BRIGHTNESS_MAX) {
+                throw new IllegalArgumentException("Brightness out of range in '" + token + "'");
+            }
+            if (fields.length == 3 && (ct < LightStates.CT_MIN || ct > LightStates.CT_MAX)) {
+                throw new IllegalArgumentException("Colour temperature out of range in '" + token + "'");
+            }
+            if (keyframes.isEmpty()) {
+                withCt = fields.length == 3;
+                if (seconds != 0) {
+                    throw new IllegalArgumentException("The first keyframe must be at minute 0");
+                }
+            } else if (withCt != (fields.length == 3)) {
+                throw new IllegalArgumentException("Either all or no keyframes must have a colour temperature");
+            } else if (seconds <= keyframes.get(keyframes.size() - 1).mSeconds) {
+                throw new IllegalArgumentException("Keyframes must be ordered by time");
+            }
+
+            keyframes.add(new Keyframe(seconds, brightness, ct));
+        }
+
+        if (keyframes.size() < 2) {
+            throw new IllegalArgumentException("A curve needs at least two keyframes");
+        }
+
+        return new WakeCurve(keyframes);
+    }
+
+    /** @return the keyframes of this curve, ordered by time. */
+    public List<Keyframe> getKeyframes() {
+        return Collections.unmodifiableList(mKeyframes);
+    }
+
+    /** @return the time from turning on the lights until the alarm, in seconds. */
+    public int getDurationSeconds() {
+        return mKeyframes.get(mKeyframes.size() - 1).mSeconds;
+    }
+
+    /** @return true if the curve changes the colour temperature of the lights. */
+    public boolean hasCt() {
+        return mKeyframes.get(0).mCt != PHLightState.VALUE_NOT_SET;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        for (Keyframe keyframe : mKeyframes) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(keyframe);
+        }
+
+        return result.toString();
+    }
+
+    /** The state of the lights at one point in time of the curve. */
+    public static final class Keyframe {
+
+        private final int mSeconds;
+
+        private final int mBrightness;
+
+        private final int mCt;
+
+        /**
+         * @param seconds    the time of the keyframe, in seconds since the lights were turned on.
+         * @param brightness the brightness of the lights at this time.
+         * @param ct         the colour temperature of the lights in mireds or {@link PHLightState#VALUE_NOT_SET}.
+         */
+        public Keyframe(int seconds, int brightness, int ct) {
+            this.mSeconds = seconds;
+            this.mBrightness = brightness;
+            this.mCt = ct;
+        }
+
+        public int getSeconds() {
+            return mSeconds;
+        }
+
+        public int getBrightness() {
+            return mBrightness;
+        }
+
+        public int getCt() {
+            return mCt;
+        }
+
+        @Override
+        public String toString() {
+            return (mSeconds / 60) + ":" + mBrightness + (mCt != PHLightState.VALUE_NOT_SET ? ":" + mCt : "");
+        }
+    }
+}
@@ -7,7 +7,8 @@ import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.IBinder;
-import android.util.Log;
+import android.os.SystemClock;
+import android.support.v4.content.WakefulBroadcastReceiver;
 import android.widget.Toast;
 
 import com.philips.lighting.hue.sdk.PHAccessPoint;
@@ -16,19 +17,50 @@ import com.philips.lighting.hue.sdk.exception.PHHueException;
 import com.philips.lighting.model.PHBridge;
 
 import org.github.gentlewake.data.ApplicationPreferences;
+import org.github.gentlewake.data.BridgeRegistry;
+import org.github.gentlewake.data.SyncHistory;
+import org.github.gentlewake.data.SyncJournal;
+import org.github.gentlewake.data.BridgeSnapshot;
+import org.github.gentlewake.hue.BridgeFanOut;
+import org.github.gentlewake.hue.BridgeProbe;
+import org.github.gentlewake.hue.BridgeSession;
 import org.github.gentlewake.hue.DefaultPHSDKListener;
+import org.github.gentlewake.hue.HeartbeatPolicy;
+import org.github.gentlewake.hue.RestBridge;
+import org.github.gentlewake.hue.SdkEventDispatcher;
 import org.github.gentlewake.hue.SyncManager;
+import org.github.gentlewake.hue.SyncResult;
+import org.github.gentlewake.hue.SyncTimeline;
+import org.github.gentlewake.util.EventLog;
 import org.github.gentlewake.util.ValueCallback;
 
-import java.net.InetAddress;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Synchronizes the alarm with all bridges of the {@link BridgeRegistry}. The last connected bridge is synchronized
+ * using the Hue SDK if necessary, all other bridges are synchronized in parallel by a {@link BridgeFanOut}. Each
+ * bridge has {@link #SYNC_TIMEOUT_MILLIS} to complete and its result is logged separately.
+ *
  * @author lorenz.fischer@gmail.com
  */
 public class AlarmSynchronizationService extends Service {
 
     private static final String TAG = "GentleWake.SyncService";
 
+    /**
+     * The maximum number of milliseconds a single run of this service may take, including the connection to the
+     * bridge and all the operations of the synchronization.
+     */
+    private static final long SYNC_TIMEOUT_MILLIS = 30 * 1000;
+
     /** application datastore_preferences. */
     private ApplicationPreferences mPrefs;
 
@@ -44,37 +76,62 @@ public class AlarmSynchronizationService extends Service {
         mHandler = new Handler();
         mSdk = PHHueSDK.getInstance();
         mSdk.setDeviceName(mPrefs.getBridgeDeviceName()); // the device name is the "password"
+        BridgeSession.getInstance(this).acquire();
     }
 
     @Override
     public void onDestroy() {
-
-        if (mSdk.getSelectedBridge() != null) {
-            // disconnect again
-            mSdk.disableHeartbeat(mSdk.getSelectedBridge());
-            mSdk.disconnect(mSdk.getSelectedBridge());
-        }
+        // the session disconnects from the bridge, unless it is used again soon
+        BridgeSession.getInstance(this).release();
 
         //mSdk.destroySDK(); // free up resources
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, final int startId) {
-        if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Starting sync service");
-        }
+    public int onStartCommand(final Intent intent, int flags, final int startId) {
+        EventLog.d(TAG, "Starting sync service");
 
         /*
          * do the syncing in a background activity, as this method is run on the setup thread.
          * See http://developer.android.com/reference/android/app/Service.html
          */
-        new AsyncTask<Void, Void, Void>() {
+        new AsyncTask<Void, Void, Map<String, SyncResult>>() {
             @Override
-            protected Void doInBackground(Void... params) {
+            protected Map<String, SyncResult> doInBackground(Void... params) {
+                final CountDownLatch connected;
+                final AtomicReference<SyncResult> result;
+                final AtomicReference<PHBridge> syncedBridge;
+                final SyncTimeline timeline;
+                final AtomicLong syncOffset;
+                String outcome;
+                long deadline;
                 String lastIpAddress;
+                List<String> otherAddresses;
+                BridgeFanOut fanOut;
+                Map<String, Future<SyncResult>> otherSyncs;
+                Map<String, SyncResult> results;
+
+                deadline = SystemClock.elapsedRealtime() + SYNC_TIMEOUT_MILLIS;
+
+                // a previous process may have been killed before it could store the ids of the schedules it created
+                SyncJournal.getInstance(AlarmSynchronizationService.this).recover();
+
+                connected = new CountDownLatch(1);
+                result = new AtomicReference<SyncResult>();
+                syncedBridge = new AtomicReference<PHBridge>();
                 lastIpAddress = mPrefs.getLastConnectedIPAddress();
+                timeline = new SyncTimeline(lastIpAddress);
+                syncOffset = new AtomicLong();
+
+                // all other bridges are synchronized in parallel, while we take care of the last connected one
+                otherAddresses = BridgeRegistry.getInstance(AlarmSynchronizationService.this).getAddresses();
+                if (lastIpAddress != null) {
+                    otherAddresses.remove(lastIpAddress);
+                }
+                fanOut = new BridgeFanOut(AlarmSynchronizationService.this, SYNC_TIMEOUT_MILLIS, null);
+                otherSyncs = fanOut.start(otherAddresses);
 
-                if (lastIpAddress != null && isBridgeReachable(lastIpAddress)) {
+                if (lastIpAddress != null && isReachable(lastIpAddress, timeline)) {
                     PHAccessPoint lastAccessPoint;
                     String lastUsername;
 
@@ -84,55 +141,139 @@ public class AlarmSynchronizationService extends Service {
                     lastAccessPoint.setUsername(lastUsername);
 
                     if (!mSdk.isAccessPointConnected(lastAccessPoint)) {
-                        if (Log.isLoggable(TAG, Log.DEBUG)) {
-                            Log.d(TAG, "Bridge wasn't connected. Trying to connect to bridge ...");
-                        }
-
-                        mSdk.getNotificationManager().registerSDKListener(new DefaultPHSDKListener() {
-                            @Override
-                            public void onBridgeConnected(PHBridge bridge) {
-                                initiateSync(AlarmSynchronizationService.this, bridge);
-                            }
-
-                            @Override
-                            public void onConnectionResumed(PHBridge bridge) {
-                                initiateSync(AlarmSynchronizationService.this, bridge);
+                        RestBridge restBridge;
+                        SyncTimeline.Stage loadStage;
+
+                        // updating the schedules through the REST API is much cheaper than the SDK handshake
+                        loadStage = timeline.begin("Load bridge (REST)");
+                        restBridge = loadRestBridge(lastIpAddress, lastUsername);
+                        loadStage.end();
+                        if (restBridge != null) {
+                            EventLog.d(TAG, "Syncing through the REST API of the bridge ...");
+                            syncOffset.set(timeline.getElapsed());
+                            syncedBridge.set(restBridge);
+                            result.set(initiateSync(AlarmSynchronizationService.this, restBridge));
+                            connected.countDown();
+                        } else {
+                            final SyncTimeline.Stage connectStage;
+                            DefaultPHSDKListener listener;
+
+                            EventLog.d(TAG, "Bridge wasn't connected. Trying to connect to bridge ...");
+
+                            // the SDK downloads the whole datastore of the bridge before it reports the connection
+                            connectStage = timeline.begin("Connect and load bridge (SDK)");
+                            listener = new DefaultPHSDKListener() {
+                                @Override
+                                public void onBridgeConnected(PHBridge bridge) {
+                                    onConnected(bridge);
+                                }
+
+                                @Override
+                                public void onConnectionResumed(PHBridge bridge) {
+                                    onConnected(bridge);
+                                }
+
+                                /** Syncs the bridge, but only for the first of the callbacks. */
+                                private void onConnected(PHBridge bridge) {
+                                    if (connected.getCount() > 0) {
+                                        connectStage.end();
+                                        syncOffset.set(timeline.getElapsed());
+                                        syncedBridge.set(bridge);
+                                        result.set(initiateSync(AlarmSynchronizationService.this, bridge));
+                                        connected.countDown();
+                                    }
+                                }
+                            };
+                            SdkEventDispatcher.getInstance().subscribe(listener,
+                                    SdkEventDispatcher.Delivery.SDK_THREAD);
+
+                            try {
+                                mSdk.connect(lastAccessPoint);
+                                awaitConnection(connected, deadline);
+                            } catch (PHHueException e) {
+                                EventLog.e(TAG, "Error while connecting to the Hue bridge. ", e);
+                            } finally {
+                                // this also keeps the listener referenced until we're done waiting for it
+                                SdkEventDispatcher.getInstance().unsubscribe(listener);
                             }
-                        });
-
-                        try {
-                            mSdk.connect(lastAccessPoint);
-                        } catch (PHHueException e) {
-                            Log.e(TAG, "Error while connecting to the Hue bridge. ", e);
                         }
 
                     } else {
-                        if (Log.isLoggable(TAG, Log.DEBUG)) {
-                            Log.d(TAG, "bridge was connected already, so we just do the syncing ...");
-                        }
+                        PHBridge sdkBridge;
+                        RestBridge restBridge;
+
+                        EventLog.d(TAG, "bridge was connected already, so we just do the syncing ...");
 
                         if (mSdk.getSelectedBridge() == null) {
-                            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                                Log.d(TAG, "No bridge selected, trying to select the first one we can find.");
-                            }
+                            EventLog.d(TAG, "No bridge selected, trying to select the first one we can find.");
                             mSdk.setSelectedBridge(mSdk.getAllBridges().get(0));
                         }
+                        sdkBridge = mSdk.getSelectedBridge();
+
+                        // the heartbeat may be suspended, so the cache of the SDK may not know the latest schedules
+                        restBridge = null;
+                        if (!HeartbeatPolicy.getInstance(AlarmSynchronizationService.this)
+                                .isCacheCurrent(sdkBridge)) {
+                            SyncTimeline.Stage loadStage;
+
+                            EventLog.d(TAG, "The cache of the SDK is outdated, loading the schedules ...");
+                            loadStage = timeline.begin("Load bridge (REST)");
+                            restBridge = loadRestBridge(lastIpAddress, lastUsername);
+                            loadStage.end();
+                        }
+
+                        syncOffset.set(timeline.getElapsed());
+                        if (restBridge != null) {
+                            syncedBridge.set(restBridge);
+                            result.set(initiateSync(AlarmSynchronizationService.this, restBridge));
+                        } else {
+                            syncedBridge.set(sdkBridge);
+                            result.set(initiateSync(AlarmSynchronizationService.this, sdkBridge));
+                        }
+                        connected.countDown();
+                    }
 
-                        initiateSync(AlarmSynchronizationService.this, mSdk.getSelectedBridge());
+                    // keep the service alive until the sync has completed, but not longer than the deadline
+                    awaitConnection(connected, deadline);
+                    if (result.get() != null) {
+                        if (result.get().await(deadline - SystemClock.elapsedRealtime())
+                                && result.get().isSuccess()) {
+                            saveSnapshot(syncedBridge.get());
+                        }
+                        timeline.addOperations(result.get(), syncOffset.get());
+                        outcome = result.get().toString();
+                    } else {
+                        outcome = "Could not connect to the bridge within " + SYNC_TIMEOUT_MILLIS + "ms";
+                        EventLog.w(TAG, outcome);
                     }
 
                 } else {
-                    if (Log.isLoggable(TAG, Log.DEBUG)) {
-                        Log.d(TAG, "bridge not reachable. IP: " + lastIpAddress);
-                    }
+                    outcome = "Bridge not reachable";
+                    EventLog.d(TAG, "bridge not reachable. IP: " + lastIpAddress);
+                }
+                timeline.finish(outcome);
+                SyncHistory.getInstance(AlarmSynchronizationService.this).add(timeline);
+
+                results = new LinkedHashMap<String, SyncResult>();
+                if (result.get() != null) {
+                    results.put(lastIpAddress, result.get());
                 }
+                results.putAll(fanOut.await(otherSyncs));
 
-                return null;
+                return results;
             }
 
             @Override
-            protected void onPostExecute(Void aVoid) {
+            protected void onPostExecute(Map<String, SyncResult> results) {
+                for (Map.Entry<String, SyncResult> entry : results.entrySet()) {
+                    EventLog.i(TAG, "Bridge " + entry.getKey() + ": " + entry.getValue());
+                }
                 stopSelf(startId); // tell the service that we were able to run to completion and don't need to be restarted
+
+                // if the sync alarm started us, the device may sleep again
+                if (intent != null) {
+                    WakefulBroadcastReceiver.completeWakefulIntent(intent);
+                }
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, null);
 
@@ -150,18 +291,17 @@ public class AlarmSynchronizationService extends Service {
      *
      * @param ctx    the android context used to read out the configured alarms.
      * @param bridge the bridge to configure the light schedule on.
+     * @return the object tracking the operations of the synchronization.
      */
-    private void initiateSync(final Context ctx, PHBridge bridge) {
+    private SyncResult initiateSync(final Context ctx, PHBridge bridge) {
         SyncManager manager;
 
         // now we should be connected
         manager = new SyncManager(ctx, bridge);
-        manager.syncAlarm(new ValueCallback<String>() {
+        return manager.syncAlarm(new ValueCallback<String>() {
             @Override
             public void go(final String message) {
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, message);
-                }
+                EventLog.d(TAG, message);
 
                 // show message about the alarm having been set
                 mHandler.post(new Runnable() {
@@ -176,21 +316,70 @@ public class AlarmSynchronizationService extends Service {
     }
 
     /**
-     * Tests if the bridge with the given ip is reachable. This method does not try to connect, but only tries to
-     * establish a socket connection on port 80 of the given ip.
+     * Waits until the bridge has been connected and the sync has been started, but not beyond the deadline.
+     *
+     * @param connected counted down once the sync has been started.
+     * @param deadline  the deadline, as returned by {@link SystemClock#elapsedRealtime()}.
+     */
+    private static void awaitConnection(CountDownLatch connected, long deadline) {
+        try {
+            connected.await(deadline - SystemClock.elapsedRealtime(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Probes the bridge and records the time it took.
      *
-     * @param bridgeIp the ip of the bridge to test for reachability.
-     * @return true if the bridge can be reached, false otherwise.
+     * @param ipAddress the address of the bridge.
+     * @param timeline  the timeline of the synchronization.
+     * @return true if the bridge is reachable.
      */
-    private static boolean isBridgeReachable(String bridgeIp) {
-        boolean result = false;
+    private static boolean isReachable(String ipAddress, SyncTimeline timeline) {
+        SyncTimeline.Stage stage;
+        boolean result;
 
+        stage = timeline.begin("Probe bridge");
+        result = BridgeProbe.getInstance().isReachable(ipAddress);
+        stage.end();
+
+        return result;
+    }
+
+    /**
+     * Stores the state of the bridge after a successful synchronization, so the setup screen can show it right away.
+     *
+     * @param bridge the bridge that has been synchronized.
+     */
+    private void saveSnapshot(PHBridge bridge) {
+        BridgeSnapshot.save(this, bridge.getResourceCache(), mPrefs.getScheduleIdOn(),
+                mPrefs.getScheduleIdBrighten(), mPrefs.getScheduleIdOff());
+    }
+
+    /**
+     * Loads the light group and the schedules of this app from the bridge using its REST API. This only works if the
+     * light group exists on the bridge already, as creating it requires the full list of lights, which only the SDK
+     * downloads.
+     *
+     * @param ipAddress the address of the bridge.
+     * @param username  the username this app is registered with on the bridge.
+     * @return a bridge that can be used to sync the alarm or <code>null</code> if the SDK has to be used instead.
+     */
+    private RestBridge loadRestBridge(String ipAddress, String username) {
+        RestBridge result;
+
+        result = new RestBridge(ipAddress, username);
         try {
-            result = InetAddress.getByName(bridgeIp).isReachable(10 * 1000); // this sends a ping to the bridge
-        } catch (Exception e) {
-            if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.e(TAG, "Exception while trying to connect to the Hue bridge.", e);
-            }
+            result.load();
+        } catch (IOException e) {
+            EventLog.w(TAG, "Could not load the schedules using the REST API: " + e.getMessage());
+            return null;
+        }
+
+        if (!new SyncManager(this, result).isGroupExistsOnBridge(mPrefs.getLightGroupName())) {
+            EventLog.d(TAG, "Light group does not exist yet, it has to be created using the SDK.");
+            return null;
         }
 
         return result;
@@ -0,0 +1,67 @@
+/* TODO: license */
+package org.github.gentlewake.services;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.github.gentlewake.broadcastreceivers.SyncAlarmReceiver;
+import org.github.gentlewake.data.ApplicationPreferences;
+import org.github.gentlewake.util.EventLog;
+
+/**
+ * Schedules runs of the {@link AlarmSynchronizationService}. Several of the events that trigger a synchronization
+ * usually arrive together (e.g. plugging in the phone at night, connecting to the WiFi and setting the alarm), so
+ * instead of starting the service right away, we schedule a wake-up alarm a few seconds into the future (see
+ * {@link ApplicationPreferences#getSyncDelaySeconds()}). Every trigger that arrives before the alarm went off moves
+ * the alarm, so a burst of triggers results in a single synchronization.
+ * <p/>
+ * The delay also gives a fresh WiFi connection the time to initialize, without blocking any thread. The alarm goes
+ * to the {@link SyncAlarmReceiver}, which keeps the device awake until the synchronization has finished.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class SyncScheduler {
+
+    private static final String TAG = "GentleWake.Scheduler";
+
+    /** Utility classes should never be instantiated. */
+    private SyncScheduler() {}
+
+    /**
+     * Schedules a synchronization. If a synchronization has already been scheduled but did not start yet, it is
+     * moved to the end of the new delay.
+     *
+     * @param context the context used to schedule the alarm.
+     */
+    public static void requestSync(Context context) {
+        AlarmManager alarmManager;
+        long delayMillis;
+        long triggerAt;
+
+        delayMillis = ApplicationPreferences.getInstance(context.getApplicationContext()).getSyncDelaySeconds() * 1000L;
+        triggerAt = SystemClock.elapsedRealtime() + delayMillis;
+        alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+        // setting an alarm for the same pending intent replaces the alarm that has been set before
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt, createSyncIntent(context));
+        } else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt, createSyncIntent(context));
+        }
+
+        EventLog.d(TAG, "Sync scheduled in " + delayMillis + "ms");
+    }
+
+    /**
+     * @return the intent that wakes the {@link SyncAlarmReceiver}, which starts the synchronization service. Since
+     * all calls return an equal intent, the alarm manager keeps at most one alarm for it.
+     */
+    private static PendingIntent createSyncIntent(Context context) {
+        return PendingIntent.getBroadcast(context, 0, new Intent(context, SyncAlarmReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -1,99 +1,189 @@
 /* TODO: license */
 package org.github.gentlewake.util;
 
-import android.content.Context;
-import android.provider.Settings;
-import android.util.Log;
-
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.text.DateFormatSymbols;
 import java.util.Calendar;
-import java.util.Date;
 
 /**
+ * Parses the next alarm as the alarm clock app formats it into
+ * {@link android.provider.Settings.System#NEXT_ALARM_FORMATTED}, e.g. "Tue 06:30" or "Tue 6:30 AM". The parser is
+ * written by hand, so it neither allocates objects nor depends on any Android classes. Use {@link NextAlarmSource} to
+ * read the next alarm of the device.
+ *
  * @author lorenz.fischer@gmail.com
  */
-public class AlarmUtils {
+public final class AlarmUtils {
+
+    /** Returned by {@link #parseAlarmTime(CharSequence)} if the string could not be parsed. */
+    public static final int NO_ALARM_TIME = -1;
+
+    /** The number of minutes in a day, used to encode the day of the week and the time into one integer. */
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    /** The abbreviated names of the weekdays, lower case and indexed by {@link Calendar#DAY_OF_WEEK}. */
+    private static final String[] WEEKDAYS;
+
+    /** The lower case marker for times before noon in the 12 hour format. */
+    private static final String AM;
+
+    /** The lower case marker for times after noon in the 12 hour format. */
+    private static final String PM;
+
+    static {
+        DateFormatSymbols symbols;
+        String[] weekdays;
+
+        // the alarm clock formats the alarm using the default locale, so we do the same
+        symbols = new DateFormatSymbols();
+        weekdays = symbols.getShortWeekdays();
+        WEEKDAYS = new String[weekdays.length];
+        for (int i = 0; i < weekdays.length; i++) {
+            WEEKDAYS[i] = weekdays[i].toLowerCase();
+        }
+        AM = symbols.getAmPmStrings()[Calendar.AM].toLowerCase();
+        PM = symbols.getAmPmStrings()[Calendar.PM].toLowerCase();
+    }
 
-    private static final String TAG = "GentleWake.AlarmUtils";
+    /** Utility classes should never be instantiated. */
+    private AlarmUtils() {}
 
     /**
-     * This method reads the time at which the next alarm is configured to be go off on the
-     * device and returns the date for it.
+     * Parses the formatted next alarm into the day of the week and the time of the day at which the alarm goes off.
+     * Both the 24 hour format ("Tue 06:30") and the 12 hour format ("Tue 6:30 AM") are supported.
      *
-     * @param context the context to read the alarm from.
-     * @return the next alarm that is configured on the phone or <code>null</code> if no configured
-     * alarm could be retrieved.
+     * @param nextAlarm the alarm as formatted in {@link android.provider.Settings.System#NEXT_ALARM_FORMATTED}.
+     * @return the alarm time as <code>dayOfWeek * 24 * 60 + minuteOfDay</code> or {@link #NO_ALARM_TIME} if the
+     * string could not be parsed. Pass it to {@link #nextOccurrence(int, Calendar)} to get the date of the alarm.
      */
-    public static Date getNextAlarm(Context context) {
-        Date result;
-        String nextAlarm;
+    public static int parseAlarmTime(CharSequence nextAlarm) {
+        int length;
+        int pos;
+        int dayOfWeek;
+        int hour;
+        int minute;
+        int digits;
+
+        length = nextAlarm.length();
+        dayOfWeek = -1;
+        for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY && dayOfWeek < 0; day++) {
+            if (WEEKDAYS[day].length() > 0 && startsWithIgnoreCase(nextAlarm, 0, WEEKDAYS[day])) {
+                dayOfWeek = day;
+            }
+        }
+        if (dayOfWeek < 0) {
+            return NO_ALARM_TIME;
+        }
+
+        // some locales add a dot to the abbreviation, so we skip everything up to the next blank
+        pos = WEEKDAYS[dayOfWeek].length();
+        while (pos < length && !Character.isWhitespace(nextAlarm.charAt(pos))) {
+            pos++;
+        }
+        while (pos < length && Character.isWhitespace(nextAlarm.charAt(pos))) {
+            pos++;
+        }
 
-        result = null;
-        nextAlarm = Settings.System.getString(context.getContentResolver(),
-                Settings.System.NEXT_ALARM_FORMATTED);
+        hour = 0;
+        digits = 0;
+        while (pos < length && digits < 2 && isDigit(nextAlarm.charAt(pos))) {
+            hour = hour * 10 + nextAlarm.charAt(pos) - '0';
+            pos++;
+            digits++;
+        }
+        if (digits == 0 || pos >= length || nextAlarm.charAt(pos) != ':') {
+            return NO_ALARM_TIME;
+        }
+        pos++;
+
+        minute = 0;
+        digits = 0;
+        while (pos < length && digits < 2 && isDigit(nextAlarm.charAt(pos))) {
+            minute = minute * 10 + nextAlarm.charAt(pos) - '0';
+            pos++;
+            digits++;
+        }
+        if (digits != 2 || minute > 59) {
+            return NO_ALARM_TIME;
+        }
 
-        if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Next alarm is set to '" + nextAlarm + "'");
+        while (pos < length && Character.isWhitespace(nextAlarm.charAt(pos))) {
+            pos++;
         }
 
-         /*
-         * The code for this has been copied and adapted from
-         * http://stackoverflow.com/questions/8133788/time-to-the-next-alarm-in-seconds-or-milliseconds
-         */
-        if (nextAlarm != null && nextAlarm.length() > 0) {
-            DateFormat sdf;
-            Date alarmDate;
-
-            alarmDate = null;
-            if (nextAlarm.toLowerCase().contains("am") || nextAlarm.toLowerCase().contains("pm")) {
-                sdf = new SimpleDateFormat("EEE hh:mm aa"); // 12 hour with am/pm // test this one
+        if (pos == length) { // 24 hour format
+            if (hour > 23) {
+                return NO_ALARM_TIME;
+            }
+        } else { // 12 hour format
+            if (hour < 1 || hour > 12) {
+                return NO_ALARM_TIME;
+            }
+            if (startsWithIgnoreCase(nextAlarm, pos, AM)) {
+                pos += AM.length();
+                hour = hour % 12;            // 12:30 AM is half an hour after midnight
+            } else if (startsWithIgnoreCase(nextAlarm, pos, PM)) {
+                pos += PM.length();
+                hour = hour % 12 + 12;       // 12:30 PM is half an hour after noon
             } else {
-                sdf = new SimpleDateFormat("EEE HH:mm"); // 24 hour
+                return NO_ALARM_TIME;
             }
-
-            try {
-                alarmDate = sdf.parse(nextAlarm);
-            } catch (ParseException e) {
-                if (Log.isLoggable(TAG, Log.WARN)) {
-                    Log.w(TAG, "Couldn't parse the alarmDate string '" + nextAlarm + "'");
-                }
+            if (pos != length) {
+                return NO_ALARM_TIME;
             }
+        }
+
+        return dayOfWeek * MINUTES_PER_DAY + hour * 60 + minute;
+    }
+
+    /**
+     * Computes the date of the next alarm. The alarm goes off on the first day on or after the current day that
+     * matches its day of the week.
+     *
+     * @param alarmTime the alarm time as returned by {@link #parseAlarmTime(CharSequence)}.
+     * @param calendar  a calendar set to the current time. It is changed by this method, which allows the caller to
+     *                  reuse it.
+     * @return the time of the next alarm in milliseconds since the epoch.
+     */
+    public static long nextOccurrence(int alarmTime, Calendar calendar) {
+        int dayOfWeek;
+        int minuteOfDay;
+        int daysDiff;
 
-            if (alarmDate != null) {
-                Calendar alarm;
-                int alarmDayOfWeek;
-                Calendar now;
-                int nowDayOfWeek;
-                int daysDiff = 0;
-
-                alarm = Calendar.getInstance();
-                alarm.setTimeInMillis(alarmDate.getTime());
-                alarmDayOfWeek = alarm.get(Calendar.DAY_OF_WEEK);
-                now = Calendar.getInstance();
-                nowDayOfWeek = now.get(Calendar.DAY_OF_WEEK);
-
-                daysDiff = alarmDayOfWeek - nowDayOfWeek;
-                if (daysDiff < 0) {
-                    daysDiff += 7;
-                }
-
-                // year and month are the same as "now", only the day needs to be set
-                alarm.set(Calendar.YEAR, now.get(Calendar.YEAR));
-                alarm.set(Calendar.MONTH, now.get(Calendar.MONTH));
-                alarm.set(Calendar.DATE, now.get(Calendar.DATE));
-                alarm.add(Calendar.DATE, daysDiff);
-
-                result = alarm.getTime();
-
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    Log.d(TAG, "Parsed date is " + result);
-                }
+        dayOfWeek = alarmTime / MINUTES_PER_DAY;
+        minuteOfDay = alarmTime % MINUTES_PER_DAY;
+
+        daysDiff = dayOfWeek - calendar.get(Calendar.DAY_OF_WEEK);
+        if (daysDiff < 0) {
+            daysDiff += 7;
+        }
+
+        calendar.add(Calendar.DATE, daysDiff);
+        calendar.set(Calendar.HOUR_OF_DAY, minuteOfDay / 60);
+        calendar.set(Calendar.MINUTE, minuteOfDay % 60);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * @return true if the region of <code>text</code> starting at <code>offset</code> starts with the given lower
+     * case <code>prefix</code>, ignoring the case of the text.
+     */
+    private static boolean startsWithIgnoreCase(CharSequence text, int offset, String prefix) {
+        if (text.length() - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase(text.charAt(offset + i)) != prefix.charAt(i)) {
+                return false;
             }
         }
+        return true;
+    }
 
-        return result;
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
 }
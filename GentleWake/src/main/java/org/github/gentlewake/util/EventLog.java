@@ -0,0 +1,190 @@
+/* TODO: license */
+package org.github.gentlewake.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The activity log of the app: the events of the synchronization are kept in memory, so the app can show them to
+ * the user without reading them back from logcat. Every event is passed on to logcat as well, if the level is
+ * loggable for the tag (see {@link Log#isLoggable(String, int)}).
+ * <p/>
+ * The events are kept in a ring buffer of {@link #CAPACITY} slots: writers claim the next sequence number with a
+ * single atomic increment and store the event in its slot, overwriting the oldest event. Neither writers nor readers
+ * ever take a lock, so logging from the receivers, the service and the callbacks of the Hue SDK never waits for the
+ * UI. Readers detect events that have been overwritten by their sequence number.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class EventLog {
+
+    /** The number of events kept. A power of two, so the slot of a sequence number is a simple mask. */
+    public static final int CAPACITY = 256;
+
+    private static final int MASK = CAPACITY - 1;
+
+    /** The events, the event with sequence number <code>n</code> is in slot <code>n & MASK</code>. */
+    private static final AtomicReferenceArray<Event> EVENTS = new AtomicReferenceArray<Event>(CAPACITY);
+
+    /** The sequence number of the next event. */
+    private static final AtomicLong NEXT_SEQUENCE = new AtomicLong();
+
+    /** These listeners are informed about every new event. */
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<Listener>();
+
+    /** Receives the events as they are logged. */
+    public interface Listener {
+
+        /**
+         * Called on the thread that logged the event, so implementations must return quickly.
+         *
+         * @param event the new event.
+         */
+        void onEvent(Event event);
+    }
+
+    /** Utility classes should never be instantiated. */
+    private EventLog() {}
+
+    public static void d(String tag, String message) {
+        log(Log.DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        log(Log.INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        log(Log.WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable throwable) {
+        log(Log.WARN, tag, message, throwable);
+    }
+
+    public static void e(String tag, String message) {
+        log(Log.ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        log(Log.ERROR, tag, message, throwable);
+    }
+
+    /**
+     * Adds an event to the log, informs the listeners and passes it on to logcat.
+     *
+     * @param level     the level of the event, one of the levels of {@link Log}, e.g. {@link Log#INFO}.
+     * @param tag       the tag of the class logging the event.
+     * @param message   the message.
+     * @param throwable the cause of the event, can be <code>null</code>.
+     */
+    public static void log(int level, String tag, String message, Throwable throwable) {
+        Event event;
+
+        event = new Event(NEXT_SEQUENCE.getAndIncrement(), System.currentTimeMillis(), level, tag, message, throwable);
+        EVENTS.set((int) (event.mSequence & MASK), event);
+        for (Listener listener : LISTENERS) {
+            listener.onEvent(event);
+        }
+
+        if (Log.isLoggable(tag, level)) {
+            Log.println(level, tag, throwable == null ? message : message + '\n' + Log.getStackTraceString(throwable));
+        }
+    }
+
+    public static void addListener(Listener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /** @return the sequence number the next event will get. */
+    public static long getNextSequence() {
+        return NEXT_SEQUENCE.get();
+    }
+
+    /**
+     * Returns the events that are still in the buffer, starting with the given sequence number. Events that have
+     * been overwritten in the meantime are missing, as well as events that are just being written.
+     *
+     * @param sequence the sequence number of the first event to return.
+     * @return the events, oldest first.
+     */
+    public static List<Event> getEventsSince(long sequence) {
+        List<Event> result;
+        long next;
+        long first;
+
+        next = NEXT_SEQUENCE.get();
+        first = Math.max(sequence, next - CAPACITY);
+        result = new ArrayList<Event>((int) Math.max(0, next - first));
+        for (long i = first; i < next; i++) {
+            Event event;
+
+            event = EVENTS.get((int) (i & MASK));
+            if (event != null && event.mSequence == i) {
+                result.add(event);
+            }
+        }
+
+        return result;
+    }
+
+    /** A single entry of the log. Events are immutable. */
+    public static final class Event {
+
+        private final long mSequence;
+
+        /** The time of the event, in milliseconds since the epoch. */
+        private final long mTime;
+
+        private final int mLevel;
+
+        private final String mTag;
+
+        private final String mMessage;
+
+        private final Throwable mThrowable;
+
+        private Event(long sequence, long time, int level, String tag, String message, Throwable throwable) {
+            this.mSequence = sequence;
+            this.mTime = time;
+            this.mLevel = level;
+            this.mTag = tag;
+            this.mMessage = message;
+            this.mThrowable = throwable;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public int getLevel() {
+            return mLevel;
+        }
+
+        public String getTag() {
+            return mTag;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        /** @return the cause of the event or <code>null</code>. */
+        public Throwable getThrowable() {
+            return mThrowable;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/* TODO: license */
+package org.github.gentlewake.util;
+
+import android.app.AlarmManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Build;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.Calendar;
+
+/**
+ * Provides the time of the next alarm that is configured on the device. The next alarm is read on every
+ * synchronization and every time the setup screen is refreshed, so this class tries hard to make this cheap:
+ * <ul>
+ * <li>On Android 5.0 and newer, the structured alarm clock API of the {@link AlarmManager} is used, so no string
+ * needs to be parsed at all.</li>
+ * <li>On older versions, the formatted alarm is pushed to us by a content observer whenever the alarm clock changes
+ * it, instead of being queried from the settings provider on every call. It is parsed by
+ * {@link AlarmUtils#parseAlarmTime(CharSequence)} and the result is cached until either the alarm or the current day
+ * changes.</li>
+ * </ul>
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+public final class NextAlarmSource {
+
+    private static final String TAG = "GentleWake.NextAlarm";
+
+    /** Returned by {@link #getNextAlarmMillis()} if no alarm is configured. */
+    public static final long NO_ALARM = -1;
+
+    /** The version of Android that introduced AlarmManager.getNextAlarmClock() (Lollipop). */
+    private static final int SDK_ALARM_CLOCK_INFO = 21;
+
+    /** The singleton. */
+    private static NextAlarmSource sInstance;
+
+    /** AlarmManager.getNextAlarmClock(), if available on this device. */
+    private final Method mGetNextAlarmClock;
+
+    /** AlarmManager.AlarmClockInfo.getTriggerTime(), if available on this device. */
+    private final Method mGetTriggerTime;
+
+    private final AlarmManager mAlarmManager;
+
+    /** The next alarm as formatted by the alarm clock. Updated by the content observer. */
+    private volatile String mFormattedAlarm;
+
+    /** We reuse this calendar for all computations, so reading a cached alarm doesn't create any objects. */
+    private final Calendar mCalendar;
+
+    /** The formatted alarm for which the cached values were computed. */
+    private String mCachedFormattedAlarm;
+
+    /** The cached result is valid from this time (the start of the day it was computed on) ... */
+    private long mCachedValidFrom;
+
+    /** ... until this time (the start of the next day). */
+    private long mCachedValidUntil;
+
+    /** The cached time of the next alarm. */
+    private long mCachedNextAlarm;
+
+    public static synchronized NextAlarmSource getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new NextAlarmSource(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NextAlarmSource(Context appContext) {
+        Method getNextAlarmClock;
+        Method getTriggerTime;
+
+        this.mAlarmManager = (AlarmManager) appContext.getSystemService(Context.ALARM_SERVICE);
+        this.mCalendar = Calendar.getInstance();
+
+        getNextAlarmClock = null;
+        getTriggerTime = null;
+        if (Build.VERSION.SDK_INT >= SDK_ALARM_CLOCK_INFO) {
+            // we compile against an older SDK, so we have to look the methods up
+            try {
+                getNextAlarmClock = AlarmManager.class.getMethod("getNextAlarmClock");
+                getTriggerTime = getNextAlarmClock.getReturnType().getMethod("getTriggerTime");
+            } catch (NoSuchMethodException e) {
+                if (Log.isLoggable(TAG, Log.WARN)) {
+                    Log.w(TAG, "Alarm clock API not available, falling back to the formatted alarm: " + e);
+                }
+                getNextAlarmClock = null;
+            }
+        }
+        this.mGetNextAlarmClock = getNextAlarmClock;
+        this.mGetTriggerTime = getTriggerTime;
+
+        if (this.mGetNextAlarmClock == null) {
+            final ContentResolver resolver;
+
+            resolver = appContext.getContentResolver();
+            this.mFormattedAlarm = Settings.System.getString(resolver, Settings.System.NEXT_ALARM_FORMATTED);
+            resolver.registerContentObserver(Settings.System.getUriFor(Settings.System.NEXT_ALARM_FORMATTED), false,
+                    new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            mFormattedAlarm = Settings.System.getString(resolver,
+                                    Settings.System.NEXT_ALARM_FORMATTED);
+
+                            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                                Log.d(TAG, "Next alarm changed to '" + mFormattedAlarm + "'");
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * @return the time of the next alarm in milliseconds since the epoch or {@link #NO_ALARM} if no alarm is
+     * configured or it could not be read.
+     */
+    public long getNextAlarmMillis() {
+        if (this.mGetNextAlarmClock != null) {
+            return readAlarmClock();
+        }
+        return readFormattedAlarm(this.mFormattedAlarm, System.currentTimeMillis());
+    }
+
+    /** Reads the next alarm using the alarm clock API of Android 5.0. */
+    private long readAlarmClock() {
+        Object alarmClockInfo;
+
+        try {
+            alarmClockInfo = this.mGetNextAlarmClock.invoke(this.mAlarmManager);
+            if (alarmClockInfo != null) {
+                return (Long) this.mGetTriggerTime.invoke(alarmClockInfo);
+            }
+        } catch (Exception e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Could not read the next alarm clock: " + e);
+            }
+        }
+
+        return NO_ALARM;
+    }
+
+    /**
+     * Parses the formatted alarm, unless the cached result for it is still valid.
+     *
+     * @param formattedAlarm the alarm as formatted by the alarm clock, may be <code>null</code> or empty.
+     * @param now            the current time in milliseconds since the epoch.
+     * @return the time of the next alarm or {@link #NO_ALARM}.
+     */
+    private synchronized long readFormattedAlarm(String formattedAlarm, long now) {
+        int alarmTime;
+
+        if (formattedAlarm == null || formattedAlarm.length() == 0) {
+            return NO_ALARM;
+        }
+
+        if (formattedAlarm.equals(this.mCachedFormattedAlarm)
+                && now >= this.mCachedValidFrom && now < this.mCachedValidUntil) {
+            return this.mCachedNextAlarm;
+        }
+
+        alarmTime = AlarmUtils.parseAlarmTime(formattedAlarm);
+        if (alarmTime == AlarmUtils.NO_ALARM_TIME) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Couldn't parse the alarmDate string '" + formattedAlarm + "'");
+            }
+            this.mCachedNextAlarm = NO_ALARM;
+        } else {
+            this.mCalendar.setTimeInMillis(now);
+            this.mCachedNextAlarm = AlarmUtils.nextOccurrence(alarmTime, this.mCalendar);
+        }
+
+        // the next alarm depends on the current day, so the result can only be reused on the same day
+        this.mCalendar.setTimeInMillis(now);
+        this.mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+        this.mCalendar.set(Calendar.MINUTE, 0);
+        this.mCalendar.set(Calendar.SECOND, 0);
+        this.mCalendar.set(Calendar.MILLISECOND, 0);
+        this.mCachedValidFrom = this.mCalendar.getTimeInMillis();
+        this.mCalendar.add(Calendar.DATE, 1);
+        this.mCachedValidUntil = this.mCalendar.getTimeInMillis();
+        this.mCachedFormattedAlarm = formattedAlarm;
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Parsed next alarm '" + formattedAlarm + "' to " + this.mCachedNextAlarm);
+        }
+
+        return this.mCachedNextAlarm;
+    }
+}
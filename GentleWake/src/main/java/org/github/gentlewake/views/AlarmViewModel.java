@@ -0,0 +1,84 @@
+/* TODO: license */
+package org.github.gentlewake.views;
+
+import com.philips.lighting.model.PHSchedule;
+
+import org.github.gentlewake.util.NextAlarmSource;
+
+/**
+ * The values the {@link SetupFragment} shows about the alarm: the next alarm of the phone and the dates of the
+ * schedules that turn the lights on and off. The bridge reports its state with every heartbeat, mostly unchanged, so
+ * the fragment compares the new values with the ones on screen and only updates the views that changed.
+ * <p/>
+ * View models are immutable.
+ *
+ * @author lorenz.fischer@gmail.com
+ */
+final class AlarmViewModel {
+
+    /** The value of a date that is not set. */
+    public static final long NOT_SET = NextAlarmSource.NO_ALARM;
+
+    /** The time of the next alarm in milliseconds since the epoch or {@link #NOT_SET}. */
+    private final long mNextAlarm;
+
+    /** The date of the schedule that turns the lights on in milliseconds since the epoch or {@link #NOT_SET}. */
+    private final long mHueOn;
+
+    /** The date of the schedule that turns the lights off in milliseconds since the epoch or {@link #NOT_SET}. */
+    private final long mHueOff;
+
+    /** True if the dates of the schedules have been loaded from a snapshot instead of the bridge. */
+    private final boolean mStale;
+
+    /**
+     * @param nextAlarm the time of the next alarm as returned by {@link NextAlarmSource#getNextAlarmMillis()}.
+     * @param hueOn     the schedule that turns the lights on, can be <code>null</code>.
+     * @param hueOff    the schedule that turns the lights off, can be <code>null</code>.
+     * @param stale     true if the schedules have been loaded from a snapshot.
+     */
+    AlarmViewModel(long nextAlarm, PHSchedule hueOn, PHSchedule hueOff, boolean stale) {
+        this.mNextAlarm = nextAlarm;
+        this.mHueOn = getDate(hueOn);
+        this.mHueOff = getDate(hueOff);
+        this.mStale = stale;
+    }
+
+    private static long getDate(PHSchedule schedule) {
+        return schedule != null && schedule.getDate() != null ? schedule.getDate().getTime() : NOT_SET;
+    }
+
+    public long getNextAlarm() {
+        return mNextAlarm;
+    }
+
+    public long getHueOn() {
+        return mHueOn;
+    }
+
+    public long getHueOff() {
+        return mHueOff;
+    }
+
+    public boolean isStale() {
+        return mStale;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        AlarmViewModel other;
+
+        if (!(o instanceof AlarmViewModel)) {
+            return false;
+        }
+        other = (AlarmViewModel) o;
+
+        return this.mNextAlarm == other.mNextAlarm && this.mHueOn == other.mHueOn && this.mHueOff == other.mHueOff
+                && this.mStale == other.mStale;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (31 * (31 * this.mNextAlarm + this.mHueOn) + this.mHueOff) ^ (this.mStale ? 1 : 0);
+    }
+}
@@ -29,6 +29,7 @@ import com.philips.lighting.model.PHHueError;
 import org.github.gentlewake.R;
 import org.github.gentlewake.data.AccessPointListAdapter;
 import org.github.gentlewake.data.ApplicationPreferences;
+import org.github.gentlewake.hue.SdkEventDispatcher;
 
 import java.util.List;
 
@@ -83,7 +84,7 @@ public class BridgeListFragment extends Fragment implements OnItemClickListener,
         super.onResume();
 
         // start listening to callbacks from the SDK
-        mHueSdk.getNotificationManager().registerSDKListener(this);
+        SdkEventDispatcher.getInstance().subscribe(this, SdkEventDispatcher.Delivery.MAIN_THREAD);
 
         //doBridgeSearch();
     }
@@ -91,7 +92,7 @@ public class BridgeListFragment extends Fragment implements OnItemClickListener,
     @Override
     public void onPause() {
         super.onPause();
-        mHueSdk.getNotificationManager().unregisterSDKListener(this);
+        SdkEventDispatcher.getInstance().unsubscribe(this);
     }
 
     @Override
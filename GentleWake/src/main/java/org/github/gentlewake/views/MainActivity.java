@@ -27,6 +27,10 @@ import com.philips.lighting.model.PHHueError;
 
 import org.github.gentlewake.R;
 import org.github.gentlewake.data.ApplicationPreferences;
+import org.github.gentlewake.data.BridgeRegistry;
+import org.github.gentlewake.hue.BridgeSession;
+import org.github.gentlewake.hue.HeartbeatPolicy;
+import org.github.gentlewake.hue.SdkEventDispatcher;
 
 import java.util.List;
 
@@ -65,7 +69,8 @@ public class MainActivity extends Activity
 
         // setup communication channels to hue bridge
         mHueSdk = PHHueSDK.create();
-        mHueSdk.getNotificationManager().registerSDKListener(this); // start listening to callbacks from the SDK
+        SdkEventDispatcher.getInstance().subscribe(this, SdkEventDispatcher.Delivery.MAIN_THREAD); // SDK callbacks
+        BridgeSession.getInstance(this).acquire();                  // keep the connection open while we're alive
 
         // setup view
         setContentView(R.layout.activity_main);
@@ -110,11 +115,9 @@ public class MainActivity extends Activity
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mHueSdk != null) {  // this should not be possible
-            mHueSdk.getNotificationManager().unregisterSDKListener(this);
-            mHueSdk.disableAllHeartbeat();
-            //mHueSdk.destroySDK();
-        }
+        SdkEventDispatcher.getInstance().unsubscribe(this);
+        //mHueSdk.destroySDK();
+        BridgeSession.getInstance(this).release();  // disconnects after a while, unless a sync needs the connection
     }
 
 
@@ -232,9 +235,10 @@ public class MainActivity extends Activity
             Log.v(TAG, "onBridgeConnected");
         }
         mHueSdk.setSelectedBridge(b);
-        mHueSdk.enableHeartbeat(b, PHHueSDK.HB_INTERVAL);
         mHueSdk.getLastHeartbeat().put(b.getResourceCache().getBridgeConfiguration().getIpAddress(), System.currentTimeMillis());
         mPrefs.setLastConnectedIPAddress(b.getResourceCache().getBridgeConfiguration().getIpAddress());
+        HeartbeatPolicy.getInstance(this).onBridgeConnected(b); // instead of the full heartbeat of the SDK
+        BridgeRegistry.getInstance(this).add(b.getResourceCache().getBridgeConfiguration().getIpAddress());
         PHWizardAlertDialog.getInstance().closeProgressDialog();
 
         startMainActy = new Intent(this, MainActivity.class);
@@ -13,6 +13,7 @@ import com.philips.lighting.hue.sdk.PHSDKListener;
 import com.philips.lighting.model.PHBridge;
 
 import org.github.gentlewake.R;
+import org.github.gentlewake.hue.SdkEventDispatcher;
 
 import java.util.List;
 
@@ -41,13 +42,13 @@ public class PHPushlinkActivity extends Activity {
         pbar = (ProgressBar) findViewById(R.id.countdownPB);
         pbar.setMax(MAX_TIME);
         
-        phHueSDK.getNotificationManager().registerSDKListener(listener);
+        SdkEventDispatcher.getInstance().subscribe(listener, SdkEventDispatcher.Delivery.MAIN_THREAD);
     }
 
     @Override
     protected void onStop(){
         super.onStop();
-        phHueSDK.getNotificationManager().unregisterSDKListener(listener);
+        SdkEventDispatcher.getInstance().unsubscribe(listener);
     }
 
     public void incrementProgress() {
@@ -111,7 +112,7 @@ public class PHPushlinkActivity extends Activity {
     public void onDestroy() {
         super.onDestroy();
         if (listener !=null) {
-            phHueSDK.getNotificationManager().unregisterSDKListener(listener);
+            SdkEventDispatcher.getInstance().unsubscribe(listener);
         }
     }
     
@@ -1,13 +1,15 @@
 package org.github.gentlewake.views;
 
+import android.app.Activity;
 import android.app.Fragment;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.support.annotation.Nullable;
-import android.text.Editable;
-import android.text.Layout;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -17,30 +19,36 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.Button;
-import android.widget.ScrollView;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import com.philips.lighting.hue.sdk.PHHueSDK;
 import com.philips.lighting.hue.sdk.PHSDKListener;
 import com.philips.lighting.model.PHBridge;
-import com.philips.lighting.model.PHBridgeResourcesCache;
 import com.philips.lighting.model.PHSchedule;
 
 import org.github.gentlewake.R;
-import org.github.gentlewake.broadcastreceivers.SynchronizationReceiver;
 import org.github.gentlewake.data.ApplicationPreferences;
+import org.github.gentlewake.data.BridgeSnapshot;
+import org.github.gentlewake.data.LogLineAdapter;
+import org.github.gentlewake.data.SyncHistory;
+import org.github.gentlewake.hue.BridgeSession;
+import org.github.gentlewake.hue.CommandPacer;
 import org.github.gentlewake.hue.DefaultPHSDKListener;
-import org.github.gentlewake.util.AlarmUtils;
+import org.github.gentlewake.hue.HeartbeatPolicy;
+import org.github.gentlewake.hue.RestBridge;
+import org.github.gentlewake.hue.SdkEventDispatcher;
 import org.github.gentlewake.hue.SyncManager;
+import org.github.gentlewake.hue.SyncTimeline;
+import org.github.gentlewake.services.AlarmSynchronizationService;
+import org.github.gentlewake.util.EventLog;
+import org.github.gentlewake.util.NextAlarmSource;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Hashtable;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * MainApplicationActivity - The starting point for creating your own Hue App.
@@ -52,8 +60,14 @@ public class SetupFragment extends Fragment {
 
     private static final String TAG = "GentleWake.SetupFgmt";
 
-    /** The maximum number of lines that should be shown in the message log text field. */
-    public static final int MAX_LOG_LINES = 50;
+    /** The maximum number of lines that are kept in the message log. */
+    public static final int MAX_LOG_LINES = 500;
+
+    /** The message that carries an event of the {@link EventLog} to the UI thread. */
+    private static final int MSG_EVENT = 1;
+
+    /** The number of synchronizations whose stages are shown. */
+    private static final int RECENT_SYNCS = 3;
 
     private PHHueSDK mHueSdk;
 
@@ -63,25 +77,61 @@ public class SetupFragment extends Fragment {
     /** This formatter is used to format all date values in this view. */
     private DateFormat mDateFmt;
 
-    /** We use this text view to log messages, so the user knows what was going on. */
-    private TextView mTxtvLog;
-
-    /** The scroll view containing the log text view. */
-    private ScrollView mScrollvLog;
+    /** Holds the lines of the log view, which we use to log messages, so the user knows what was going on. */
+    private LogLineAdapter mLogAdapter;
 
     /** This listener will be informed about updates to the Hue. */
     private PHSDKListener mSdkListener;
 
+    /** Receives the schedules while we are visible, see {@link HeartbeatPolicy}. */
+    private HeartbeatPolicy.Listener mHeartbeatListener;
+
+    /** The schedules and groups fetched last, <code>null</code> if none have been fetched yet. */
+    private volatile RestBridge mPolledBridge;
+
+    /** Reads the next alarm, also from background threads. */
+    private NextAlarmSource mNextAlarmSource;
+
     //private static final int MAX_HUE = 65535;
 
     /** An object which contains global settings of the app. */
     private ApplicationPreferences mPrefs;
 
-    /** We use this task to read from logcat. */
-    private AsyncTask<Void, String, Void> mLogcatReaderTask;
+    /** Formats the time of the events in the log view. */
+    private DateFormat mTimeFmt;
+
+    /** Passes the events of the {@link EventLog} to the UI thread. */
+    private EventLog.Listener mEventListener;
+
+    /** Shows the events and the latest values on the UI thread. */
+    private Handler mEventHandler;
+
+    /** The sequence number of the next event to show in the log view. */
+    private long mNextEventSequence;
+
+    /** The views showing the alarm, resolved once when the view is created. */
+    private TextView mTxtvCurrentAlarm;
+
+    private TextView mTxtvHueOn;
+
+    private TextView mTxtvHueOff;
+
+    private TextView mTxtvSyncHistory;
+
+    /** The bridge {@link #mSyncManager} works with. */
+    private PHBridge mSyncBridge;
+
+    /** The latest values to show. Set on any thread, shown with the next frame by {@link #mRenderTask}. */
+    private volatile AlarmViewModel mRequestedModel;
+
+    /** The values on screen, only accessed on the UI thread. <code>null</code> if nothing has been shown. */
+    private AlarmViewModel mDisplayedModel;
 
-    /** We keep a reference to this container, so we can find views outside of the onCreateView method. */
-    private ViewGroup mContainer;  // todo: is this clean
+    /** True while {@link #mRenderTask} waits to be run on the UI thread. */
+    private final AtomicBoolean mRenderPending = new AtomicBoolean();
+
+    /** Shows the latest values, see {@link #requestRender(AlarmViewModel)}. */
+    private Runnable mRenderTask;
 
     @Nullable
     @Override
@@ -90,25 +140,76 @@ public class SetupFragment extends Fragment {
 
         result = inflater.inflate(R.layout.fragment_setup, container, false);
 
-        this.mContainer = container;
+        this.mTxtvCurrentAlarm = (TextView) result.findViewById(R.id.txtvCurrentAlarm);
+        this.mTxtvHueOn = (TextView) result.findViewById(R.id.txtvHueOn);
+        this.mTxtvHueOff = (TextView) result.findViewById(R.id.txtvHueOff);
+        this.mTxtvSyncHistory = (TextView) result.findViewById(R.id.txtvSyncHistory);
+        this.mRequestedModel = null;  // the new views show nothing yet
+        this.mDisplayedModel = null;
+        this.mRenderTask = new Runnable() {
+            @Override
+            public void run() {
+                AlarmViewModel model;
+
+                mRenderPending.set(false);
+                model = mRequestedModel;
+                if (model != null) { // null if we were paused since the update was requested
+                    render(model);
+                }
+            }
+        };
         this.mDateFmt = new SimpleDateFormat();
+        this.mTimeFmt = new SimpleDateFormat("HH:mm:ss");
         this.mHueSdk = PHHueSDK.create();
         this.mPrefs = ApplicationPreferences.getInstance(getActivity());
-        this.mTxtvLog = (TextView) result.findViewById(R.id.log);
-        this.mScrollvLog = (ScrollView) result.findViewById(R.id.scrollViewLog);
+        this.mNextAlarmSource = NextAlarmSource.getInstance(getActivity());
+        this.mLogAdapter = new LogLineAdapter(getActivity(), MAX_LOG_LINES);
+        ((ListView) result.findViewById(R.id.log)).setAdapter(this.mLogAdapter);
+        this.mEventHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                showEvent((EventLog.Event) msg.obj);
+                return true;
+            }
+        });
+        this.mEventListener = new EventLog.Listener() {
+            @Override
+            public void onEvent(EventLog.Event event) {
+                // messages are pooled, so the event itself is the only object created per event
+                mEventHandler.obtainMessage(MSG_EVENT, event).sendToTarget();
+            }
+        };
 
         // ... otherwise we will update the ui as soon as we receive a bridge object
         this.mSdkListener = new DefaultPHSDKListener() {
             @Override
-            public void onCacheUpdated(int i, final PHBridge bridge) {
-                mSyncManager = new SyncManager(getActivity(), bridge);
-
-                getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        updateUi(bridge);
-                    }
-                });
+            public void onCacheUpdated(int i, PHBridge bridge) {
+                Activity activity;
+
+                activity = getActivity();
+                if (activity == null) {
+                    return; // the fragment has been detached while the update was delivered
+                }
+
+                if (bridge != mSyncBridge) {
+                    mSyncManager = new SyncManager(activity, bridge, null, CommandPacer.Priority.INTERACTIVE);
+                    mSyncBridge = bridge;
+                }
+
+                // remember what we've seen, so we can show it right away the next time
+                BridgeSnapshot.save(activity, bridge.getResourceCache(), mPrefs.getScheduleIdOn(),
+                        mPrefs.getScheduleIdBrighten(), mPrefs.getScheduleIdOff());
+
+                updateUi(bridge);
+            }
+        };
+
+        // while we are visible, the schedules are fetched on their own, without the rest of the bridge
+        this.mHeartbeatListener = new HeartbeatPolicy.Listener() {
+            @Override
+            public void onBridgeRefreshed(RestBridge bridge) {
+                mPolledBridge = bridge;
+                updateUi(bridge.getResourceCache().getSchedules(), false);
             }
         };
 
@@ -139,12 +240,58 @@ public class SetupFragment extends Fragment {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.sync_alarm:
-                mSyncManager.syncAlarm(null);
+                syncAlarm();
                 break;
         }
         return true;
     }
 
+    /**
+     * Syncs the alarm in the background, as the sync manager writes its journal to disk. If we are not connected to
+     * a bridge, the sync service connects on its own.
+     */
+    private void syncAlarm() {
+        final SyncManager syncManager;
+
+        syncManager = syncManagerForButton();
+        if (syncManager == null) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Not connected to a bridge, starting the sync service");
+            }
+            getActivity().startService(new Intent(getActivity(), AlarmSynchronizationService.class));
+            return;
+        }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                syncManager.syncAlarm(null);
+            }
+        });
+    }
+
+    /**
+     * The resource cache of the SDK is only refreshed rarely (see {@link HeartbeatPolicy}), so the sync button uses
+     * the schedules that have been fetched last, unless the light group still has to be created through the SDK.
+     *
+     * @return the sync manager to sync the alarm with, <code>null</code> if we are not connected to a bridge.
+     */
+    private SyncManager syncManagerForButton() {
+        RestBridge polledBridge;
+        SyncManager result;
+
+        polledBridge = this.mPolledBridge;
+        if (polledBridge != null) {
+            result = new SyncManager(getActivity(), polledBridge, this.mPrefs.getLastConnectedIPAddress(),
+                    CommandPacer.Priority.INTERACTIVE);
+            if (result.isGroupExistsOnBridge(this.mPrefs.getLightGroupName())) {
+                return result;
+            }
+        }
+
+        return this.mSyncManager;
+    }
+
     /**
      * This method updates all the ui components, so they contain the current configured alarm, as well as the
      * current configuration of the Hue bridge (Hue on/off).
@@ -153,42 +300,121 @@ public class SetupFragment extends Fragment {
      */
     private void updateUi(PHBridge selectedBridge) {
         if (selectedBridge != null) {
-            PHBridgeResourcesCache resourceCache;
-            Date nextAlarm;
-            PHSchedule hueOn;
-            PHSchedule hueOff;
-            Hashtable<String, PHSchedule> schedules;
-
-            resourceCache = selectedBridge.getResourceCache();
-            schedules = resourceCache.getSchedules();
-            nextAlarm = AlarmUtils.getNextAlarm(getActivity());
-            hueOn = null;
-            hueOff = null;
-
-            if (this.mPrefs.getScheduleIdOn() != null) {
-                hueOn = schedules.get(this.mPrefs.getScheduleIdOn());
-            }
-            if (this.mPrefs.getScheduleIdOff() != null) {
-                hueOff = schedules.get(this.mPrefs.getScheduleIdOff());
-            }
+            updateUi(selectedBridge.getResourceCache().getSchedules(), false);
+        }
+    }
 
-            if (nextAlarm == null) {
-                ((TextView) mContainer.findViewById(R.id.txtvCurrentAlarm)).setText("Not Set");
-            } else {
-                ((TextView) mContainer.findViewById(R.id.txtvCurrentAlarm)).setText(this.mDateFmt.format(nextAlarm));
+    /**
+     * Shows the last known state of the bridge from the snapshot we stored on disk, until the live data arrives.
+     */
+    private void updateUiFromSnapshot() {
+        BridgeSnapshot snapshot;
+
+        snapshot = BridgeSnapshot.load(getActivity());
+        if (snapshot != null) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Showing snapshot from " + new Date(snapshot.getTimestamp()));
             }
+            updateUi(snapshot.getSchedules(), true);
+        }
+    }
+
+    /**
+     * Shows the alarm and the schedules with the next frame. Can be called on any thread.
+     *
+     * @param schedules the schedules of the bridge, by identifier.
+     * @param stale     true if the schedules are not live data, but have been loaded from a snapshot.
+     */
+    private void updateUi(Map<String, PHSchedule> schedules, boolean stale) {
+        PHSchedule hueOn;
+        PHSchedule hueOff;
+
+        hueOn = null;
+        hueOff = null;
+
+        if (this.mPrefs.getScheduleIdOn() != null) {
+            hueOn = schedules.get(this.mPrefs.getScheduleIdOn());
+        }
+        if (this.mPrefs.getScheduleIdOff() != null) {
+            hueOff = schedules.get(this.mPrefs.getScheduleIdOff());
+        }
+
+        requestRender(new AlarmViewModel(this.mNextAlarmSource.getNextAlarmMillis(), hueOn, hueOff, stale));
+    }
+
+    /**
+     * Shows the given values on the UI thread. All requests made before the update runs result in a single update
+     * that shows the latest values. Can be called on any thread. The update is posted to a handler, as a view that
+     * is not attached drops the runnables posted to it on older versions of Android.
+     *
+     * @param model the values to show.
+     */
+    private void requestRender(AlarmViewModel model) {
+        if (model.equals(this.mRequestedModel)) {
+            return; // most updates of the bridge don't change anything we show
+        }
+        this.mRequestedModel = model;
+        if (!this.mRenderPending.getAndSet(true)) {
+            this.mEventHandler.post(this.mRenderTask);
+        }
+    }
+
+    /**
+     * Updates the views whose values differ from the ones on screen. Must be called on the UI thread.
+     *
+     * @param model the values to show.
+     */
+    private void render(AlarmViewModel model) {
+        AlarmViewModel displayed;
+        boolean staleChanged;
+
+        displayed = this.mDisplayedModel;
+        staleChanged = displayed == null || displayed.isStale() != model.isStale();
 
-            if (hueOn == null) {
-                ((TextView) mContainer.findViewById(R.id.txtvHueOn)).setText(R.string.txt_not_set);
+        if (displayed == null || displayed.getNextAlarm() != model.getNextAlarm()) {
+            if (model.getNextAlarm() == AlarmViewModel.NOT_SET) {
+                this.mTxtvCurrentAlarm.setText("Not Set");
             } else {
-                ((TextView) mContainer.findViewById(R.id.txtvHueOn)).setText(this.mDateFmt.format(hueOn.getDate()));
+                this.mTxtvCurrentAlarm.setText(this.mDateFmt.format(new Date(model.getNextAlarm())));
             }
+        }
+        if (staleChanged || displayed.getHueOn() != model.getHueOn()) {
+            bindScheduleDate(this.mTxtvHueOn, model.getHueOn(), model.isStale());
+        }
+        if (staleChanged || displayed.getHueOff() != model.getHueOff()) {
+            bindScheduleDate(this.mTxtvHueOff, model.getHueOff(), model.isStale());
+        }
 
-            if (hueOff == null) {
-                ((TextView) mContainer.findViewById(R.id.txtvHueOff)).setText(R.string.txt_not_set);
-            } else {
-                ((TextView) mContainer.findViewById(R.id.txtvHueOff)).setText(this.mDateFmt.format(hueOff.getDate()));
+        this.mDisplayedModel = model;
+    }
+
+    /**
+     * Shows the stages of the most recent synchronizations, so the user can see where the time went.
+     */
+    private void updateSyncHistory() {
+        StringBuilder text;
+
+        text = new StringBuilder();
+        for (SyncTimeline timeline : SyncHistory.getInstance(getActivity()).getRecent(RECENT_SYNCS)) {
+            if (text.length() > 0) {
+                text.append("\n");
             }
+            text.append(this.mDateFmt.format(new Date(timeline.getStartTime()))).append(" - ").append(timeline);
+        }
+
+        this.mTxtvSyncHistory.setText(text.length() > 0 ? text : "None yet");
+    }
+
+    /**
+     * Shows the date of a schedule, marked as "last known" if it is stale.
+     */
+    private void bindScheduleDate(TextView view, long date, boolean stale) {
+        if (date == AlarmViewModel.NOT_SET) {
+            view.setText(R.string.txt_not_set);
+        } else if (stale) {
+            view.setText(this.mDateFmt.format(new Date(date)) + " " + getString(R.string.txt_stale));
+        } else {
+            view.setText(this.mDateFmt.format(new Date(date)));
         }
     }
 
@@ -198,32 +424,21 @@ public class SetupFragment extends Fragment {
      * @param lines the messages to add to the log view.
      */
     public void logMessage(String... lines) {
-        StringBuilder formattedMessage;
-        int linesToRemove;
-
-        formattedMessage = new StringBuilder();
-        for (String line : lines) { // I'm so looking forward to join()
-            formattedMessage.append(line).append("\n");
+        for (String line : lines) {
+            this.mLogAdapter.append(line);
         }
+    }
 
-        // add new line
-        mTxtvLog.append(formattedMessage);
-        // remove old lines if necessary
-        // copied from here: http://stackoverflow.com/questions/5078058/how-to-delete-the-old-lines-of-a-textview
-        linesToRemove = mTxtvLog.getLineCount() - MAX_LOG_LINES;
-        if (linesToRemove > 0) {
-            for (int i = 0; i < linesToRemove; i++) {
-                Editable text;
-                Layout layout;
-
-                text = mTxtvLog.getEditableText();
-                layout = mTxtvLog.getLayout();
-                text.delete(layout.getLineStart(0), layout.getLineEnd(0));
-            }
+    /**
+     * Writes an event to the log view, unless it has been shown already.
+     *
+     * @param event the event of the {@link EventLog}.
+     */
+    private void showEvent(EventLog.Event event) {
+        if (event.getSequence() >= this.mNextEventSequence) {
+            this.mNextEventSequence = event.getSequence() + 1;
+            logMessage(this.mTimeFmt.format(new Date(event.getTime())) + ": " + event.getMessage());
         }
-
-        // scroll to bottom of text field
-        mScrollvLog.fullScroll(ScrollView.FOCUS_DOWN);
     }
 
     @Override
@@ -231,95 +446,56 @@ public class SetupFragment extends Fragment {
         super.onResume();
 
         PHBridge selectedBridge;
-        this.mHueSdk.getNotificationManager().registerSDKListener(this.mSdkListener);
+        // the listener stores a snapshot of the bridge, so it should not run on the main thread
+        SdkEventDispatcher.getInstance().subscribe(this.mSdkListener, SdkEventDispatcher.Delivery.SDK_THREAD);
+        HeartbeatPolicy.getInstance(getActivity()).addListener(this.mHeartbeatListener);
+        HeartbeatPolicy.getInstance(getActivity()).onVisible();
 
         // test to see if we have a connection to the bridge already
         selectedBridge = this.mHueSdk.getSelectedBridge();
         if (selectedBridge != null) {
-            this.mSyncManager = new SyncManager(getActivity(), selectedBridge);  // the sync-button relies on this
+            this.mSyncManager = new SyncManager(getActivity(), selectedBridge, null,
+                    CommandPacer.Priority.INTERACTIVE);  // the sync-button relies on this
+            this.mSyncBridge = selectedBridge;
             updateUi(selectedBridge);                 // show current alarm and hue configuration in ui
+        } else {
+            updateUiFromSnapshot();                   // show the last known state until we are connected
         }
+        updateSyncHistory();
 
-        // start reading the logcat log in a background thread
-        if (mLogcatReaderTask != null) {
-            mLogcatReaderTask.cancel(true);
+        // show the events we missed while paused, then the new ones as they are logged
+        EventLog.addListener(this.mEventListener);
+        for (EventLog.Event event : EventLog.getEventsSince(this.mNextEventSequence)) {
+            showEvent(event);
         }
-        mLogcatReaderTask = new AsyncTask<Void, String, Void>() {
-            private static final String PATTERN = "^[^\\s]+\\s([0-9][0-9]:[0-9][0-9]:[0-9][0-9])[^:]+:\\s(.*)$";
-            @Override
-            protected Void doInBackground(Void... args) {
-                Process process;
-                BufferedReader reader;
-
-                try {
-                    // http://developer.android.com/tools/debugging/debugging-log.html#outputFormat
-                    // logcat -v time GentleWake.SyncManager:D GentleWake.SyncReceiver:D *:W | grep GentleWake
-                    // todo: replace the "GentleWake" string
-                    process = Runtime.getRuntime().exec("logcat -v time "+  // show the "time format"
-                            SyncManager.TAG+":D "+                          // debug for the sync manager
-                            SynchronizationReceiver.TAG+":D "+              // debug for the sync receiver
-                            "*:E "+                                         // show all errors
-                            "| grep GentleWake");                           // ... for TAGs containing "GentleWake"
-                    reader = new BufferedReader(
-                            new InputStreamReader(process.getInputStream()));
-
-                    while (true) { // we do this eternally
-                        String line;
-
-                        line = reader.readLine();
-                        if (line == null) {
-                            // try again in 2 seconds
-                            Thread.sleep(2 * 1000);
-                        } else {
-                            /* The log line contains way too much information. Example:
-                               11-09 16:28:31.996 I/GentleWake.SyncManager(19703): Syncing alarms
-                             */
-                            line = line.replaceAll(PATTERN, "$1: $2");
-
-                            publishProgress(line);
-                        }
-                    }
-                } catch (IOException e) {
-                    // post the exception to the log
-                    publishProgress("Error while reading logcat: " + e.getMessage());
-                } catch (InterruptedException e) {
-                    // this happens if this object gets killed while we're waiting.
-                    publishProgress("Exiting");
-                }
-
-                return null;
-            }
-
-            @Override
-            protected void onProgressUpdate(String... values) {
-                logMessage(values);
-            }
-
-        };
-        mLogcatReaderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, null);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        this.mHueSdk.getNotificationManager().unregisterSDKListener(this.mSdkListener);
-        mLogcatReaderTask.cancel(true);
+        SdkEventDispatcher.getInstance().unsubscribe(this.mSdkListener);
+        HeartbeatPolicy.getInstance(getActivity()).removeListener(this.mHeartbeatListener);
+        HeartbeatPolicy.getInstance(getActivity()).onHidden();
+        EventLog.removeListener(this.mEventListener);
+        this.mEventHandler.removeMessages(MSG_EVENT); // these are shown from the log when we are resumed
+
+        // the values are requested again when we are resumed
+        this.mEventHandler.removeCallbacks(this.mRenderTask);
+        this.mRequestedModel = null;
+        this.mRenderPending.set(false);
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        BridgeSession.getInstance(getActivity()).acquire();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
 
-        if (mHueSdk != null) {  // I have not yet found out how this is possible
-            PHBridge bridge = mHueSdk.getSelectedBridge();
-            if (bridge != null) {
-
-                if (mHueSdk.isHeartbeatEnabled(bridge)) {
-                    mHueSdk.disableHeartbeat(bridge);
-                }
-
-                mHueSdk.disconnect(bridge);
-            }
-        }
+        // the session disconnects from the bridge once nobody has been using it for a while
+        BridgeSession.getInstance(getActivity()).release();
     }
 }